@@ -22,9 +22,10 @@
 package com.bitventory.applet;
 
 // Java core
-import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // Library that lets us talk to the browser
 import netscape.javascript.JSObject;
@@ -91,6 +92,12 @@ public class BitAppletThreaded extends JApplet {
 	 */
 	private NetworkParameters network = null;
 	
+	/**
+	 * Whether newly generated public keys use the 33 byte compressed
+	 * encoding. Off by default so existing addresses are unaffected.
+	 */
+	private boolean compressedKeys = false;
+	
 	/**
 	 * Create an empty hash container for the passphrase and
 	 * grab the window handle for making JS calls.
@@ -221,6 +228,17 @@ public class BitAppletThreaded extends JApplet {
 		} else return false;
 	} // getPublicKeys
 	
+	/**
+	 * Opt in to (or out of) compressed public keys for keys generated from
+	 * here on. Keys handed out earlier keep the encoding they were created
+	 * with, since the encoding determines the address.
+	 * 
+	 * @param compressed	True for 33 byte public keys, false for 65 bytes.
+	 */
+	public void setCompressedKeys(boolean compressed) {
+		this.compressedKeys = compressed;
+	} // setCompressedKeys
+	
 	/**
 	 * Check if the wallet is unlocked. By this, we're checking that the user
 	 * has entered the correct passphrase and stored the hash in this applet.
@@ -252,14 +270,15 @@ public class BitAppletThreaded extends JApplet {
 	 * given token results in the given public key being generated.
 	 * 
 	 * @param token		The token for key generation.
-	 * @param pubkey	The public key to check against.
+	 * @param pubkey	The public key to check against, in either encoding.
 	 * 
 	 * @return	True if the passphrase is valid, and false otherwise.
 	 */
 	private boolean verifyPassphrase(byte[] token, byte[] pubkey) {
 		try {
 			ECKey key0 =
-				Keys.createKey(this.hashedPassphrase.getHashedPassphrase(), token);
+				Keys.createKey(this.hashedPassphrase.getHashedPassphrase(), token,
+						ECKey.isPubKeyCompressed(pubkey));
 			return Arrays.equals(key0.getPubKey(), pubkey);
 		} catch (Exception ex) {} // try
 		return false;
@@ -370,11 +389,13 @@ public class BitAppletThreaded extends JApplet {
 		
 		private byte[][] tokens = null;
 		private int start = -1;
+		private boolean compressed = false;
 		
 		public KeygenThread(HashContainer hashedPassphrase, byte[][] tokens, int start) {
 			this.hashedPassphrase = hashedPassphrase;
 			this.tokens = tokens;
 			this.start = start;
+			this.compressed = compressedKeys;
 		} // KeygenThread
 		
 		public void run() {
@@ -390,15 +411,15 @@ public class BitAppletThreaded extends JApplet {
 		 */
 		private void getPublicKeys(byte[][] tokens, int start) {
 			
-			// Allocate space for keys
-			byte[][] keys = new byte[tokens.length][65];
+			// Allocate space for keys (33 or 65 bytes each, depending on encoding)
+			byte[][] keys = new byte[tokens.length][];
 			
 			// For all tokens..
 			for (int x = 0; x < tokens.length; x++) {
 				byte[] token = tokens[x];
 				keys[x] =
 					Keys.createKey(this.hashedPassphrase.getHashedPassphrase(),
-							token).getPubKey();
+							token, compressed).getPubKey();
 			} // for
 			
 			// Fire key upload callback
@@ -447,15 +468,17 @@ public class BitAppletThreaded extends JApplet {
 			
 				// Get an address instance from the address string,
 				// and use it to derive the the hash160
-				Address addr = new Address(network, address);
+				Address addr = Address.fromString(network, address);
 				byte[] hash160 = addr.getHash160();
 				
 				// Generate the user's key for this address
 				ECKey key =
 					Keys.createKey(this.hashedPassphrase.getHashedPassphrase(), token);
 				
-				// Is this key owned by the user?
-				if (Arrays.equals(hash160, key.getPubKeyHash())) {
+				// Is this key owned by the user? The address may have been
+				// handed out in either public key encoding.
+				if (Arrays.equals(hash160, key.getPubKeyHash()) ||
+						Arrays.equals(hash160, key.withCompression(!key.isCompressed()).getPubKeyHash())) {
 					notify("You are the rightful owner of the address: " + address, true);
 					return true;
 				}
@@ -532,10 +555,14 @@ public class BitAppletThreaded extends JApplet {
 				// Create a temporary wallet
 				Wallet wallet = new Wallet(network);
 				
-				// Generate the needed keys for the wallet
+				// Generate the needed keys for the wallet. Each key goes in under
+				// both encodings, as the service doesn't tell us which one an
+				// output pays to and the wallet only matches a key's own form.
 				for (int x = 0; x < keyids.length; x++) {
 					byte[] token = tokens[x];
-					wallet.addKey(Keys.createKey(this.hashedPassphrase.getHashedPassphrase(), token));
+					ECKey key = Keys.createKey(this.hashedPassphrase.getHashedPassphrase(), token);
+					wallet.addKey(key);
+					wallet.addKey(key.withCompression(true));
 				} // for
 				
 				// Verify that I'm not an evil jackass
@@ -543,22 +570,19 @@ public class BitAppletThreaded extends JApplet {
 				if ((outputs.size() >= 2) && (outputs.size() <= 3)) {
 					
 					// Get the sum of the outputs
-					BigInteger outputTotal = BigInteger.ZERO;
-					for (TransactionOutput output : outputs) {
-						outputTotal = outputTotal.add(output.getValue());
-					} // for
+					long outputTotal = tx.getCoinsOutAsLong();
 					
 					// Get receiver details
 					TransactionOutput receiver = outputs.get(0);
 					String receiverCoins =
-						Utils.bitcoinValueToFriendlyString(receiver.getValue());
+						Utils.bitcoinValueToFriendlyString(receiver.getValueAsLong());
 					String receiverAddress =
 						receiver.getScriptPubKey().getToAddress().toString();
 					
 					// Get service fee details
 					TransactionOutput yaymonies = outputs.get(1);
 					String serviceFee =
-						Utils.bitcoinValueToFriendlyString(yaymonies.getValue());
+						Utils.bitcoinValueToFriendlyString(yaymonies.getValueAsLong());
 					
 					// If there is change, verify that the user controls the
 					// output address
@@ -580,8 +604,18 @@ public class BitAppletThreaded extends JApplet {
 					if (askForAuthorization(receiverAddress, receiverCoins,
 							networkFee, serviceFee)) {
 						
-						// Sign the transaction with the current wallet
-						tx.signInputs(SigHash.ALL, wallet);
+						// Sign the transaction with the current wallet. Sweeps
+						// can have many inputs, so spread those over the cores.
+						int threads = Math.min(tx.getInputs().size(),
+								Runtime.getRuntime().availableProcessors());
+						if (threads > 1) {
+							ExecutorService signers = Executors.newFixedThreadPool(threads);
+							try {
+								tx.signInputs(SigHash.ALL, wallet, signers);
+							} finally {
+								signers.shutdown();
+							} // try
+						} else tx.signInputs(SigHash.ALL, wallet);
 						
 						// Compress the signed transaction and send it back
 						Object[] args = {Tools.serializeToBytes(tx)};
@@ -677,12 +711,14 @@ public class BitAppletThreaded extends JApplet {
 		
 		private String email = null;
 		private byte[] token = null;
+		private boolean compressed = false;
 		
 		public CreateOriginThread(HashContainer hashedPassphrase, String email,
 				byte[] token) {
 			this.hashedPassphrase = hashedPassphrase;
 			this.email = email;
 			this.token = token;
+			this.compressed = compressedKeys;
 		} // KeygenThread
 		
 		public void run() {
@@ -728,7 +764,7 @@ public class BitAppletThreaded extends JApplet {
 			
 			// Generate the origin key
 			ECKey originKey =
-				Keys.createKey(this.hashedPassphrase.getHashedPassphrase(), token);
+				Keys.createKey(this.hashedPassphrase.getHashedPassphrase(), token, compressed);
 			
 			// Submit the origin key
 			Object[] args = {originKey.getPubKey()};
@@ -40,4 +40,8 @@ public class DeterministicECKey extends ECKey {
 		super(prng);
 	} // DeterministicECKey
 	
+	public DeterministicECKey(SecureRandom prng, boolean compressed) {
+		super(prng, compressed);
+	} // DeterministicECKey
+	
 } // DeterministicECKey
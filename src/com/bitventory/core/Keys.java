@@ -61,9 +61,23 @@ public class Keys {
 	 * @return	The user's keypair.
 	 */
 	public static ECKey createKey(byte[] hash, byte[] token) {
+		return createKey(hash, token, false);
+	} // createKey
+	
+	/**
+	 * Create a keypair using the user's passphrase and the given token,
+	 * with the public key in the requested encoding. The private key is
+	 * the same either way, but the two encodings give different addresses.
+	 * 
+	 * @param token			The token to use for key generation.
+	 * @param compressed	True for a 33 byte public key, false for 65 bytes.
+	 * 
+	 * @return	The user's keypair.
+	 */
+	public static ECKey createKey(byte[] hash, byte[] token, boolean compressed) {
 		try {
 			byte[] seedBytes = Tools.concatBytes(hash, token);
-			return new DeterministicECKey(new PRNG(seedBytes));
+			return new DeterministicECKey(new PRNG(seedBytes), compressed);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 			return null;
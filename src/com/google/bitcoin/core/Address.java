@@ -53,7 +53,8 @@ import java.util.Arrays;
  * they are both very unfriendly for typists. More useful representations might include qrcodes
  * and identicons.<p>
  *
- * Note that an address is specific to a network because the first byte is a discriminator value.
+ * Note that an address is specific to a network because the first byte is a discriminator value. It is also specific
+ * to the public key encoding: the compressed and uncompressed forms of one key hash to two different addresses.
  */
 public class Address extends VersionedChecksummedBytes {
     /**
@@ -79,6 +80,31 @@ public class Address extends VersionedChecksummedBytes {
                                              " vs " + params.addressHeader);
     }
 
+    /**
+     * Construct the address of a raw public key, which may be in either the compressed or uncompressed encoding.
+     */
+    public static Address fromPubKey(NetworkParameters params, byte[] pubkey) {
+        return fromHash160(params, Utils.sha256hash160(pubkey));
+    }
+
+    /**
+     * Returns the canonical address for the given hash160 from the shared {@link AddressCache}. Prefer this to the
+     * constructor when the same addresses are rendered repeatedly, as the instance remembers its string form.
+     */
+    public static Address fromHash160(NetworkParameters params, byte[] hash160) {
+        return AddressCache.getInstance().get(params, hash160);
+    }
+
+    /**
+     * Parses the given human readable address via the shared {@link AddressCache}, so strings that have been seen
+     * before skip the base58 decode and checksum.
+     *
+     * @throws AddressFormatException if the string is invalid or belongs to a different network.
+     */
+    public static Address fromString(NetworkParameters params, String address) throws AddressFormatException {
+        return AddressCache.getInstance().parse(params, address);
+    }
+
     /** The (big endian) 20 byte hash that is the core of a BitCoin address. */
     public byte[] getHash160() {
         return bytes;
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread safe cache of canonical {@link Address} objects. It maps both the base58 string form and the
+ * (version, hash160) form of an address to a single shared instance, which memoizes its own string encoding. A string
+ * that has been seen before therefore skips the base58 decode and checksum, and a hash160 that has been seen before
+ * skips the object creation and the base58 encode when it is rendered.<p>
+ *
+ * Entries are evicted least recently used first once the cache holds more than its capacity. Addresses handed out by
+ * the cache are shared, so callers must not modify the array returned by {@link Address#getHash160()}.
+ */
+public class AddressCache {
+    /** How many addresses the shared cache holds before it starts evicting. */
+    public static final int DEFAULT_CAPACITY = 2000;
+
+    private static final AddressCache shared = new AddressCache(DEFAULT_CAPACITY);
+
+    private final Map<String, Address> byString;
+    private final Map<HashKey, Address> byHash;
+
+    /** Creates a cache that holds at most capacity entries of each form. */
+    public AddressCache(final int capacity) {
+        byString = new LinkedHashMap<String, Address>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Address> eldest) {
+                return size() > capacity;
+            }
+        };
+        byHash = new LinkedHashMap<HashKey, Address>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HashKey, Address> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Returns the cache shared by the library. */
+    public static AddressCache getInstance() {
+        return shared;
+    }
+
+    /**
+     * Returns the address for the given human readable form, decoding and verifying it only if it isn't already
+     * cached. The network check is repeated on every call.
+     *
+     * @throws AddressFormatException if the string is invalid or belongs to a different network.
+     */
+    public Address parse(NetworkParameters params, String address) throws AddressFormatException {
+        Address cached;
+        synchronized (this) {
+            cached = byString.get(address);
+        }
+        if (cached == null) {
+            // Decode outside the lock, two threads racing on the same string just both do the work once.
+            Address parsed = new Address(params, address);
+            synchronized (this) {
+                cached = canonicalize(parsed);
+                byString.put(address, cached);
+            }
+        }
+        if (cached.getVersion() != params.addressHeader)
+            throw new AddressFormatException("Mismatched version number, trying to cross networks? " +
+                                             cached.getVersion() + " vs " + params.addressHeader);
+        return cached;
+    }
+
+    /** Returns the canonical address for the given hash160 on the given network. */
+    public Address get(NetworkParameters params, byte[] hash160) {
+        HashKey key = new HashKey(params.addressHeader, hash160);
+        synchronized (this) {
+            Address cached = byHash.get(key);
+            if (cached != null)
+                return cached;
+        }
+        // Copy, so the canonical instance doesn't alias a buffer the caller might reuse.
+        Address address = new Address(params, hash160.clone());
+        synchronized (this) {
+            return canonicalize(address);
+        }
+    }
+
+    /** Removes every entry. */
+    public synchronized void clear() {
+        byString.clear();
+        byHash.clear();
+    }
+
+    // Must be called with the lock held.
+    private Address canonicalize(Address address) {
+        HashKey key = new HashKey(address.getVersion(), address.getHash160());
+        Address existing = byHash.get(key);
+        if (existing != null)
+            return existing;
+        byHash.put(key, address);
+        return address;
+    }
+
+    /** Map key combining the version byte with the hash160, as the same hash is a different address per network. */
+    private static class HashKey {
+        private final int version;
+        private final byte[] hash160;
+        private final int hashCode;
+
+        HashKey(int version, byte[] hash160) {
+            this.version = version;
+            this.hash160 = hash160;
+            this.hashCode = 31 * version + Arrays.hashCode(hash160);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof HashKey)) return false;
+            HashKey other = (HashKey) o;
+            return version == other.version && Arrays.equals(hash160, other.hash160);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * A database of the addresses of nodes on the network, kept in a file so that after a restart we can reconnect to
+ * nodes that worked before, rather than waiting on DNS, IRC or the seed list.<p>
+ *
+ * Addresses are learned from addr messages and recorded along with how connecting to them went. Like the address
+ * manager of the official client, it keeps two tables of fixed size buckets. New addresses go in the "new" table,
+ * in a bucket chosen from the network group of the address and of the peer that told us about it, so one peer can
+ * only ever fill a small part of the table. Once we have connected to an address it moves to the "tried" table.
+ * Bucket choice is salted with a random key kept in the file, so bucket placement can't be predicted from outside.
+ * When a bucket is full the least useful address in it makes way.<p>
+ *
+ * {@link #getAddresses(int)} returns the best addresses to connect to: ones that worked before, quickest first,
+ * then the most recently seen new ones. Addresses that just failed are held back for a while, for longer after
+ * each failure in a row.<p>
+ *
+ * The file is a short header and then one fixed size binary record per address, written by {@link #save()}. All
+ * methods are thread safe.
+ */
+public class AddressManager {
+    private static final Logger log = LoggerFactory.getLogger(AddressManager.class);
+
+    private static final int FILE_MAGIC = 0x41444452;  // "ADDR"
+    private static final byte FILE_FORMAT_VERSION = 1;
+    // Magic, version, key and record count.
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4;
+
+    static final int NEW_BUCKETS = 256;
+    static final int TRIED_BUCKETS = 64;
+    static final int BUCKET_SIZE = 64;
+    // Addresses from any one source group are spread over only this many new buckets.
+    private static final int NEW_BUCKETS_PER_SOURCE_GROUP = 32;
+    // Addresses in any one group are spread over only this many tried buckets.
+    private static final int TRIED_BUCKETS_PER_GROUP = 8;
+
+    // After a failure an address is held back for this long, doubling with each failure in a row up to the maximum.
+    private static final long RETRY_DELAY_SECS = 60;
+    private static final long MAX_RETRY_DELAY_SECS = 24 * 60 * 60;
+    // Addresses advertised with a time further ahead than this are taken to have been seen now.
+    private static final long MAX_CLOCK_SKEW_SECS = 10 * 60;
+
+    private static class Entry {
+        final InetAddress addr;
+        final int port;
+        long services;
+        long lastSeenSecs;      // As advertised by the peers that told us about it.
+        long lastSuccessSecs;   // 0 if we never connected.
+        long lastAttemptSecs;   // 0 if we never tried.
+        int failures;           // In a row, since the last success.
+        int latencyMillis;      // Connection and handshake time, -1 if unknown.
+        boolean tried;
+        int bucket;
+
+        // IPv6 (or IPv4 mapped) address, port, services, three times, failures, latency, tried flag, bucket.
+        static final int SIZE = 16 + 2 + 8 + 4 + 4 + 4 + 2 + 4 + 1 + 2;
+
+        Entry(InetAddress addr, int port) {
+            this.addr = addr;
+            this.port = port;
+            latencyMillis = -1;
+        }
+
+        void write(ByteBuffer buf) {
+            byte[] ip = addr.getAddress();
+            if (ip.length == 4) {
+                // Mapped into IPv6 space, as on the wire.
+                buf.put(new byte[10]);
+                buf.put((byte) 0xFF);
+                buf.put((byte) 0xFF);
+            }
+            buf.put(ip);
+            buf.putShort((short) port);
+            buf.putLong(services);
+            buf.putInt((int) lastSeenSecs);
+            buf.putInt((int) lastSuccessSecs);
+            buf.putInt((int) lastAttemptSecs);
+            buf.putShort((short) Math.min(failures, Short.MAX_VALUE));
+            buf.putInt(latencyMillis);
+            buf.put((byte) (tried ? 1 : 0));
+            buf.putShort((short) bucket);
+        }
+
+        static Entry read(ByteBuffer buf) throws UnknownHostException {
+            byte[] ip = new byte[16];
+            buf.get(ip);
+            Entry e = new Entry(InetAddress.getByAddress(ip), buf.getShort() & 0xFFFF);
+            e.services = buf.getLong();
+            e.lastSeenSecs = buf.getInt() & 0xFFFFFFFFL;
+            e.lastSuccessSecs = buf.getInt() & 0xFFFFFFFFL;
+            e.lastAttemptSecs = buf.getInt() & 0xFFFFFFFFL;
+            e.failures = buf.getShort();
+            e.latencyMillis = buf.getInt();
+            e.tried = buf.get() != 0;
+            e.bucket = buf.getShort() & 0xFFFF;
+            return e;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File file;
+    private final long key;
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+    private final List<List<Entry>> newTable = createTable(NEW_BUCKETS);
+    private final List<List<Entry>> triedTable = createTable(TRIED_BUCKETS);
+    // True if anything changed since the file was written.
+    private boolean dirty;
+
+    /**
+     * Loads the database from the given file, or starts an empty one if the file doesn't exist or can't be used.
+     *
+     * @throws IOException if the file exists but can't be read.
+     */
+    public AddressManager(NetworkParameters params, File file) throws IOException {
+        this.params = params;
+        this.file = file;
+        long loadedKey = 0;
+        boolean loaded = false;
+        if (file.exists()) {
+            byte[] bytes = readFile(file);
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            if (bytes.length >= HEADER_SIZE && buf.getInt() == FILE_MAGIC && buf.get() == FILE_FORMAT_VERSION) {
+                loadedKey = buf.getLong();
+                int count = buf.getInt();
+                if (count >= 0 && buf.remaining() == (long) count * Entry.SIZE) {
+                    for (int i = 0; i < count; i++)
+                        load(Entry.read(buf));
+                    loaded = true;
+                }
+            }
+            if (!loaded)
+                log.warn("Ignoring unusable address file {}", file);
+        }
+        key = loaded ? loadedKey : new SecureRandom().nextLong();
+        if (loaded)
+            log.info("Loaded {} addresses, {} tried, from {}", new Object[] { entries.size(), countTried(), file });
+    }
+
+    private static List<List<Entry>> createTable(int buckets) {
+        List<List<Entry>> table = new ArrayList<List<Entry>>(buckets);
+        for (int i = 0; i < buckets; i++)
+            table.add(new ArrayList<Entry>());
+        return table;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Puts a record from the file back in the bucket it was saved from.
+    private void load(Entry e) {
+        List<List<Entry>> table = e.tried ? triedTable : newTable;
+        if (e.bucket >= table.size() || table.get(e.bucket).size() >= BUCKET_SIZE)
+            return;
+        InetSocketAddress id = new InetSocketAddress(e.addr, e.port);
+        if (entries.containsKey(id))
+            return;
+        entries.put(id, e);
+        table.get(e.bucket).add(e);
+    }
+
+    /** Records addresses the given peer told us about in an addr message. */
+    public synchronized void add(List<PeerAddress> addresses, InetAddress source) {
+        long now = Utils.now().getTime() / 1000;
+        for (PeerAddress address : addresses) {
+            if (!isUsable(address.addr))
+                continue;
+            // Old clients don't send the time the address was last seen.
+            long seen = address.time > 0 ? Math.min(address.time, now + MAX_CLOCK_SKEW_SECS) : now;
+            Entry e = entries.get(id(address));
+            if (e == null) {
+                e = new Entry(address.addr, portOf(address));
+                e.lastSeenSecs = seen;
+                e.services = address.services.longValue();
+                placeNew(e, source);
+            } else {
+                e.lastSeenSecs = Math.max(e.lastSeenSecs, seen);
+                e.services |= address.services.longValue();
+            }
+        }
+        dirty = true;
+    }
+
+    /** Records that we are about to try connecting to the given address. */
+    public synchronized void markAttempt(PeerAddress address) {
+        Entry e = entries.get(id(address));
+        if (e == null)
+            return;
+        e.lastAttemptSecs = Utils.now().getTime() / 1000;
+        dirty = true;
+    }
+
+    /**
+     * Records that we connected to the given address, and how long the connection and handshake took. The address
+     * is added if it was not known, and moves to the tried table.
+     */
+    public synchronized void markGood(PeerAddress address, long latencyMillis) {
+        if (!isUsable(address.addr))
+            return;
+        long now = Utils.now().getTime() / 1000;
+        Entry e = entries.get(id(address));
+        if (e == null) {
+            e = new Entry(address.addr, portOf(address));
+            entries.put(id(address), e);
+        } else if (!e.tried) {
+            newTable.get(e.bucket).remove(e);
+        }
+        e.lastSeenSecs = e.lastSuccessSecs = e.lastAttemptSecs = now;
+        e.failures = 0;
+        int latency = (int) Math.min(latencyMillis, Integer.MAX_VALUE);
+        e.latencyMillis = e.latencyMillis < 0 ? latency : (e.latencyMillis + latency) / 2;
+        if (!e.tried)
+            placeTried(e);
+        dirty = true;
+    }
+
+    /** Records that connecting to the given address failed. */
+    public synchronized void markFailed(PeerAddress address) {
+        Entry e = entries.get(id(address));
+        if (e == null)
+            return;
+        e.lastAttemptSecs = Utils.now().getTime() / 1000;
+        e.failures++;
+        dirty = true;
+    }
+
+    /**
+     * Returns up to max addresses to connect to, best first. Addresses we connected to before come first, quickest
+     * first, then the most recently seen of the rest. Addresses that failed recently are left out.
+     */
+    public synchronized List<PeerAddress> getAddresses(int max) {
+        final long now = Utils.now().getTime() / 1000;
+        List<Entry> candidates = new ArrayList<Entry>();
+        for (Entry e : entries.values()) {
+            // An attempt that hasn't succeeded is either still going on or failed, so the address is held back.
+            long delay = 0;
+            if (e.lastAttemptSecs > e.lastSuccessSecs)
+                delay = Math.min(RETRY_DELAY_SECS << Math.min(Math.max(e.failures - 1, 0), 20), MAX_RETRY_DELAY_SECS);
+            if (now - e.lastAttemptSecs >= delay)
+                candidates.add(e);
+        }
+        Collections.sort(candidates, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.tried != b.tried)
+                    return a.tried ? -1 : 1;
+                if (a.failures != b.failures)
+                    return a.failures < b.failures ? -1 : 1;
+                if (a.tried && a.latencyMillis != b.latencyMillis) {
+                    // Unknown latency sorts last.
+                    long la = a.latencyMillis < 0 ? Long.MAX_VALUE : a.latencyMillis;
+                    long lb = b.latencyMillis < 0 ? Long.MAX_VALUE : b.latencyMillis;
+                    return la < lb ? -1 : 1;
+                }
+                return a.lastSeenSecs > b.lastSeenSecs ? -1 : (a.lastSeenSecs == b.lastSeenSecs ? 0 : 1);
+            }
+        });
+        List<PeerAddress> result = new ArrayList<PeerAddress>(Math.min(max, candidates.size()));
+        for (Entry e : candidates) {
+            if (result.size() >= max)
+                break;
+            PeerAddress address = new PeerAddress(e.addr, e.port);
+            address.services = BigInteger.valueOf(e.services);
+            result.add(address);
+        }
+        return result;
+    }
+
+    /** Returns how many addresses are known. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Writes the database to its file, if anything changed since it was last written. */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + entries.size() * Entry.SIZE);
+        buf.putInt(FILE_MAGIC);
+        buf.put(FILE_FORMAT_VERSION);
+        buf.putLong(key);
+        buf.putInt(entries.size());
+        for (Entry e : entries.values())
+            e.write(buf);
+        // Written to the side and moved into place, so a crash part way through leaves the old file intact.
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buf.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // Windows won't rename over an existing file.
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+        dirty = false;
+    }
+
+    private void placeNew(Entry e, InetAddress source) {
+        long sourceGroup = group(source);
+        long slot = hash(group(e.addr), sourceGroup) % NEW_BUCKETS_PER_SOURCE_GROUP;
+        e.tried = false;
+        e.bucket = (int) (hash(sourceGroup, slot) % NEW_BUCKETS);
+        List<Entry> bucket = newTable.get(e.bucket);
+        if (bucket.size() >= BUCKET_SIZE) {
+            // Make way for it by dropping the address least likely to be useful.
+            Entry worst = bucket.get(0);
+            for (Entry other : bucket) {
+                if (other.failures > worst.failures ||
+                        (other.failures == worst.failures && other.lastSeenSecs < worst.lastSeenSecs))
+                    worst = other;
+            }
+            bucket.remove(worst);
+            entries.remove(new InetSocketAddress(worst.addr, worst.port));
+        }
+        bucket.add(e);
+        entries.put(new InetSocketAddress(e.addr, e.port), e);
+    }
+
+    private void placeTried(Entry e) {
+        long slot = hash(group(e.addr), ((long) Arrays.hashCode(e.addr.getAddress()) << 16) | e.port) %
+                TRIED_BUCKETS_PER_GROUP;
+        e.tried = true;
+        e.bucket = (int) (hash(group(e.addr), slot) % TRIED_BUCKETS);
+        List<Entry> bucket = triedTable.get(e.bucket);
+        if (bucket.size() >= BUCKET_SIZE) {
+            // The address that worked longest ago goes back to the new table.
+            Entry oldest = bucket.get(0);
+            for (Entry other : bucket) {
+                if (other.lastSuccessSecs < oldest.lastSuccessSecs)
+                    oldest = other;
+            }
+            bucket.remove(oldest);
+            placeNew(oldest, oldest.addr);
+        }
+        bucket.add(e);
+    }
+
+    private int countTried() {
+        int count = 0;
+        for (List<Entry> bucket : triedTable)
+            count += bucket.size();
+        return count;
+    }
+
+    private int portOf(PeerAddress address) {
+        return address.port > 0 ? address.port : params.port;
+    }
+
+    private InetSocketAddress id(PeerAddress address) {
+        return new InetSocketAddress(address.addr, portOf(address));
+    }
+
+    private static boolean isUsable(InetAddress addr) {
+        return !addr.isAnyLocalAddress() && !addr.isMulticastAddress();
+    }
+
+    /** Returns the network group of an address: the /16 for IPv4, the /32 for IPv6. */
+    private static long group(InetAddress addr) {
+        byte[] ip = addr.getAddress();
+        if (ip.length == 4)
+            return (4L << 32) | ((ip[0] & 0xFF) << 8) | (ip[1] & 0xFF);
+        return (6L << 32) | (Utils.readUint32BE(ip, 0));
+    }
+
+    // Mixes the key and two values into a non-negative number. Not cryptographic, but unpredictable without the key.
+    private long hash(long a, long b) {
+        long x = key ^ (a * 0x9E3779B97F4A7C15L);
+        x = mix(x) ^ b;
+        return mix(x) & Long.MAX_VALUE;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -21,6 +21,8 @@
 
 package com.google.bitcoin.core;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -51,6 +53,13 @@ public class AddressMessage extends Message {
         }
     }
 
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        VarInt.write(addresses.size(), stream);
+        for (PeerAddress address : addresses)
+            address.bitcoinSerializeToStream(stream);
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
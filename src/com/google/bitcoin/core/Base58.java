@@ -56,57 +56,125 @@ import java.util.Arrays;
  */
 public class Base58 {
     private static final String ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
-    private static final BigInteger BASE = BigInteger.valueOf(58);
+    private static final char[] ALPHABET_CHARS = ALPHABET.toCharArray();
+    private static final char ENCODED_ZERO = ALPHABET_CHARS[0];
+    // Maps an ASCII character to its digit value, or -1 if it is not part of the alphabet.
+    private static final int[] INDEXES = new int[128];
 
+    static {
+        Arrays.fill(INDEXES, -1);
+        for (int i = 0; i < ALPHABET_CHARS.length; i++)
+            INDEXES[ALPHABET_CHARS[i]] = i;
+    }
+
+    /**
+     * Encodes the given bytes in base58. Leading zero bytes are each written as a leading '1', and no bytes at all
+     * as the empty string, so that {@link #decode(String)} gives back the input. The number is converted by repeated
+     * long division of a scratch copy of the input by 58, so no BigIntegers are created.
+     */
     public static String encode(byte[] input) {
-        // TODO: This could be a lot more efficient.
-        BigInteger bi = new BigInteger(1, input);
-        StringBuffer s = new StringBuffer();
-        while (bi.compareTo(BASE) >= 0) {
-            BigInteger mod = bi.mod(BASE);
-            s.insert(0, ALPHABET.charAt(mod.intValue()));
-            bi = bi.subtract(mod).divide(BASE);
-        }
-        s.insert(0, ALPHABET.charAt(bi.intValue()));
-        // Convert leading zeros too.
-        for (byte anInput : input) {
-            if (anInput == 0)
-                s.insert(0, ALPHABET.charAt(0));
-            else
-                break;
+        if (input.length == 0)
+            return "";
+        // Count leading zeros, they are encoded separately.
+        int zeros = 0;
+        while (zeros < input.length && input[zeros] == 0)
+            zeros++;
+        // The division is done in place, so work on a copy.
+        byte[] number = Arrays.copyOfRange(input, zeros, input.length);
+        // Upper bound on the output size: log(256) / log(58) is about 1.37.
+        char[] encoded = new char[zeros + number.length * 2];
+        int outputStart = encoded.length;
+        int inputStart = 0;
+        while (inputStart < number.length) {
+            encoded[--outputStart] = ALPHABET_CHARS[divmod(number, inputStart, 256, 58)];
+            if (number[inputStart] == 0)
+                inputStart++;  // Optimization: skip leading zeros of the shrinking quotient.
         }
-        return s.toString();
+        while (zeros-- > 0)
+            encoded[--outputStart] = ENCODED_ZERO;
+        return new String(encoded, outputStart, encoded.length - outputStart);
     }
 
     public static byte[] decode(String input) throws AddressFormatException {
-        byte[] bytes = decodeToBigInteger(input).toByteArray();
-        // We may have got one more byte than we wanted, if the high bit of the next-to-last byte was not zero. This
-        // is because BigIntegers are represented with twos-compliment notation, thus if the high bit of the last
-        // byte happens to be 1 another 8 zero bits will be added to ensure the number parses as positive. Detect
-        // that case here and chop it off.
-        boolean stripSignByte = bytes.length > 1 && bytes[0] == 0 && bytes[1] < 0;
-        // Count the leading zeros, if any.
-        int leadingZeros = 0;
-        for (int i = 0; input.charAt(i) == ALPHABET.charAt(0); i++) {
-            leadingZeros++;
+        if (input.length() == 0)
+            return new byte[0];
+        // Convert the characters to their base58 digit values first, checking them as we go.
+        byte[] input58 = new byte[input.length()];
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            int digit = c < 128 ? INDEXES[c] : -1;
+            if (digit < 0)
+                throw new AddressFormatException("Illegal character " + c + " at " + i);
+            input58[i] = (byte) digit;
+        }
+        // Count leading zeros, they are decoded separately.
+        int zeros = 0;
+        while (zeros < input58.length && input58[zeros] == 0)
+            zeros++;
+        // Convert from base58 to base256 by the same repeated long division used for encoding.
+        byte[] decoded = new byte[input.length()];
+        int outputStart = decoded.length;
+        int inputStart = zeros;
+        while (inputStart < input58.length) {
+            decoded[--outputStart] = (byte) divmod(input58, inputStart, 58, 256);
+            if (input58[inputStart] == 0)
+                inputStart++;
         }
-        // Now cut/pad correctly. Java 6 has a convenience for this, but Android can't use it.
-        byte[] tmp = new byte[bytes.length - (stripSignByte ? 1 : 0) + leadingZeros];
-        System.arraycopy(bytes, stripSignByte ? 1 : 0, tmp, leadingZeros, tmp.length - leadingZeros);
-        return tmp;
+        // Ignore extra leading zeroes that were added during the calculation, then restore the real ones.
+        while (outputStart < decoded.length && decoded[outputStart] == 0)
+            outputStart++;
+        return Arrays.copyOfRange(decoded, outputStart - zeros, decoded.length);
     }
 
     public static BigInteger decodeToBigInteger(String input) throws AddressFormatException {
-        BigInteger bi = BigInteger.valueOf(0);
-        // Work backwards through the string.
-        for (int i = input.length() - 1; i >= 0; i--) {
-            int alphaIndex = ALPHABET.indexOf(input.charAt(i));
-            if (alphaIndex == -1) {
-                throw new AddressFormatException("Illegal character " + input.charAt(i) + " at " + i);
-            }
-            bi = bi.add(BigInteger.valueOf(alphaIndex).multiply(BASE.pow(input.length() - 1 - i)));
+        return new BigInteger(1, decode(input));
+    }
+
+    /**
+     * Divides the number held in number[firstDigit..] (big endian, digits in the given base) by divisor, in place,
+     * and returns the remainder. Each digit must be less than base.
+     */
+    private static int divmod(byte[] number, int firstDigit, int base, int divisor) {
+        int remainder = 0;
+        for (int i = firstDigit; i < number.length; i++) {
+            int digit = number[i] & 0xFF;
+            int temp = remainder * base + digit;
+            number[i] = (byte) (temp / divisor);
+            remainder = temp % divisor;
         }
-        return bi;
+        return remainder;
+    }
+
+    /** Encodes each of the given byte arrays, see {@link #encode(byte[])}. */
+    public static String[] encode(byte[][] inputs) {
+        String[] results = new String[inputs.length];
+        for (int i = 0; i < inputs.length; i++)
+            results[i] = encode(inputs[i]);
+        return results;
+    }
+
+    /**
+     * Decodes each of the given strings, see {@link #decode(String)}.
+     *
+     * @throws AddressFormatException if any of the inputs is not valid base58.
+     */
+    public static byte[][] decode(String[] inputs) throws AddressFormatException {
+        byte[][] results = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++)
+            results[i] = decode(inputs[i]);
+        return results;
+    }
+
+    /**
+     * Checks and decodes each of the given strings, see {@link #decodeChecked(String)}.
+     *
+     * @throws AddressFormatException if any of the inputs is not base 58 or its checksum does not validate.
+     */
+    public static byte[][] decodeChecked(String[] inputs) throws AddressFormatException {
+        byte[][] results = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++)
+            results[i] = decodeChecked(inputs[i]);
+        return results;
     }
 
     /**
@@ -119,15 +187,12 @@ public class Base58 {
         byte[] tmp = decode(input);
         if (tmp.length < 4)
             throw new AddressFormatException("Input too short");
-        byte[] checksum = new byte[4];
-        System.arraycopy(tmp, tmp.length - 4, checksum, 0, 4);
-        byte[] bytes = new byte[tmp.length - 4];
-        System.arraycopy(tmp, 0, bytes, 0, tmp.length - 4);
-        tmp = Utils.doubleDigest(bytes);
-        byte[] hash = new byte[4];
-        System.arraycopy(tmp, 0, hash, 0, 4);
-        if (!Arrays.equals(hash, checksum))
-            throw new AddressFormatException("Checksum does not validate");
+        byte[] bytes = Arrays.copyOfRange(tmp, 0, tmp.length - 4);
+        byte[] hash = Utils.doubleDigest(bytes);
+        for (int i = 0; i < 4; i++) {
+            if (hash[i] != tmp[bytes.length + i])
+                throw new AddressFormatException("Checksum does not validate");
+        }
         return bytes;
     }
 }
@@ -45,8 +45,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static com.google.bitcoin.core.Utils.*;
@@ -62,7 +62,7 @@ import static com.google.bitcoin.core.Utils.*;
  *     <li>Message.bitcoinSerializeToStream() needs to be properly subclassed</li>
  * </ul><p>
  *
- * BitcoinSerializers can be given a map which will be locked during reading/deserialization. This is used to
+ * BitcoinSerializers can be given a {@link MessageDedupeCache}, which may be shared between them. This is used to
  * avoid deserializing identical messages more than once, which is helpful in memory-constrained environments like
  * smartphones.
  */
@@ -72,6 +72,7 @@ public class BitcoinSerializer {
 
     private NetworkParameters params;
     private boolean usesChecksumming;
+    private boolean parseLazy;
 
     private static Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>,String>();
 
@@ -86,27 +87,23 @@ public class BitcoinSerializer {
         names.put(VersionAck.class, "verack");
         names.put(GetBlocksMessage.class, "getblocks");
         names.put(GetAddrMessage.class, "getaddr");
+        names.put(GetHeadersMessage.class, "getheaders");
+        names.put(HeadersMessage.class, "headers");
     }
 
     /**
-     * A doubly-linked map of message-hash to counts. When a new message is received we increment the count in
-     * this list. The count isn't currently used, but will be helpful later to know how many peers relayed a
-     * particular transaction. We can use that as a heuristic to estimate validity.
+     * Hashes of recently received messages, with how often each was seen. The count isn't currently used, but will
+     * be helpful later to know how many peers relayed a particular transaction. We can use that as a heuristic to
+     * estimate validity.
      */
-    private LinkedHashMap<Sha256Hash, Integer> dedupeList;
+    private MessageDedupeCache dedupeCache;
 
-    /*
-     * Returns a {@link LinkedHashMap} that evicts old entries, making it suitable for passing to the constructor
-     * if you wish to use message deduplication.
+    /**
+     * Returns a new {@link MessageDedupeCache} of the default size, suitable for passing to the constructor if you
+     * wish to use message deduplication.
      */
-    public static LinkedHashMap<Sha256Hash, Integer> createDedupeList() {
-        return new LinkedHashMap<Sha256Hash, Integer>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Integer> entry) {
-                // Keep 100 message hashcodes in the list. This choice is fairly arbitrary.
-                return size() > 100;
-            }
-        };
+    public static MessageDedupeCache createDedupeCache() {
+        return new MessageDedupeCache();
     }
 
     /**
@@ -114,12 +111,13 @@ public class BitcoinSerializer {
      *
      * @param params networkParams used to create Messages instances and termining packetMagic
      * @param usesChecksumming set to true if checkums should be included and expected in headers
+     * @param dedupeCache cache used to skip messages already received, possibly shared with other serializers, or
+     * null to parse every message
      */
-    public BitcoinSerializer(NetworkParameters params, boolean usesChecksumming,
-                             LinkedHashMap<Sha256Hash, Integer> dedupeList) {
+    public BitcoinSerializer(NetworkParameters params, boolean usesChecksumming, MessageDedupeCache dedupeCache) {
         this.params = params;
         this.usesChecksumming = usesChecksumming;
-        this.dedupeList = dedupeList;
+        this.dedupeCache = dedupeCache;
     }
 
     public void setUseChecksumming(boolean usesChecksumming) {
@@ -130,6 +128,19 @@ public class BitcoinSerializer {
         return usesChecksumming;
     }
 
+    /**
+     * If set, blocks and transactions are parsed lazily: they keep a reference to the payload and only decode their
+     * inputs, outputs and scripts when those are accessed. Hashing and wallet relevance checks work from the raw
+     * bytes, which makes downloading blocks that don't concern us much cheaper.
+     */
+    public void setParseLazy(boolean parseLazy) {
+        this.parseLazy = parseLazy;
+    }
+
+    public boolean getParseLazy() {
+        return parseLazy;
+    }
+
     /**
      * Provides the expected header length, which varies depending on whether checksumming is used.
      * Header length includes 4 byte magic number.
@@ -142,35 +153,42 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
-        String name = names.get(message.getClass());
-        if (name == null) {
-            throw new Error("BitcoinSerializer doesn't currently know how to serialize "+ message.getClass());
-        }
-
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + (usesChecksumming ? 4 : 0)];
-
-        uint32ToByteArrayBE(params.packetMagic, header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
+        String name = getCommand(message);
         byte[] payload = message.bitcoinSerialize();
+        ByteBuffer header = ByteBuffer.allocate(getHeaderLength());
+        writeHeader(name, payload.length, usesChecksumming ? doubleDigest(payload) : null, header);
 
-        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LEN);
-
-        if (usesChecksumming) {
-            byte[] hash = doubleDigest(payload);
-            System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        }
-
-        out.write(header);
+        out.write(header.array());
         out.write(payload);
 
         if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(payload));
+            log.debug("Sending {} message: {}", name, bytesToHexString(header.array()) + bytesToHexString(payload));
+    }
+
+    /** Returns the command name that identifies the given message on the wire. */
+    String getCommand(Message message) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize "+ message.getClass());
+        }
+        return name;
+    }
+
+    /**
+     * Puts a {@link #getHeaderLength()} byte message header into buf at its current position. payloadHash is the
+     * double SHA-256 of the payload. It is only needed when checksumming is on, and may be null otherwise.
+     */
+    void writeHeader(String command, int payloadLength, byte[] payloadHash, ByteBuffer buf) {
+        buf.putInt((int) params.packetMagic);
+        // The command is NULL padded to COMMAND_LEN bytes.
+        for (int i = 0; i < COMMAND_LEN; i++)
+            buf.put(i < command.length() ? (byte) (command.codePointAt(i) & 0xFF) : 0);
+        buf.put((byte) payloadLength);
+        buf.put((byte) (payloadLength >> 8));
+        buf.put((byte) (payloadLength >> 16));
+        buf.put((byte) (payloadLength >> 24));
+        if (usesChecksumming)
+            buf.put(payloadHash, 0, 4);
     }
 
     /**
@@ -213,6 +231,14 @@ public class BitcoinSerializer {
         return new BitcoinPacketHeader(usesChecksumming, in);
     }
 
+    /**
+     * Parses a header that has already been read into a byte array, starting just after the magic bytes. The array
+     * must be {@link #getHeaderLength()} - 4 bytes long.
+     */
+    BitcoinPacketHeader deserializeHeader(byte[] header) throws ProtocolException {
+        return new BitcoinPacketHeader(header);
+    }
+
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      * {@link BitcoinSerializer#deserializeHeader}. If the deduping feature is active, may return NULL if the
@@ -221,39 +247,31 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, InputStream in) throws ProtocolException, IOException {
         int readCursor = 0;
         byte[] payloadBytes = new byte[header.size];
-        while (readCursor < payloadBytes.length - 1) {
+        while (readCursor < payloadBytes.length) {
             int bytesRead = in.read(payloadBytes, readCursor, header.size - readCursor);
             if (bytesRead == -1) {
                 throw new IOException("Socket is disconnected");
             }
             readCursor += bytesRead;
         }
+        return deserializePayload(header, payloadBytes);
+    }
 
-        // Check for duplicates. This is to avoid the cost (cpu and memory) of parsing the message twice, which can
-        // be an issue on constrained devices.
-        if (dedupeList != null && canDedupeMessageType(header.command)) {
-            // We use a secure hash here rather than the faster and simpler array hashes because otherwise a malicious
-            // node on the network could broadcast a message designed to mask a different message. They would not
-            // necessarily have to be connected directly to this program.
-            synchronized (dedupeList) {
-                // Calculate hash inside the lock to avoid unnecessary battery power spent on hashing messages arriving
-                // on different threads simultaneously.
-                Sha256Hash hash = Sha256Hash.create(payloadBytes);
-                Integer count = dedupeList.get(hash);
-                if (count != null) {
-                    int newCount = count + 1;
-                    log.info("Received duplicate {} message, now seen {} times", header.command, newCount);
-                    dedupeList.put(hash, newCount);
-                    return null;
-                } else {
-                    dedupeList.put(hash, 1);
-                }
-            }
-        }
+    /**
+     * Deserializes a payload that has already been read in full. The resulting message may keep a reference to
+     * payloadBytes, so the caller must not reuse the array. If the deduping feature is active, may return NULL if
+     * the message was seen before.
+     */
+    Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        // The double hash of the payload serves both to verify the checksum and as the key for deduplication. For a
+        // transaction it is also the transaction hash, so that is passed along rather than calculated again.
+        boolean dedupe = dedupeCache != null && canDedupeMessageType(header.command);
+        byte[] hash = null;
+        if (usesChecksumming || dedupe)
+            hash = doubleDigest(payloadBytes);
 
         // Verify the checksum.
         if (usesChecksumming) {
-            byte[] hash = doubleDigest(payloadBytes);
             if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                     header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
                 throw new ProtocolException("Checksum failed to verify, actual " +
@@ -262,6 +280,16 @@ public class BitcoinSerializer {
             }
         }
 
+        // Check for duplicates. This is to avoid the cost (cpu and memory) of parsing the message twice, which can
+        // be an issue on constrained devices.
+        if (dedupe) {
+            int count = dedupeCache.recordSeen(hash);
+            if (count > 1) {
+                log.info("Received duplicate {} message, now seen {} times", header.command, count);
+                return null;
+            }
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", new Object[]{
                     header.size,
@@ -271,7 +299,10 @@ public class BitcoinSerializer {
         }
 
         try {
-            return makeMessage(header.command, payloadBytes);
+            Message message = makeMessage(header.command, payloadBytes);
+            if (hash != null && message instanceof Transaction)
+                ((Transaction) message).hash = new Sha256Hash(reverseBytes(hash));
+            return message;
         } catch (Exception e) {
             throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
         }
@@ -284,17 +315,19 @@ public class BitcoinSerializer {
         } else if (command.equals("inv")) {
             return new InventoryMessage(params, payloadBytes);
         } else if (command.equals("block")) {
-            return new Block(params, payloadBytes);
+            return new Block(params, payloadBytes, parseLazy);
         } else if (command.equals("getdata")) {
             return new GetDataMessage(params, payloadBytes);
         } else if (command.equals("tx")) {
-            return new Transaction(params, payloadBytes);
+            return new Transaction(params, payloadBytes, 0, parseLazy);
         } else if (command.equals("addr")) {
             return new AddressMessage(params, payloadBytes);
         } else if (command.equals("ping")) {
             return new Ping();
         } else if (command.equals("verack")) {
             return new VersionAck(params, payloadBytes);
+        } else if (command.equals("headers")) {
+            return new HeadersMessage(params, payloadBytes);
         } else {
             throw new ProtocolException("No support for deserializing message with name " + command);
         }
@@ -325,6 +358,20 @@ public class BitcoinSerializer {
         }
     }
 
+    private byte[] readHeader(InputStream in) throws IOException {
+        byte[] header = new byte[getHeaderLength() - 4];
+        int readCursor = 0;
+        while (readCursor < header.length) {
+            int bytesRead = in.read(header, readCursor, header.length - readCursor);
+            if (bytesRead == -1) {
+                // There's no more data to read.
+                throw new IOException("Incomplete packet in underlying stream");
+            }
+            readCursor += bytesRead;
+        }
+        return header;
+    }
+
     public class BitcoinPacketHeader {
         final byte[] header;
         final String command;
@@ -332,17 +379,11 @@ public class BitcoinSerializer {
         final byte[] checksum;
 
         BitcoinPacketHeader(boolean usesCheckSumminng, InputStream in) throws ProtocolException, IOException {
-            header = new byte[COMMAND_LEN + 4 + (usesChecksumming ? 4 : 0)];
-            int readCursor = 0;
-            while (readCursor < header.length) {
-                int bytesRead = in.read(header, readCursor, header.length - readCursor);
-                if (bytesRead == -1) {
-                    // There's no more data to read.
-                    throw new IOException("Incomplete packet in underlying stream");
-                }
-                readCursor += bytesRead;
-            }
+            this(readHeader(in));
+        }
 
+        BitcoinPacketHeader(byte[] header) throws ProtocolException {
+            this.header = header;
             int cursor = 0;
 
             // The command is a NULL terminated string, unless the command fills all twelve bytes
@@ -361,7 +402,7 @@ public class BitcoinSerializer {
             size = (int) readUint32(header, cursor);
             cursor += 4;
 
-            if (size > Message.MAX_SIZE)
+            if (size < 0 || size > Message.MAX_SIZE)
                 throw new ProtocolException("Message size too large: " + size);
 
             // Old clients don't send the checksum.
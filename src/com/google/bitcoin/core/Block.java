@@ -43,6 +43,7 @@ import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -100,6 +101,14 @@ public class Block extends Message {
         super(params, payloadBytes, 0);
     }
 
+    /**
+     * Constructs a block object from the BitCoin wire format. If parseLazy is true the transactions refer to the
+     * payload and only decode their inputs and outputs when they are accessed.
+     */
+    public Block(NetworkParameters params, byte[] payloadBytes, boolean parseLazy) throws ProtocolException {
+        super(params, payloadBytes, 0, NetworkParameters.PROTOCOL_VERSION, parseLazy);
+    }
+
     private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
         ois.defaultReadObject();
         // This code is not actually necessary, as transient fields are initialized to the default value which is in
@@ -115,7 +124,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
         
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, 0, cursor)));
+        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor - offset)));
 
         if (cursor == bytes.length) {
             // This message is just a header, it has no transactions.
@@ -125,16 +134,29 @@ public class Block extends Message {
         int numTransactions = (int) readVarInt();
         transactions = new ArrayList<Transaction>(numTransactions);
         for (int i = 0; i < numTransactions; i++) {
-            Transaction tx = new Transaction(params, bytes, cursor);
+            Transaction tx = new Transaction(params, bytes, cursor, parseLazy);
+            tx.setParentBlock(this);
             transactions.add(tx);
             cursor += tx.getMessageSize();
         }
     }
 
+    @Override
+    boolean shouldCacheBytes() {
+        return true;
+    }
+
+    @Override
+    void parseLite() throws ProtocolException {
+        // The header is small and always needed, and in lazy mode each transaction only walks its own structure, so
+        // there is nothing worth deferring at the block level.
+        parse();
+    }
+
     private void writeHeader(OutputStream stream) throws IOException {
         Utils.uint32ToByteStreamLE(version, stream);
-        stream.write(Utils.reverseBytes(prevBlockHash.getBytes()));
-        stream.write(Utils.reverseBytes(getMerkleRoot().getBytes()));
+        stream.write(prevBlockHash.getReversedBytes());
+        stream.write(getMerkleRoot().getReversedBytes());
         Utils.uint32ToByteStreamLE(time, stream);
         Utils.uint32ToByteStreamLE(difficultyTarget, stream);
         Utils.uint32ToByteStreamLE(nonce, stream);
@@ -145,9 +167,9 @@ public class Block extends Message {
         writeHeader(stream);
         // We may only have enough data to write the header.
         if (transactions == null) return;
-        stream.write(new VarInt(transactions.size()).encode());
+        VarInt.write(transactions.size(), stream);
         for (Transaction tx : transactions) {
-            tx.bitcoinSerializeToStream(stream);
+            tx.bitcoinSerialize(stream);
         }
     }
 
@@ -295,8 +317,8 @@ public class Block extends Message {
             throw new VerificationException("Block too far in future");
     }
     
-    private void checkMerkleRoot() throws VerificationException {
-        Sha256Hash calculatedRoot = calculateMerkleRoot();
+    private void checkMerkleRoot(ExecutorService executor) throws VerificationException {
+        Sha256Hash calculatedRoot = new MerkleTree(transactions, executor).getRoot();
         if (!calculatedRoot.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
             throw new VerificationException("Merkle hashes do not match: " +
@@ -305,62 +327,17 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
+        // The tree structure, and why it is useful, is described in MerkleTree.
+        return new MerkleTree(transactions).getRoot();
     }
 
-    private List<byte[]> buildMerkleTree() {
-        // The Merkle root is based on a tree of hashes calculated from the transactions:
-        //
-        //            root
-        //             / \
-        //            /   \
-        //          A      B
-        //         / \    / \
-        //        t1 t2  t3 t4
-        //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each entry is a hash.
-        //
-        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the
-        // transaction. The interior nodes are hashes of the concenation of the two child hashes.
-        //
-        // This structure allows the creation of proof that a transaction was included into a block without having to
-        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
-        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
-        // derive the root, which can be checked against the block header. These proofs aren't used right now but
-        // will be helpful later when we want to download partial block contents.
-        //
-        // Note that if the number of transactions is not even the last tx is repeated to make it so (see
-        // tx3 above). A tree with 5 transactions would look like this:
-        //
-        //                root
-        //                /  \
-        //              1     \
-        //            /  \     \
-        //          2     3     4
-        //         / \   / \   /  \
-        //       t1 t2  t3 t4  t5 t5
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0;  // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+    /**
+     * Returns the Merkle branch that proves the transaction at the given index is in this block. Together with the
+     * transaction hash it can be checked against just the header, using
+     * {@link MerkleTree#verifyBranch(Sha256Hash, List, int, Sha256Hash)} with {@link #getMerkleRoot()}.
+     */
+    public List<Sha256Hash> getMerkleBranch(int txIndex) {
+        return new MerkleTree(transactions).getBranch(txIndex);
     }
 
     private void checkTransactions() throws VerificationException {
@@ -397,13 +374,22 @@ public class Block extends Message {
      * @throws VerificationException
      */
     public void verifyTransactions() throws VerificationException {
+        verifyTransactions(null);
+    }
+
+    /**
+     * Checks the block contents as {@link #verifyTransactions()} does. If executor is not null, the Merkle tree of a
+     * large block is hashed in parallel on it.
+     * @throws VerificationException
+     */
+    public void verifyTransactions(ExecutorService executor) throws VerificationException {
         // Now we need to check that the body of the block actually matches the headers. The network won't generate
         // an invalid block, but if we didn't validate this then an untrusted man-in-the-middle could obtain the next
         // valid block from the network and simply replace the transactions in it with their own fictional
         // transactions that reference spent or non-existant inputs.
         assert transactions.size() > 0;
         checkTransactions();
-        checkMerkleRoot();
+        checkMerkleRoot(executor);
     }
 
     /**
@@ -435,21 +421,42 @@ public class Block extends Message {
 
     /** Exists only for unit testing. */
     void setMerkleRoot(Sha256Hash value) {
+        unCache();
         merkleRoot = value;
         hash = null;
     }
 
+    /**
+     * Returns the transactions in this block, or null if it holds only the header. When the block was parsed lazily
+     * the transactions are not decoded until their contents are accessed.
+     */
+    List<Transaction> getTransactions() {
+        return transactions;
+    }
+
     /** Adds a transaction to this block. */
     void addTransaction(Transaction t) {
+        unCache();
         if (transactions == null) {
             transactions = new ArrayList<Transaction>();
         }
+        t.setParentBlock(this);
         transactions.add(t);
         // Force a recalculation next time the values are needed.
         merkleRoot = null;
         hash = null;
     }
 
+    /**
+     * Called by a transaction of this block before it changes, as the cached bytes, merkle root and hash no longer
+     * match it.
+     */
+    void transactionChanged() {
+        unCache();
+        merkleRoot = null;
+        hash = null;
+    }
+
     /** Returns the version of the block data structure as defined by the BitCoin protocol. */
     public long getVersion() {
         return version;
@@ -461,6 +468,7 @@ public class Block extends Message {
     }
 
     void setPrevBlockHash(Sha256Hash prevBlockHash) {
+        unCache();
         this.prevBlockHash = prevBlockHash;
         this.hash = null;
     }
@@ -474,6 +482,7 @@ public class Block extends Message {
     }
 
     void setTime(long time) {
+        unCache();
         this.time = time;
         this.hash = null;
     }
@@ -488,6 +497,7 @@ public class Block extends Message {
     }
 
     void setDifficultyTarget(long compactForm) {
+        unCache();
         this.difficultyTarget = compactForm;
         this.hash = null;
     }
@@ -501,6 +511,7 @@ public class Block extends Message {
     }
 
     void setNonce(long nonce) {
+        unCache();
         this.nonce = nonce;
         this.hash = null;
     }
@@ -513,6 +524,7 @@ public class Block extends Message {
 
     /** Adds a coinbase transaction to the block. This exists for unit tests. */
     void addCoinbaseTransaction(byte[] pubKeyTo) {
+        unCache();
         transactions = new ArrayList<Transaction>();
         Transaction coinbase = new Transaction(params);
         // A real coinbase transaction has some stuff in the scriptSig like the extraNonce and difficulty. The
@@ -522,6 +534,7 @@ public class Block extends Message {
         // counter in the scriptSig so every transaction has a different hash.
         coinbase.inputs.add(new TransactionInput(params, coinbase, new byte[] { (byte) txCounter++ } ));
         coinbase.outputs.add(new TransactionOutput(params, coinbase, Script.createOutputScript(pubKeyTo)));
+        coinbase.setParentBlock(this);
         transactions.add(coinbase);
     }
 
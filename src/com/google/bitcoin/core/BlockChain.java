@@ -39,6 +39,7 @@ package com.google.bitcoin.core;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
@@ -92,6 +93,17 @@ public class BlockChain {
     // were downloading the block chain.
     private final ArrayList<Block> unconnectedBlocks = new ArrayList<Block>();
 
+    // Best chain blocks for building block locators. Filled in on demand, see getBlockLocator.
+    private final BlockLocatorIndex locatorIndex = new BlockLocatorIndex();
+    // The furthest the locator index walks back through the block store in one go. It only walks that far the first
+    // time after startup, and more blocks than this never separate two locators or the two sides of a fork.
+    private static final int MAX_LOCATOR_WALK = 2016;
+
+    // If set, the signatures of transactions relevant to our wallets are checked before they are accepted.
+    private TransactionVerifier transactionVerifier;
+    // If set, the Merkle trees of large blocks are hashed in parallel on this.
+    private ExecutorService verificationExecutor;
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -135,6 +147,25 @@ public class BlockChain {
         wallets.add(wallet);
     }
 
+    /**
+     * Sets a verifier that checks the input scripts of the transactions in each block that are relevant to our
+     * wallets, for those inputs that spend transactions already in a wallet. A block with a transaction that fails
+     * is rejected. By default no scripts are checked, and presence in a block with enough work on it is taken as
+     * proof that a transaction is valid. Pass null to go back to that.
+     */
+    public synchronized void setTransactionVerifier(TransactionVerifier verifier) {
+        transactionVerifier = verifier;
+    }
+
+    /**
+     * Sets an executor on which the Merkle trees of large blocks are hashed in parallel when their contents are
+     * checked, see {@link Block#verifyTransactions(ExecutorService)}. Pass null, the default, to hash them on the
+     * thread that adds the block.
+     */
+    public synchronized void setVerificationExecutor(ExecutorService executor) {
+        verificationExecutor = executor;
+    }
+
     /**
      * Processes a received block and tries to add it to the chain. If there's something wrong with the block an
      * exception is thrown. If the block is OK but cannot be connected to the chain at this time, returns false.
@@ -149,6 +180,26 @@ public class BlockChain {
         }
     }
 
+    /**
+     * Adds a block header, such as one from a {@link HeadersMessage}, to the chain. The header is verified and
+     * connected in the same way as a block, but there are no transactions to give to the wallets. Use it only for
+     * blocks that cannot be relevant to any wallet, for instance because they are older than all of its keys. Returns
+     * the same as {@link #add(Block)}.
+     */
+    public synchronized boolean addHeader(Block header) throws VerificationException {
+        if (header.getTransactions() != null)
+            header = header.cloneAsHeader();
+        try {
+            return add(header, true);
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        } catch (ScriptException e) {
+            // Cannot happen, there are no scripts in a header.
+            throw new RuntimeException(e);
+        }
+    }
+
     // Stat counters.
     private long statsLastTime = System.currentTimeMillis();
     private long statsBlocksAdded;
@@ -172,7 +223,7 @@ public class BlockChain {
         // a lot of time for big blocks.
         boolean contentsImportant = false;
         HashMap<Wallet, List<Transaction>> walletToTxMap = new HashMap<Wallet, List<Transaction>>();;
-        if (block.transactions != null) {
+        if (block.getTransactions() != null) {
             scanTransactions(block, walletToTxMap);
             contentsImportant = walletToTxMap.size() > 0;
         }
@@ -183,8 +234,11 @@ public class BlockChain {
         // article here for more details: http://code.google.com/p/bitcoinj/wiki/SecurityModel
         try {
             block.verifyHeader();
-            if (contentsImportant)
-                block.verifyTransactions();
+            if (contentsImportant) {
+                block.verifyTransactions(verificationExecutor);
+                if (transactionVerifier != null)
+                    verifyScripts(block, walletToTxMap);
+            }
         } catch (VerificationException e) {
             log.error("Failed to verify block: ", e);
             log.error(block.getHashAsString());
@@ -209,7 +263,8 @@ public class BlockChain {
             StoredBlock newStoredBlock = storedPrev.build(block);
             checkDifficultyTransitions(storedPrev, newStoredBlock);
             blockStore.put(newStoredBlock);
-            connectBlock(newStoredBlock, storedPrev, walletToTxMap);
+            // A bare header has no transactions for the wallets to see.
+            connectBlock(newStoredBlock, storedPrev, block.getTransactions() != null ? walletToTxMap : null);
         }
 
         if (tryConnecting)
@@ -244,8 +299,7 @@ public class BlockChain {
                           splitPointHash, newStoredBlock);
             }
 
-            // We may not have any transactions if we received only a header. That never happens today but will in
-            // future when getheaders is used as an optimization.
+            // We may not have any transactions if we received only a header, see addHeader.
             if (newTransactions != null) {
                 sendTransactionsToWallet(newStoredBlock, NewBlockType.SIDE_CHAIN, newTransactions);
             }
@@ -439,38 +493,39 @@ public class BlockChain {
                     receivedDifficulty.toString(16) + " vs " + newDifficulty.toString(16));
     }
 
+    private void verifyScripts(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap)
+            throws VerificationException {
+        // Relevant transactions may spend earlier ones in the same block, or ones already in a wallet.
+        Map<Sha256Hash, Transaction> previous = new HashMap<Sha256Hash, Transaction>();
+        for (Transaction tx : block.getTransactions())
+            previous.put(tx.getHash(), tx);
+        for (Wallet wallet : walletToTxMap.keySet()) {
+            synchronized (wallet) {
+                previous.putAll(wallet.unspent);
+                previous.putAll(wallet.spent);
+                previous.putAll(wallet.pending);
+            }
+        }
+        // A transaction relevant to several wallets only needs checking once.
+        Set<Transaction> relevant = new LinkedHashSet<Transaction>();
+        for (List<Transaction> txns : walletToTxMap.values())
+            relevant.addAll(txns);
+        int checked = transactionVerifier.verify(new ArrayList<Transaction>(relevant), previous);
+        log.debug("Verified {} inputs of {} relevant transactions", checked, relevant.size());
+    }
+
     /**
      * For the transactions in the given block, update the txToWalletMap such that each wallet maps to a list of
      * transactions for which it is relevant.
      */
     private void scanTransactions(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap)
             throws VerificationException {
-        for (Transaction tx : block.transactions) {
+        for (Transaction tx : block.getTransactions()) {
             try {
                 for (Wallet wallet : wallets) {
-                    boolean shouldReceive = false;
-                    for (TransactionOutput output : tx.outputs) {
-                        // TODO: Handle more types of outputs, not just regular to address outputs.
-                        if (output.getScriptPubKey().isSentToIP()) continue;
-                        // This is not thread safe as a key could be removed between the call to isMine and receive.
-                        if (output.isMine(wallet)) {
-                            shouldReceive = true;
-                            break;
-                        }
-                    }
-
-                    // Coinbase transactions don't have anything useful in their inputs (as they create coins out of thin air).
-                    if (!shouldReceive && !tx.isCoinBase()) {
-                        for (TransactionInput i : tx.inputs) {
-                            byte[] pubkey = i.getScriptSig().getPubKey();
-                            // This is not thread safe as a key could be removed between the call to isPubKeyMine and receive.
-                            if (wallet.isPubKeyMine(pubkey)) {
-                                shouldReceive = true;
-                            }
-                        }
-                    }
-
-                    if (!shouldReceive) continue;
+                    // Lazily parsed transactions are checked against the raw bytes, so this stays cheap for the
+                    // vast majority that don't involve our keys.
+                    if (!tx.isRelevantTo(wallet)) continue;
                     List<Transaction> txList = walletToTxMap.get(wallet);
                     if (txList == null) {
                         txList = new LinkedList<Transaction>();
@@ -495,6 +550,33 @@ public class BlockChain {
     }
 
 
+    /**
+     * Returns a block locator for the current best chain: a list of block hashes starting at the chain head, with
+     * the ten most recent blocks then exponentially growing gaps, and ending with the genesis block. Sent in a
+     * getblocks or getheaders message, it lets the peer find the last block we share even if we are on a fork, so
+     * only the blocks after that are sent again.
+     */
+    public synchronized List<Sha256Hash> getBlockLocator() {
+        try {
+            // Walk back from the head to the newest block the index already has on the same chain. Normally that is
+            // only the blocks added since the last locator, which are still in the block store's cache. After a
+            // re-organize the walk goes down to the fork point.
+            LinkedList<StoredBlock> newBlocks = new LinkedList<StoredBlock>();
+            StoredBlock cursor = chainHead;
+            while (cursor != null && newBlocks.size() < MAX_LOCATOR_WALK &&
+                    !locatorIndex.contains(cursor.getHeight(), cursor.getHeader().getHash())) {
+                newBlocks.addFirst(cursor);
+                cursor = cursor.getPrev(blockStore);
+            }
+            for (StoredBlock block : newBlocks)
+                locatorIndex.add(block.getHeight(), block.getHeader().getHash());
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        }
+        return locatorIndex.getLocator(params.genesisBlock.getHash());
+    }
+
     /**
      * Returns the most recent unconnected block or null if there are none. This will all have to change.
      */
@@ -0,0 +1,399 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Spreads block downloads over all the peers of a {@link PeerGroup}, rather than fetching every block from the one
+ * peer that is sending us the chain.<p>
+ *
+ * Block hashes announced to any peer are queued in the order they were announced, which during chain download is
+ * chain order. Each peer is asked for a share of them, at most {@link Peer#getMaxBlocksInFlight()} at a time. Blocks
+ * can arrive in any order, so they are held back until all the blocks before them have arrived, and then added to
+ * the block chain in order by the peer that announced them. That peer also continues the chain download if a block
+ * doesn't connect. A request that isn't answered within the timeout, or whose peer disconnects, is sent to another
+ * peer. A block that times out {@link #MAX_REQUEST_ATTEMPTS} times, or once the peer that announced it has gone, is
+ * given up on so it can't hold up the blocks behind it. If they then don't connect, the chain download asks for the
+ * missing blocks again.<p>
+ *
+ * If a slow peer holds up the next block, no more are asked for once {@link #MAX_BUFFERED_BLOCKS} are outstanding or
+ * waiting, which bounds the memory used.<p>
+ *
+ * Requests are sent, and blocks added to the chain, after the scheduler's lock is released, so a peer whose socket
+ * is slow to take writes doesn't hold up the others.<p>
+ *
+ * Blocks a peer sends without being asked, and those asked for with {@link Peer#getBlock(Sha256Hash)}, don't go
+ * through the scheduler.
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** The most blocks that may be asked for or waiting to be added to the chain at once, over all peers. */
+    static final int MAX_BUFFERED_BLOCKS = 256;
+    /** How long a peer gets to deliver a block before it is asked of another peer. */
+    static final long REQUEST_TIMEOUT_MILLIS = 30 * 1000;
+    /** How many times a block is asked for before it is given up on. */
+    static final int MAX_REQUEST_ATTEMPTS = 3;
+    private static final long TIMEOUT_CHECK_MILLIS = 1000;
+
+    private static class Send {
+        final Peer peer;
+        final GetDataMessage getdata;
+
+        Send(Peer peer, GetDataMessage getdata) {
+            this.peer = peer;
+            this.getdata = getdata;
+        }
+    }
+
+    private static class ChainAdd {
+        final Peer announcer;
+        final Block block;
+
+        ChainAdd(Peer announcer, Block block) {
+            this.announcer = announcer;
+            this.block = block;
+        }
+    }
+
+    private static class Request {
+        final Peer peer;
+        final long time;
+
+        Request(Peer peer, long time) {
+            this.peer = peer;
+            this.time = time;
+        }
+    }
+
+    // Connected peers, each with the blocks it has been asked for but not delivered yet.
+    private final Map<Peer, Set<Sha256Hash>> inFlight = new LinkedHashMap<Peer, Set<Sha256Hash>>();
+    // Outstanding requests by block hash.
+    private final Map<Sha256Hash, Request> requests = new HashMap<Sha256Hash, Request>();
+    // Blocks waiting to be requested, in chain order.
+    private final LinkedList<Sha256Hash> queue = new LinkedList<Sha256Hash>();
+    // The peer that last failed to deliver a block, which is avoided when asking again.
+    private final Map<Sha256Hash, Peer> lastFailedPeer = new HashMap<Sha256Hash, Peer>();
+    // How many requests for each block have timed out.
+    private final Map<Sha256Hash, Integer> timeouts = new HashMap<Sha256Hash, Integer>();
+
+    // Every scheduled block not yet added to the chain, in the order they must be added.
+    private final LinkedList<Sha256Hash> order = new LinkedList<Sha256Hash>();
+    private final Map<Sha256Hash, Peer> announcedBy = new HashMap<Sha256Hash, Peer>();
+    // Blocks that arrived before some of the blocks preceding them.
+    private final Map<Sha256Hash, Block> received = new HashMap<Sha256Hash, Block>();
+    // Blocks whose turn has come, waiting to be added to the chain in this order, and whether a thread is adding them.
+    private final LinkedList<ChainAdd> readyBlocks = new LinkedList<ChainAdd>();
+    private boolean addingBlocks;
+
+    private final NetworkParameters params;
+    private Timer timer;
+
+    BlockDownloadScheduler(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /** Starts sending block requests to the given peer. */
+    void addPeer(Peer peer) {
+        List<Send> sends;
+        synchronized (this) {
+            inFlight.put(peer, new HashSet<Sha256Hash>());
+            if (timer == null) {
+                timer = new Timer("Block download timeouts", true);
+                timer.schedule(new TimerTask() {
+                    public void run() {
+                        checkTimeouts();
+                    }
+                }, TIMEOUT_CHECK_MILLIS, TIMEOUT_CHECK_MILLIS);
+            }
+            sends = dispatch();
+        }
+        send(sends);
+    }
+
+    /** Stops using the given peer, and asks other peers for the blocks it had not delivered. */
+    void removePeer(Peer peer) {
+        List<Send> sends;
+        synchronized (this) {
+            Set<Sha256Hash> lost = inFlight.remove(peer);
+            if (lost == null)
+                return;
+            for (Sha256Hash hash : lost)
+                requests.remove(hash);
+            requeue(lost);
+            sends = dispatch();
+        }
+        send(sends);
+    }
+
+    /**
+     * Returns true if fewer blocks are waiting to be asked for than the peers could take at once, meaning the next
+     * batch of the chain should be asked for now to keep them busy.
+     */
+    synchronized boolean isRunningLow() {
+        int capacity = 0;
+        for (Peer peer : inFlight.keySet())
+            capacity += peer.getMaxBlocksInFlight();
+        return queue.size() < capacity;
+    }
+
+    /**
+     * Returns true if a block is in flight to a peer other than the given one. Until it arrives, times out or is
+     * given up on, a chain that has stopped growing may be waiting on that peer rather than the given one.
+     */
+    synchronized boolean isWaitingOnOthers(Peer peer) {
+        for (Request request : requests.values()) {
+            if (request.peer != peer)
+                return true;
+        }
+        return false;
+    }
+
+    /** Stops the timeout checks. */
+    synchronized void shutdown() {
+        if (timer != null)
+            timer.cancel();
+        timer = null;
+    }
+
+    /**
+     * Schedules the given blocks, announced in an inv from the given peer, for download. Blocks already scheduled
+     * are ignored.
+     */
+    void enqueue(Peer announcer, List<Sha256Hash> hashes) {
+        List<Send> sends;
+        synchronized (this) {
+            for (Sha256Hash hash : hashes) {
+                if (announcedBy.containsKey(hash))
+                    continue;
+                announcedBy.put(hash, announcer);
+                order.add(hash);
+                queue.add(hash);
+            }
+            sends = dispatch();
+        }
+        send(sends);
+    }
+
+    /**
+     * Called by a peer when it receives a block. Returns false if the block was not scheduled here, in which case
+     * the peer should handle it as usual.
+     */
+    boolean blockReceived(Peer peer, Block block) {
+        Sha256Hash hash = block.getHash();
+        List<Send> sends;
+        synchronized (this) {
+            if (!announcedBy.containsKey(hash))
+                return false;
+            // It may come from a different peer than the one last asked, if an earlier request timed out.
+            Request request = requests.remove(hash);
+            if (request != null && request.peer == peer)
+                peer.getStats().blockResponse(System.currentTimeMillis() - request.time);
+            if (request != null) {
+                Set<Sha256Hash> peerRequests = inFlight.get(request.peer);
+                if (peerRequests != null)
+                    peerRequests.remove(hash);
+            }
+            queue.remove(hash);
+            received.put(hash, block);
+            collectReadyBlocks();
+            sends = dispatch();
+        }
+        send(sends);
+        addReadyBlocks();
+        return true;
+    }
+
+    // Moves blocks to readyBlocks for as long as the next one in chain order has arrived.
+    private void collectReadyBlocks() {
+        while (!order.isEmpty() && received.containsKey(order.getFirst())) {
+            Sha256Hash hash = order.removeFirst();
+            Block block = received.remove(hash);
+            Peer announcer = announcedBy.remove(hash);
+            forget(hash);
+            readyBlocks.add(new ChainAdd(announcer, block));
+        }
+    }
+
+    /**
+     * Adds the ready blocks to the chain in order, unless another thread already is, in which case it adds these too.
+     * Runs without the scheduler's lock, as adding a block can write to the announcer's socket.
+     */
+    private void addReadyBlocks() {
+        synchronized (this) {
+            if (addingBlocks)
+                return;
+            addingBlocks = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                ChainAdd add;
+                synchronized (this) {
+                    if (readyBlocks.isEmpty()) {
+                        addingBlocks = false;
+                        done = true;
+                        break;
+                    }
+                    add = readyBlocks.removeFirst();
+                }
+                try {
+                    add.announcer.addToChain(add.block);
+                } catch (IOException e) {
+                    // The announcer could not be asked for more blocks. If it disconnected, PeerGroup picks a new
+                    // peer to download the chain from.
+                    log.warn("Failed to continue the chain download from " + add.announcer, e);
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    addingBlocks = false;
+                }
+            }
+        }
+        // Taking blocks off readyBlocks may have made room for more requests.
+        List<Send> sends;
+        synchronized (this) {
+            sends = dispatch();
+        }
+        send(sends);
+    }
+
+    // Sends the requests dispatch() decided on. Must be called without the lock held.
+    private void send(List<Send> sends) {
+        for (Send send : sends) {
+            try {
+                send.peer.sendMessage(send.getdata);
+            } catch (IOException e) {
+                // The peer's own thread notices the broken connection, and removePeer hands its blocks to others.
+                log.warn("Failed to request blocks from " + send.peer, e);
+            }
+        }
+    }
+
+    // Drops the per block bookkeeping kept until a block is added or given up on.
+    private void forget(Sha256Hash hash) {
+        lastFailedPeer.remove(hash);
+        timeouts.remove(hash);
+    }
+
+    // Decides which peers with spare capacity to ask for the next blocks in the queue. The requests are recorded
+    // as made, and the caller sends them once it has released the lock.
+    private List<Send> dispatch() {
+        List<Send> sends = new ArrayList<Send>();
+        if (queue.isEmpty())
+            return sends;
+        for (Map.Entry<Peer, Set<Sha256Hash>> entry : inFlight.entrySet()) {
+            Peer peer = entry.getKey();
+            Set<Sha256Hash> peerRequests = entry.getValue();
+            int spare = Math.min(peer.getMaxBlocksInFlight() - peerRequests.size(),
+                    MAX_BUFFERED_BLOCKS - requests.size() - received.size() - readyBlocks.size());
+            if (spare <= 0)
+                continue;
+            GetDataMessage getdata = new GetDataMessage(params);
+            long now = System.currentTimeMillis();
+            for (Iterator<Sha256Hash> it = queue.iterator(); it.hasNext() && spare > 0; ) {
+                Sha256Hash hash = it.next();
+                // Don't go back to a peer that failed to deliver this block, unless it is the only one.
+                if (lastFailedPeer.get(hash) == peer && inFlight.size() > 1)
+                    continue;
+                it.remove();
+                getdata.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+                requests.put(hash, new Request(peer, now));
+                peerRequests.add(hash);
+                spare--;
+            }
+            if (getdata.getItems().isEmpty())
+                continue;
+            sends.add(new Send(peer, getdata));
+            if (queue.isEmpty())
+                break;
+        }
+        return sends;
+    }
+
+    private void checkTimeouts() {
+        List<Send> sends;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Set<Sha256Hash> expired = new HashSet<Sha256Hash>();
+            Set<Sha256Hash> abandoned = new HashSet<Sha256Hash>();
+            for (Iterator<Map.Entry<Sha256Hash, Request>> it = requests.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Sha256Hash, Request> entry = it.next();
+                Request request = entry.getValue();
+                if (now - request.time < REQUEST_TIMEOUT_MILLIS)
+                    continue;
+                it.remove();
+                Sha256Hash hash = entry.getKey();
+                Set<Sha256Hash> peerRequests = inFlight.get(request.peer);
+                if (peerRequests != null)
+                    peerRequests.remove(hash);
+                Integer count = timeouts.get(hash);
+                int attempts = count == null ? 1 : count + 1;
+                // Other peers may ignore a request for a stale block, so once its announcer has gone nobody will
+                // send it.
+                if (attempts >= MAX_REQUEST_ATTEMPTS || !inFlight.containsKey(announcedBy.get(hash))) {
+                    abandoned.add(hash);
+                } else {
+                    timeouts.put(hash, attempts);
+                    lastFailedPeer.put(hash, request.peer);
+                    expired.add(hash);
+                }
+            }
+            if (!abandoned.isEmpty()) {
+                log.warn("Giving up on {} blocks nobody sent, the chain download will ask for them again if needed",
+                        abandoned.size());
+                for (Sha256Hash hash : abandoned) {
+                    order.remove(hash);
+                    announcedBy.remove(hash);
+                    forget(hash);
+                }
+                // The blocks behind them may be ready now.
+                collectReadyBlocks();
+            }
+            if (expired.isEmpty() && abandoned.isEmpty())
+                return;
+            if (!expired.isEmpty())
+                log.info("{} block requests timed out, asking other peers", expired.size());
+            requeue(expired);
+            sends = dispatch();
+        }
+        send(sends);
+        addReadyBlocks();
+    }
+
+    // Puts the given blocks back at the front of the queue, in chain order, so they are asked for next.
+    private void requeue(Set<Sha256Hash> hashes) {
+        for (Iterator<Sha256Hash> it = order.descendingIterator(); it.hasNext(); ) {
+            Sha256Hash hash = it.next();
+            if (hashes.contains(hash))
+                queue.addFirst(hash);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the hashes of some blocks on the best chain, by height, so that block locators can be built without
+ * walking the block store all the way back to the genesis block.<p>
+ *
+ * A locator lists blocks from the chain head backwards: the most recent few one by one, then with exponentially
+ * growing gaps. A peer finds the first one it knows, so if we ended up on a fork, or our head is stale, only the
+ * blocks after the fork point get sent again. The index keeps exactly what such locators need: every block near
+ * the head, and a number of blocks per doubling of the distance from the head that stays constant, at heights that
+ * are multiples of ever larger powers of two. Because a block only ever gets further from the head, one that has
+ * been dropped is never needed again. So the index stays at a few hundred entries however long the chain grows,
+ * and it is kept up to date by adding each new best block.
+ */
+class BlockLocatorIndex {
+    // Blocks at least this close to the head are all kept.
+    private static final int DENSE_DISTANCE = 32;
+    // Roughly how many blocks are kept per doubling of the distance from the head, as a power of two.
+    private static final int BLOCKS_PER_OCTAVE_BITS = 4;
+    // Blocks listed one by one at the start of a locator. The official client uses the same number.
+    private static final int DENSE_LOCATOR_ENTRIES = 10;
+
+    private final TreeMap<Integer, Sha256Hash> hashes = new TreeMap<Integer, Sha256Hash>();
+
+    /**
+     * Records the block at the given height as the new head of the best chain. Anything at or above that height is
+     * assumed to be on a chain that is no longer the best one, and is forgotten. Blocks must be added in order of
+     * increasing height, with no gaps since the last block that is still in the index.
+     */
+    void add(int height, Sha256Hash hash) {
+        hashes.tailMap(height, true).clear();
+        hashes.put(height, hash);
+        Iterator<Map.Entry<Integer, Sha256Hash>> it = hashes.headMap(height - DENSE_DISTANCE, true).entrySet().iterator();
+        while (it.hasNext()) {
+            int h = it.next().getKey();
+            if (!shouldKeep(h, height - h))
+                it.remove();
+        }
+    }
+
+    /** Returns true if the index holds the given block at the given height. */
+    boolean contains(int height, Sha256Hash hash) {
+        return hash.equals(hashes.get(height));
+    }
+
+    /** Returns the height of the most recently added block, or -1 if the index is empty. */
+    int getHeadHeight() {
+        return hashes.isEmpty() ? -1 : hashes.lastKey();
+    }
+
+    // A block at distance d from the head, with 2^j <= d < 2^(j+1), is kept if its height is a multiple of
+    // 2^(j - BLOCKS_PER_OCTAVE_BITS). Height zero, the genesis block, always qualifies.
+    private static boolean shouldKeep(int height, int distance) {
+        if (distance < DENSE_DISTANCE)
+            return true;
+        int octave = 31 - Integer.numberOfLeadingZeros(distance);
+        int mask = (1 << (octave - BLOCKS_PER_OCTAVE_BITS)) - 1;
+        return (height & mask) == 0;
+    }
+
+    /**
+     * Builds a block locator from the index: the head and the blocks just below it, then blocks with gaps that
+     * double each time, and finally the given genesis hash.
+     */
+    List<Sha256Hash> getLocator(Sha256Hash genesisHash) {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>();
+        int step = 1;
+        int next = Integer.MAX_VALUE;
+        for (Map.Entry<Integer, Sha256Hash> entry : hashes.descendingMap().entrySet()) {
+            int height = entry.getKey();
+            if (height > next || height == 0)
+                continue;
+            locator.add(entry.getValue());
+            if (locator.size() >= DENSE_LOCATOR_ENTRIES)
+                step *= 2;
+            next = height - step;
+        }
+        locator.add(genesisHash);
+        return locator;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes the transaction hashes that the peers of a {@link PeerGroup} announce to the broadcasts waiting to see them.
+ * The same transaction can be broadcast again while an earlier broadcast of it is still running, and each is told.
+ */
+class BroadcastTracker {
+    // Synchronized on itself.
+    private final Map<Sha256Hash, List<TransactionBroadcast>> broadcasts =
+            new HashMap<Sha256Hash, List<TransactionBroadcast>>();
+
+    void add(TransactionBroadcast broadcast) {
+        synchronized (broadcasts) {
+            Sha256Hash hash = broadcast.getTransaction().getHash();
+            List<TransactionBroadcast> list = broadcasts.get(hash);
+            if (list == null) {
+                list = new ArrayList<TransactionBroadcast>(1);
+                broadcasts.put(hash, list);
+            }
+            list.add(broadcast);
+        }
+    }
+
+    void remove(TransactionBroadcast broadcast) {
+        synchronized (broadcasts) {
+            Sha256Hash hash = broadcast.getTransaction().getHash();
+            List<TransactionBroadcast> list = broadcasts.get(hash);
+            if (list == null)
+                return;
+            list.remove(broadcast);
+            if (list.isEmpty())
+                broadcasts.remove(hash);
+        }
+    }
+
+    /** Called by a peer with the transaction hashes of an inv it received. */
+    void transactionsAnnounced(Peer peer, List<Sha256Hash> hashes) {
+        for (Sha256Hash hash : hashes) {
+            List<TransactionBroadcast> waiting;
+            synchronized (broadcasts) {
+                if (broadcasts.isEmpty())
+                    return;
+                List<TransactionBroadcast> list = broadcasts.get(hash);
+                if (list == null)
+                    continue;
+                // Copied, as a broadcast that completes removes itself from the list.
+                waiting = new ArrayList<TransactionBroadcast>(list);
+            }
+            for (TransactionBroadcast broadcast : waiting)
+                broadcast.seen(peer);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of direct {@link ByteBuffer}s for network IO. Channels read into and write from direct buffers without
+ * the JDK copying through a temporary buffer of its own, but direct buffers are slow to allocate and only freed by
+ * the garbage collector, so they are recycled here rather than created per connection or per message.<p>
+ *
+ * A buffer must not be touched after it has been released. Buffers that are never released are simply collected.
+ */
+class ByteBufferPool {
+    /** Size of every pooled buffer. Large enough for any message header and most transactions. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // Beyond this many idle buffers, released ones are left to the garbage collector.
+    private static final int MAX_IDLE = 32;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+    // ConcurrentLinkedQueue.size() walks the queue, so the count is kept separately.
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private ByteBufferPool() {
+    }
+
+    /** Returns a cleared buffer of {@link #BUFFER_SIZE} bytes, taken from the pool if one is idle. */
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        idleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Hands a buffer obtained from {@link #acquire()} back to the pool. */
+    static void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() <= MAX_IDLE)
+            idle.offer(buffer);
+        else
+            idleCount.decrementAndGet();
+    }
+}
@@ -45,7 +45,9 @@ import java.security.SecureRandom;
 
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1OutputStream;
+import org.bouncycastle.asn1.ASN1TaggedObject;
 import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DEREncodable;
 import org.bouncycastle.asn1.DERInteger;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSequence;
@@ -60,11 +62,16 @@ import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECPoint;
 
 /**
  * Represents an elliptic curve keypair that we own and can use for signing transactions. Currently,
  * Bouncy Castle is used. In future this may become an interface with multiple implementations using different crypto
  * libraries. The class also provides a static method that can verify a signature with just the public key.<p>
+ *
+ * A key carries its own public key format. Keys default to the original 65 byte uncompressed encoding, so every
+ * address already handed out keeps working; a key created with the compressed flag set uses the 33 byte encoding
+ * instead, which changes its address and makes each input it signs roughly 32 bytes smaller.<p>
  */
 public class ECKey implements Serializable {
     private static final ECDomainParameters ecParams;
@@ -78,8 +85,15 @@ public class ECKey implements Serializable {
         ecParams = new ECDomainParameters(params.getCurve(), params.getG(), params.getN(),  params.getH());
     }
 
+    /** Length of a public key in the compressed encoding (one sign byte plus X). */
+    public static final int COMPRESSED_PUBKEY_LENGTH = 33;
+    /** Length of a public key in the uncompressed encoding (one prefix byte plus X and Y). */
+    public static final int UNCOMPRESSED_PUBKEY_LENGTH = 65;
+
     private final BigInteger priv;
     public byte[] pub;
+    // Wallets written before this field existed deserialize it as false, which is what their pub bytes are.
+    private boolean compressed;
     
     transient private byte[] pubKeyHash;
     
@@ -93,6 +107,15 @@ public class ECKey implements Serializable {
      * @param random Secure source of randomness which adheres to SecureRandom.
      */
     public ECKey(SecureRandom random) {
+    	this(random, false);
+    }
+
+    /**
+     * Generates a new keypair based on a specified source of randomness.
+     * @param random Secure source of randomness which adheres to SecureRandom.
+     * @param compressed Whether the public key should use the 33 byte compressed encoding.
+     */
+    public ECKey(SecureRandom random, boolean compressed) {
     	secureRandom = random;
     	ECKeyPairGenerator generator = new ECKeyPairGenerator();
         ECKeyGenerationParameters keygenParams = new ECKeyGenerationParameters(ecParams, secureRandom);
@@ -102,15 +125,20 @@ public class ECKey implements Serializable {
         ECPublicKeyParameters pubParams = (ECPublicKeyParameters) keypair.getPublic();
         priv = privParams.getD();
         // The public key is an encoded point on the elliptic curve. It has no meaning independent of the curve.
-        pub = pubParams.getQ().getEncoded();
+        pub = encodePoint(pubParams.getQ(), compressed);
+        this.compressed = compressed;
     } // ECKey
     
     /**
      * Construct an ECKey from an ASN.1 encoded private key. These are produced by OpenSSL and stored by the BitCoin
-     * reference implementation in its wallet.
+     * reference implementation in its wallet. The key keeps the encoding of the public key stored with it, if any,
+     * as that is what its address was made from.
      */
     public static ECKey fromASN1(byte[] asn1privkey) {
-        return new ECKey(extractPrivateKeyFromASN1(asn1privkey));
+        DERSequence seq = decodeASN1(asn1privkey);
+        BigInteger privKey = new BigInteger(((DEROctetString) seq.getObjectAt(1)).getOctets());
+        byte[] pubKey = extractPublicKeyFromASN1(seq);
+        return new ECKey(privKey, pubKey != null && isPubKeyCompressed(pubKey));
     }
 
     /**
@@ -146,13 +174,52 @@ public class ECKey implements Serializable {
      * private keys by doing a multiply with the generator value.
      */
     public ECKey(BigInteger privKey) {
+        this(privKey, false);
+    }
+
+    /**
+     * Creates an ECKey given only the private key, with the public key in the requested encoding.
+     */
+    public ECKey(BigInteger privKey, boolean compressed) {
+        this(privKey, encodePoint(ecParams.getG().multiply(privKey), compressed), compressed);
+    }
+
+    private ECKey(BigInteger privKey, byte[] pubKey, boolean compressed) {
         this.priv = privKey;
-        this.pub = publicKeyFromPrivate(privKey);
+        this.pub = pubKey;
+        this.compressed = compressed;
     }
 
-    /** Derive the public key by doing a point multiply of G * priv. */
-    private static byte[] publicKeyFromPrivate(BigInteger privKey) {
-        return ecParams.getG().multiply(privKey).getEncoded();
+    /** Encodes a point on the curve in either the 33 byte compressed or the 65 byte uncompressed form. */
+    private static byte[] encodePoint(ECPoint point, boolean compressed) {
+        return new ECPoint.Fp(ecParams.getCurve(), point.getX(), point.getY(), compressed).getEncoded();
+    }
+
+    /**
+     * Returns the given public key re-encoded in the requested form. Either form is accepted as input.
+     */
+    public static byte[] recodePubKey(byte[] pubKey, boolean compressed) {
+        return encodePoint(ecParams.getCurve().decodePoint(pubKey), compressed);
+    }
+
+    /** Returns true if the given public key bytes use the 33 byte compressed encoding. */
+    public static boolean isPubKeyCompressed(byte[] pubKey) {
+        return pubKey.length == COMPRESSED_PUBKEY_LENGTH && (pubKey[0] == 0x02 || pubKey[0] == 0x03);
+    }
+
+    /** Returns true if this key uses the 33 byte compressed public key encoding. */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns this keypair with its public key in the requested encoding. The private key is shared and no point
+     * multiply is needed, so this is cheap. Note that the two forms hash to different addresses.
+     */
+    public ECKey withCompression(boolean compressed) {
+        if (compressed == this.compressed)
+            return this;
+        return new ECKey(priv, recodePubKey(pub, compressed), compressed);
     }
 
     /** Gets the hash160 form of the public key (as seen in addresses). */
@@ -182,8 +249,7 @@ public class ECKey implements Serializable {
      * the RIPEMD-160 hash of the public key and is not the public key itself (which is too large to be convenient).
      */
     public Address toAddress(NetworkParameters params) {
-        byte[] hash160 = Utils.sha256hash160(pub);
-        return new Address(params, hash160);
+        return Address.fromHash160(params, getPubKeyHash());
     }
 
     /**
@@ -242,7 +308,7 @@ public class ECKey implements Serializable {
     }
 
 
-    private static BigInteger extractPrivateKeyFromASN1(byte[] asn1privkey) {
+    private static DERSequence decodeASN1(byte[] asn1privkey) {
         // To understand this code, see the definition of the ASN.1 format for EC private keys in the OpenSSL source
         // code in ec_asn1.c:
         //
@@ -258,14 +324,23 @@ public class ECKey implements Serializable {
             DERSequence seq = (DERSequence) decoder.readObject();
             assert seq.size() == 4 : "Input does not appear to be an ASN.1 OpenSSL EC private key";
             assert ((DERInteger) seq.getObjectAt(0)).getValue().equals(BigInteger.ONE) : "Input is of wrong version";
-            DEROctetString key = (DEROctetString) seq.getObjectAt(1);
             decoder.close();
-            return new BigInteger(key.getOctets());
+            return seq;
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen, reading from memory stream.
         }
     }
 
+    // Returns the optional public key of a decoded EC_PRIVATEKEY, or null if it has none.
+    private static byte[] extractPublicKeyFromASN1(DERSequence seq) {
+        for (int i = 2; i < seq.size(); i++) {
+            DEREncodable element = seq.getObjectAt(i);
+            if (element instanceof ASN1TaggedObject && ((ASN1TaggedObject) element).getTagNo() == 1)
+                return DERBitString.getInstance(((ASN1TaggedObject) element).getObject()).getBytes();
+        }
+        return null;
+    }
+
     /** Returns a 32 byte array containing the private key. */
     public byte[] getPrivKeyBytes() {
         // Getting the bytes out of a BigInteger gives us an extra zero byte on the end (for signedness)
@@ -37,8 +37,8 @@
 
 package com.google.bitcoin.core;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 public class GetBlocksMessage extends Message {
@@ -73,24 +73,19 @@ public class GetBlocksMessage extends Message {
         return b.toString();
     }
 
-    public byte[] bitcoinSerialize() {
-        try {
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            // Version, for some reason.
-            Utils.uint32ToByteStreamLE(NetworkParameters.PROTOCOL_VERSION, buf);
-            // Then a vector of block hashes. This is actually a "block locator", a set of block
-            // identifiers that spans the entire chain with exponentially increasing gaps between
-            // them, until we end up at the genesis block. See CBlockLocator::Set()
-            buf.write(new VarInt(locator.size()).encode());
-            for (Sha256Hash hash : locator) {
-                // Have to reverse as wire format is little endian.
-                buf.write(Utils.reverseBytes(hash.getBytes()));
-            }
-            // Next, a block ID to stop at.
-            buf.write(stopHash.getBytes());
-            return buf.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        // Version, for some reason.
+        Utils.uint32ToByteStreamLE(NetworkParameters.PROTOCOL_VERSION, stream);
+        // Then a vector of block hashes. This is actually a "block locator", a set of block
+        // identifiers that spans the entire chain with exponentially increasing gaps between
+        // them, until we end up at the genesis block. See CBlockLocator::Set()
+        VarInt.write(locator.size(), stream);
+        for (Sha256Hash hash : locator) {
+            // Have to reverse as wire format is little endian.
+            stream.write(hash.getReversedBytes());
         }
+        // Next, a block ID to stop at. Little endian like the rest.
+        stream.write(stopHash.getReversedBytes());
     }
 }
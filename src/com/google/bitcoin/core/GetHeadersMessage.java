@@ -0,0 +1,48 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.util.List;
+
+/**
+ * Asks a peer for the headers of the blocks following a block locator, up to the stop hash or
+ * {@link HeadersMessage#MAX_HEADERS} of them. The peer answers with a {@link HeadersMessage}. The payload is the same
+ * as that of getblocks.
+ */
+public class GetHeadersMessage extends GetBlocksMessage {
+    private static final long serialVersionUID = -3315713526472950224L;
+
+    public GetHeadersMessage(NetworkParameters params, List<Sha256Hash> locator, Sha256Hash stopHash) {
+        super(params, locator, stopHash);
+    }
+
+    public String toString() {
+        StringBuffer b = new StringBuffer();
+        b.append("getheaders: ");
+        for (Sha256Hash hash : getLocator()) {
+            b.append(hash.toString());
+            b.append(" ");
+        }
+        return b.toString();
+    }
+}
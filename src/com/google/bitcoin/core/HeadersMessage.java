@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The answer to a {@link GetHeadersMessage}: up to {@link #MAX_HEADERS} block headers, in chain order. Each is
+ * returned as a {@link Block} without transactions.
+ */
+public class HeadersMessage extends Message {
+    private static final long serialVersionUID = 5614837497843562271L;
+
+    /** The most headers a peer sends in one message. A full message means there are more to ask for. */
+    public static final int MAX_HEADERS = 2000;
+
+    private List<Block> blockHeaders;
+
+    public HeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    public HeadersMessage(NetworkParameters params, List<Block> headers) {
+        super(params);
+        blockHeaders = headers;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        long numHeaders = readVarInt();
+        if (numHeaders > MAX_HEADERS)
+            throw new ProtocolException("Too many headers: got " + numHeaders + " but the limit is " + MAX_HEADERS);
+        blockHeaders = new ArrayList<Block>((int) numHeaders);
+        for (int i = 0; i < numHeaders; i++) {
+            // Each header is followed by the number of transactions, which is always zero.
+            if (cursor + 81 > bytes.length)
+                throw new ProtocolException("Ran off the end of the headers");
+            // A Block only treats its payload as a bare header if the payload ends there.
+            byte[] header = Arrays.copyOfRange(bytes, cursor, cursor + 80);
+            cursor += 80;
+            if (readVarInt() != 0)
+                throw new ProtocolException("Block header is followed by transactions");
+            blockHeaders.add(new Block(params, header));
+        }
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        VarInt.write(blockHeaders.size(), stream);
+        for (Block header : blockHeaders) {
+            header.cloneAsHeader().bitcoinSerializeToStream(stream);
+            stream.write(0);
+        }
+    }
+
+    public List<Block> getBlockHeaders() {
+        return blockHeaders;
+    }
+
+    public String toString() {
+        return "headers: " + blockHeaders.size() + " block headers";
+    }
+}
@@ -104,12 +104,12 @@ public abstract class ListMessage extends Message
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException
     {
-        stream.write(new VarInt(items.size()).encode());
+        VarInt.write(items.size(), stream);
         for (InventoryItem i : items) {
             // Write out the type code.
             Utils.uint32ToByteStreamLE(i.type.ordinal(), stream);
             // And now the hash.
-            stream.write(Utils.reverseBytes(i.hash.getBytes()));
+            stream.write(i.hash.getReversedBytes());
         }
     }
 }
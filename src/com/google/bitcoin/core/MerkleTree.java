@@ -0,0 +1,246 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The Merkle tree of the transactions in a block. The root goes in the block header, and a Merkle branch proves that
+ * a transaction is in a block without the rest of the block's contents.<p>
+ *
+ * The leaves are the transaction hashes. Each interior node is the double SHA-256 of its two children concatenated.
+ * If a level has an odd number of nodes, its last node is paired with itself. A tree with 5 transactions looks like
+ * this:
+ *
+ * <pre>
+ *                root
+ *                /  \
+ *              1     \
+ *            /  \     \
+ *          2     3     4
+ *         / \   / \   /  \
+ *       t1 t2  t3 t4  t5 t5
+ * </pre>
+ *
+ * All nodes are stored in one flat array, level by level from the leaves up: t1..t5, 2, 3, 4, 1, root. Each node
+ * takes 32 bytes in the little endian order that is hashed and sent on the wire, so a parent is hashed straight
+ * from the array, and building the tree allocates nothing per node. Levels with enough nodes can be hashed in
+ * parallel on an {@link ExecutorService}.
+ */
+public class MerkleTree {
+    // Levels with fewer parent nodes than this are hashed on the calling thread, as handing the work to other threads
+    // would cost more than it saves.
+    private static final int MIN_PARALLEL_NODES = 256;
+
+    // The digest and scratch space used for hashing, one set per thread so that nothing is allocated per level.
+    private static final ThreadLocal<Hasher> hashers = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
+    private final byte[] nodes;
+    private final int numLeaves;
+
+    /** Builds the tree of the given transactions, which must be in block order, on the calling thread. */
+    public MerkleTree(List<Transaction> transactions) {
+        this(transactions, null);
+    }
+
+    /**
+     * Builds the tree of the given transactions, which must be in block order. If executor is not null, large
+     * blocks have their leaves and levels hashed in parallel on it.
+     */
+    public MerkleTree(final List<Transaction> transactions, ExecutorService executor) {
+        numLeaves = transactions.size();
+        if (numLeaves == 0)
+            throw new IllegalArgumentException("A Merkle tree needs at least one transaction");
+        int numNodes = 0;
+        for (int levelSize = numLeaves; levelSize > 1; levelSize = (levelSize + 1) / 2)
+            numNodes += levelSize;
+        nodes = new byte[(numNodes + 1) * 32];
+
+        // Transactions that were parsed lazily still have to hash their payloads, so the leaves are worth spreading
+        // over threads too.
+        forEachRange(numLeaves, executor, new Range() {
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++)
+                    transactions.get(i).getHash().writeReversed(nodes, i * 32);
+            }
+        });
+
+        int levelOffset = 0;  // Index of the first node of the level being hashed.
+        for (int levelSize = numLeaves; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            final int childOffset = levelOffset;
+            final int childSize = levelSize;
+            final int parentOffset = levelOffset + levelSize;
+            forEachRange((levelSize + 1) / 2, executor, new Range() {
+                public void run(int start, int end) {
+                    Hasher hasher = hashers.get();
+                    for (int i = start; i < end; i++) {
+                        int left = childOffset + i * 2;
+                        // The right hand node is the same as the left hand one if the level has an odd size.
+                        int right = Math.min(i * 2 + 1, childSize - 1) + childOffset;
+                        hasher.hashPair(nodes, left * 32, right * 32, nodes, (parentOffset + i) * 32);
+                    }
+                }
+            });
+            levelOffset = parentOffset;
+        }
+    }
+
+    /** Returns the number of transactions in the tree. */
+    public int getLeafCount() {
+        return numLeaves;
+    }
+
+    /** Returns the Merkle root, as it appears in the block header. */
+    public Sha256Hash getRoot() {
+        return Sha256Hash.createReversed(nodes, nodes.length - 32);
+    }
+
+    /**
+     * Returns the Merkle branch of the transaction at the given index: the sibling of each node on the path from its
+     * leaf up to the root, starting at the leaf. Together with the transaction hash and index this is enough to
+     * recompute the root, see {@link #computeRoot(Sha256Hash, List, int)}.
+     */
+    public List<Sha256Hash> getBranch(int index) {
+        if (index < 0 || index >= numLeaves)
+            throw new IndexOutOfBoundsException("No transaction " + index + " in a tree of " + numLeaves);
+        List<Sha256Hash> branch = new ArrayList<Sha256Hash>();
+        int levelOffset = 0;
+        for (int levelSize = numLeaves; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            int sibling = Math.min(index ^ 1, levelSize - 1);
+            branch.add(Sha256Hash.createReversed(nodes, (levelOffset + sibling) * 32));
+            index >>= 1;
+            levelOffset += levelSize;
+        }
+        return branch;
+    }
+
+    /**
+     * Recomputes the Merkle root from a transaction hash, its Merkle branch and its index within the block. If the
+     * result equals the root in a block header that has enough work on it, the transaction is in that block.
+     */
+    public static Sha256Hash computeRoot(Sha256Hash txHash, List<Sha256Hash> branch, int index) {
+        if (index < 0 || (branch.size() < 31 && index >> branch.size() != 0))
+            throw new IllegalArgumentException("Index " + index + " does not fit a branch of " + branch.size());
+        Hasher hasher = hashers.get();
+        byte[] buf = new byte[64];
+        txHash.writeReversed(buf, 0);
+        for (Sha256Hash sibling : branch) {
+            if ((index & 1) == 0) {
+                sibling.writeReversed(buf, 32);
+            } else {
+                System.arraycopy(buf, 0, buf, 32, 32);
+                sibling.writeReversed(buf, 0);
+            }
+            hasher.hashPair(buf, 0, 32, buf, 0);
+            index >>= 1;
+        }
+        return Sha256Hash.createReversed(buf, 0);
+    }
+
+    /** Returns true if the given Merkle branch links the transaction hash at the given index to the given root. */
+    public static boolean verifyBranch(Sha256Hash txHash, List<Sha256Hash> branch, int index, Sha256Hash root) {
+        return computeRoot(txHash, branch, index).equals(root);
+    }
+
+    private static class Hasher {
+        private final MessageDigest digest;
+        // Holds the first of the two hashes.
+        private final byte[] first = new byte[32];
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+
+        // Writes the double SHA-256 of the two 32 byte nodes at left and right into out.
+        void hashPair(byte[] in, int left, int right, byte[] out, int outOffset) {
+            try {
+                digest.update(in, left, 32);
+                digest.update(in, right, 32);
+                digest.digest(first, 0, 32);
+                digest.update(first, 0, 32);
+                digest.digest(out, outOffset, 32);
+            } catch (DigestException e) {
+                throw new RuntimeException(e);  // Cannot happen, the buffers are large enough.
+            }
+        }
+    }
+
+    private interface Range {
+        void run(int start, int end);
+    }
+
+    // Runs the range [0, count) on the calling thread, or split into one slice per processor on the executor.
+    private static void forEachRange(int count, ExecutorService executor, final Range range) {
+        int slices = Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_PARALLEL_NODES);
+        if (executor == null || slices < 2) {
+            range.run(0, count);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(slices);
+        try {
+            for (int i = 0; i < slices; i++) {
+                final int start = (int) ((long) count * i / slices);
+                final int end = (int) ((long) count * (i + 1) / slices);
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        range.run(start, end);
+                        return null;
+                    }
+                }));
+            }
+            // Future.get() also makes the nodes written by the other threads visible to this one.
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+    }
+}
@@ -53,20 +53,32 @@ public abstract class Message implements Serializable {
 
     public static final int MAX_SIZE = 0x02000000;
 
-    // Useful to ensure serialize/deserialize are consistent with each other.
+    // Useful to ensure serialize/deserialize are consistent with each other. This also checks, every time cached wire
+    // bytes are reused, that they still match the fields, which catches mutators that forget to call unCache().
     private static final boolean SELF_CHECK = false;
 
     // The offset is how many bytes into the provided byte array this message starts at.
     protected transient int offset;
     // The cursor keeps track of where we are in the byte array as we parse it.
     // Note that it's relative to the start of the array NOT the start of the message.
+    // A deferred parse moves it back and forth, so nothing outside of parsing may read it; use length instead.
     protected transient int cursor;
+    // How many bytes of the payload the message occupies, from offset. Set once it has been found on construction.
+    private transient int length;
 
-    // The raw message bytes themselves.
+    // The raw message bytes themselves. Messages that cache their wire form (see shouldCacheBytes) keep them after
+    // parsing, in which case the message occupies getMessageSize() bytes from offset, until a mutator calls
+    // unCache().
     protected transient byte[] bytes;
 
     protected transient int protocolVersion;
 
+    // Set on lazily created messages whose payload has not been decoded yet. Until then bytes is kept as a reference
+    // to the (possibly shared) payload; see maybeParse().
+    protected transient volatile boolean unparsed;
+    // Whether child messages created by parse() should themselves be lazily parsed.
+    protected transient boolean parseLazy;
+
     // This will be saved by subclasses that implement Serializable.
     protected NetworkParameters params;
     
@@ -78,23 +90,36 @@ public abstract class Message implements Serializable {
         this.params = params;
     }
 
-    @SuppressWarnings("unused")
     Message(NetworkParameters params, byte[] msg, int offset, int protocolVersion) throws ProtocolException {
+        this(params, msg, offset, protocolVersion, false);
+    }
+
+    /**
+     * Creates a message from the payload at the given offset. If parseLazy is set only {@link #parseLite()} is run
+     * now: the message keeps a reference to msg (which must not be modified afterwards) and decodes the rest on
+     * first access. Only messages that implement parseLite can be created this way.
+     */
+    @SuppressWarnings("unused")
+    Message(NetworkParameters params, byte[] msg, int offset, int protocolVersion, boolean parseLazy)
+            throws ProtocolException {
         this.protocolVersion = protocolVersion;
         this.params = params;
         this.bytes = msg;
         this.cursor = this.offset = offset;
-        parse();
-        if (SELF_CHECK && !this.getClass().getSimpleName().equals("VersionMessage"))  {
-            byte[] msgbytes = new byte[cursor - offset];
-            System.arraycopy(msg, offset, msgbytes, 0, cursor - offset);
-            byte[] reserialized = bitcoinSerialize();
-            if (!Arrays.equals(reserialized, msgbytes))
-                throw new RuntimeException("Serialization is wrong: \n" +
-                        Utils.bytesToHexString(reserialized) + " vs \n" +
-                        Utils.bytesToHexString(msgbytes));
+        this.parseLazy = parseLazy;
+        if (parseLazy) {
+            parseLite();
+            length = cursor - offset;
+            // Keep the payload around for maybeParse() if there is still work left to do.
+            if (unparsed) return;
+        } else {
+            parse();
+            length = cursor - offset;
         }
-        this.bytes = null;
+        if (SELF_CHECK && !this.getClass().getSimpleName().equals("VersionMessage"))
+            selfCheck(Arrays.copyOfRange(msg, offset, cursor));
+        if (!shouldCacheBytes())
+            this.bytes = null;
     }
 
     Message(NetworkParameters params, byte[] msg, int offset) throws ProtocolException {
@@ -106,8 +131,89 @@ public abstract class Message implements Serializable {
     // serialization mechanism - the standard Java serialization system. This is used when things 
     // are serialized to the wallet.
     abstract void parse() throws ProtocolException;
+
+    /**
+     * Does the minimum amount of work needed to find the end of the message, leaving the cursor there, plus any
+     * fields that are cheap enough to read up front. Structural problems should be detected here so that the
+     * deferred parse cannot fail. An implementation that leaves work for later sets {@link #unparsed}, and
+     * {@link #parse()} then runs on first access. Messages that support lazy parsing override this. The default
+     * parses everything up front, so for other messages lazy mode is the same as eager parsing.
+     */
+    void parseLite() throws ProtocolException {
+        parse();
+    }
+
+    /**
+     * Runs the deferred parse of a lazily created message, if it has not happened yet. Every method that touches
+     * parsed fields must call this first. The parse rewinds the cursor under the lock, while other threads may be
+     * hashing or writing the payload, which is why they go by {@link #getMessageSize()}.
+     */
+    protected void maybeParse() {
+        if (!unparsed) return;
+        synchronized (this) {
+            if (!unparsed) return;
+            cursor = offset;
+            try {
+                parse();
+            } catch (ProtocolException e) {
+                // parseLite already walked the structure, so this means the two disagree.
+                throw new RuntimeException(e);
+            }
+            if (!shouldCacheBytes())
+                bytes = null;
+            unparsed = false;
+        }
+    }
+
+    /** Moves the cursor forward, checking it stays within the payload. */
+    void skipBytes(long length) throws ProtocolException {
+        if (length < 0 || length > bytes.length - cursor)
+            throw new ProtocolException("Message runs past the end of the payload");
+        cursor += (int) length;
+    }
     
+    /**
+     * Returns true if this message should hold on to the bytes it was parsed from, so they can be reused by
+     * {@link #bitcoinSerialize()} and for hashing. Subclasses that do so must call {@link #unCache()} before
+     * changing anything that is part of the wire format.
+     */
+    boolean shouldCacheBytes() {
+        return false;
+    }
+
+    /**
+     * Throws away the cached wire bytes, if any, so the next serialization is built from the fields. This parses a
+     * lazily created message first, as the fields are about to become the only copy of the data.
+     */
+    protected void unCache() {
+        maybeParse();
+        bytes = null;
+    }
+
     public byte[] bitcoinSerialize() {
+        byte[] buf = bytes;
+        if (buf != null) {
+            byte[] cached = Arrays.copyOfRange(buf, offset, offset + length);
+            if (SELF_CHECK)
+                selfCheck(cached);
+            return cached;
+        }
+        return serializeFields();
+    }
+
+    /**
+     * Writes this message to the stream, reusing the cached wire bytes if it has them. This is what a message
+     * should use to write out the messages it contains.
+     */
+    void bitcoinSerialize(OutputStream stream) throws IOException {
+        byte[] buf = bytes;
+        if (buf != null && !SELF_CHECK)
+            stream.write(buf, offset, length);
+        else
+            stream.write(bitcoinSerialize());
+    }
+
+    private byte[] serializeFields() {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         try {
             bitcoinSerializeToStream(stream);
@@ -118,14 +224,24 @@ public abstract class Message implements Serializable {
         return stream.toByteArray();
     }
 
+    private void selfCheck(byte[] msgbytes) {
+        byte[] reserialized = serializeFields();
+        if (!Arrays.equals(reserialized, msgbytes))
+            throw new RuntimeException("Serialization is wrong: \n" +
+                    Utils.bytesToHexString(reserialized) + " vs \n" +
+                    Utils.bytesToHexString(msgbytes));
+    }
+
     /**
-     * Serializes this message to the provided stream. If you just want the raw bytes use bitcoinSerialize().
+     * Serializes this message to the provided stream from its fields, ignoring any cached bytes. If you just want
+     * the raw bytes use bitcoinSerialize().
      */
     void bitcoinSerializeToStream(OutputStream stream) throws IOException {
     }
     
+    /** Returns the length of the payload this message was parsed from, or 0 if it was built from its fields. */
     int getMessageSize() {
-        return cursor - offset;
+        return length;
     }
     
     long readUint32() {
@@ -135,23 +251,24 @@ public abstract class Message implements Serializable {
     }
     
     Sha256Hash readHash() {
-        byte[] hash = new byte[32];
-        System.arraycopy(bytes, cursor, hash, 0, 32);
-        // We have to flip it around, as it's been read off the wire in little endian.
-        // Not the most efficient way to do this but the clearest.
-        hash = Utils.reverseBytes(hash);        
+        // The hash is flipped around as it's read, as it comes off the wire in little endian.
+        Sha256Hash hash = Sha256Hash.createReversed(bytes, cursor);
         cursor += 32;
-        return new Sha256Hash(hash);
+        return hash;
     }
 
 
     BigInteger readUint64() {
-        // Java does not have an unsigned 64 bit type. So scrape it off the wire then flip.
-        byte[] valbytes = new byte[8];
-        System.arraycopy(bytes, cursor, valbytes, 0, 8);
-        valbytes = Utils.reverseBytes(valbytes);
-        cursor += valbytes.length;
-        return new BigInteger(valbytes);
+        // Java does not have an unsigned 64 bit type. Like before, values with the top bit set come out negative.
+        return BigInteger.valueOf(readInt64());
+    }
+
+    long readInt64() {
+        long u = 0;
+        for (int i = 7; i >= 0; i--)
+            u = (u << 8) | (bytes[cursor + i] & 0xFFL);
+        cursor += 8;
+        return u;
     }
     
     long readVarInt() {
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the hashes of recently received messages, so that a message relayed to us by several peers is only
+ * parsed once. One cache is normally shared by every connection, see {@link BitcoinSerializer}.<p>
+ *
+ * Messages are keyed by the double SHA-256 of their payload, which the serializer computes anyway to verify the
+ * checksum. A secure hash matters here: with a weaker one, a malicious node could broadcast a message designed to
+ * mask a different message. The cache is split into independently locked stripes, chosen by the hash, so connections
+ * receiving at the same time rarely wait for each other. Each stripe evicts its least recently seen entries when full.
+ */
+public class MessageDedupeCache {
+    /** Default number of message hashes kept, across all stripes. */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    // Must be a power of two.
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes;
+
+    public MessageDedupeCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a cache holding roughly the given number of hashes, split evenly across the stripes. */
+    public MessageDedupeCache(int capacity) {
+        int perStripe = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(perStripe);
+    }
+
+    /**
+     * Records that a message with the given payload double hash was received, and returns how many times it has
+     * been seen while in the cache, including this time. So 1 means the message is new.
+     */
+    public int recordSeen(byte[] payloadHash) {
+        // The hash is uniformly distributed, so any of its bits make a good stripe index.
+        Stripe stripe = stripes[payloadHash[0] & (STRIPES - 1)];
+        Sha256Hash key = new Sha256Hash(payloadHash);
+        synchronized (stripe) {
+            Integer count = stripe.get(key);
+            int newCount = count == null ? 1 : count + 1;
+            stripe.put(key, newCount);
+            return newCount;
+        }
+    }
+
+    /** Forgets every hash. */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private static class Stripe extends LinkedHashMap<Sha256Hash, Integer> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(capacity * 2, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Integer> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads framed messages off a blocking {@link ReadableByteChannel}, such as the one behind a {@link NetworkConnection}.
+ * This does the same job as {@link BitcoinSerializer#deserialize(java.io.InputStream)} but avoids a system call per
+ * byte. Data is read in bulk into a pooled direct buffer. The packet magic is searched for a word at a time in the
+ * buffer and the header is taken from it in one go. The payload goes straight into the array that the parsed
+ * message will own: whatever is already buffered is copied over, and the rest is read from the channel directly into
+ * the array.<p>
+ *
+ * A MessageReader is not thread safe; it is meant to be used by the single thread that reads from a connection.
+ */
+class MessageReader {
+    private final BitcoinSerializer serializer;
+    private final ReadableByteChannel channel;
+    private final int magic;
+
+    // Holds data read from the channel but not yet consumed, between position and limit. Null once released.
+    private ByteBuffer buffer;
+    // The payload length from the packet header of the message readMessage() last returned.
+    private int lastMessageSize;
+
+    MessageReader(BitcoinSerializer serializer, ReadableByteChannel channel, NetworkParameters params) {
+        this.serializer = serializer;
+        this.channel = channel;
+        this.magic = (int) params.packetMagic;
+        buffer = ByteBufferPool.acquire();
+        buffer.flip();  // Empty, and ready to be read from.
+    }
+
+    /**
+     * Reads the next message, blocking until it has been fully received. Duplicates dropped by the serializer are
+     * skipped over. Once the channel fails or reaches end of stream the buffer goes back to the pool and every later
+     * call throws.
+     */
+    Message readMessage() throws IOException, ProtocolException {
+        if (buffer == null)
+            throw new IOException("Socket is disconnected");
+        try {
+            while (true) {
+                seekPastMagicBytes();
+                byte[] headerBytes = new byte[serializer.getHeaderLength() - 4];
+                fill(headerBytes.length);
+                buffer.get(headerBytes);
+                BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(headerBytes);
+                byte[] payload = new byte[header.size];
+                int buffered = Math.min(buffer.remaining(), payload.length);
+                buffer.get(payload, 0, buffered);
+                if (buffered < payload.length) {
+                    // Large messages like blocks: read the remainder without going through the buffer.
+                    ByteBuffer rest = ByteBuffer.wrap(payload, buffered, payload.length - buffered);
+                    while (rest.hasRemaining())
+                        readFromChannel(rest);
+                }
+                Message message = serializer.deserializePayload(header, payload);
+                // If message is null it was a duplicate that deduping skipped, so wait for another one.
+                if (message != null) {
+                    lastMessageSize = header.size;
+                    return message;
+                }
+            }
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /** Returns the payload length given in the packet header of the message readMessage() last returned. */
+    int getLastMessageSize() {
+        return lastMessageSize;
+    }
+
+    /**
+     * Discards data up to and including the next packet magic. Satoshi's implementation ignores garbage before the
+     * magic header bytes, and we have to do the same.
+     */
+    private void seekPastMagicBytes() throws IOException {
+        while (true) {
+            fill(4);
+            // The buffer is big endian, as is the magic in NetworkParameters.
+            int limit = buffer.limit() - 3;
+            for (int i = buffer.position(); i < limit; i++) {
+                if (buffer.getInt(i) == magic) {
+                    buffer.position(i + 4);
+                    return;
+                }
+            }
+            // Keep the last three bytes, in case they are the start of a magic that is split across reads.
+            buffer.position(limit);
+        }
+    }
+
+    /** Reads from the channel until at least the given number of bytes are buffered. */
+    private void fill(int needed) throws IOException {
+        if (buffer.remaining() >= needed)
+            return;
+        buffer.compact();
+        while (buffer.position() < needed)
+            readFromChannel(buffer);
+        buffer.flip();
+    }
+
+    private void readFromChannel(ByteBuffer dst) throws IOException {
+        if (channel.read(dst) == -1)
+            throw new IOException("Socket is disconnected");
+    }
+
+    private void release() {
+        if (buffer != null) {
+            ByteBufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+}
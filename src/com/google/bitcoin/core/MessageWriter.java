@@ -0,0 +1,183 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * Writes framed messages to a blocking {@link GatheringByteChannel}, such as the one behind a
+ * {@link NetworkConnection}. This does the same job as {@link BitcoinSerializer#serialize(Message, java.io.OutputStream)}
+ * with far less copying and allocation:<p>
+ *
+ * <ul>
+ *     <li>A message that still has the wire bytes it was parsed from is sent straight from that array.</li>
+ *     <li>Any other message is serialized directly into pooled direct buffers, with space for the header left at the
+ *     front of the first one.</li>
+ *     <li>The checksum is computed once, over those buffers. For transactions it is taken from the transaction hash,
+ *     which is the same double SHA-256 and is usually already known.</li>
+ *     <li>Header and payload go out in a single gathering write.</li>
+ * </ul><p>
+ *
+ * It's safe to call writeMessage from multiple threads simultaneously, the actual writing will be serialized.
+ */
+class MessageWriter {
+    private static final Logger log = LoggerFactory.getLogger(MessageWriter.class);
+
+    private final BitcoinSerializer serializer;
+    private final GatheringByteChannel channel;
+
+    // The following are only used whilst holding the lock, and reused from one message to the next.
+    private final ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private final BufferStream stream = new BufferStream();
+    private final ByteBuffer header;
+    private ByteBuffer[] gather = new ByteBuffer[2];
+    private final MessageDigest digest;
+
+    MessageWriter(BitcoinSerializer serializer, GatheringByteChannel channel) {
+        this.serializer = serializer;
+        this.channel = channel;
+        // Sized for the longest header, the checksummed one.
+        header = ByteBuffer.allocate(4 + 12 + 4 + 4);
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Serializes the message and writes it out, blocking until it has all been handed to the channel. */
+    synchronized void writeMessage(Message message) throws IOException {
+        String command = serializer.getCommand(message);
+        int headerLength = serializer.getHeaderLength();
+        try {
+            int count;
+            int payloadLength;
+            byte[] cached = message.bytes;
+            if (cached != null) {
+                payloadLength = message.getMessageSize();
+                header.clear();
+                ensureGatherCapacity(2);
+                gather[0] = header;
+                gather[1] = ByteBuffer.wrap(cached, message.offset, payloadLength);
+                count = 2;
+            } else {
+                ByteBuffer first = ByteBufferPool.acquire();
+                buffers.add(first);
+                first.position(headerLength);
+                message.bitcoinSerializeToStream(stream);
+                payloadLength = -headerLength;
+                count = buffers.size();
+                ensureGatherCapacity(count);
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer buffer = buffers.get(i);
+                    buffer.flip();
+                    payloadLength += buffer.remaining();
+                    gather[i] = buffer;
+                }
+                first.position(headerLength);
+            }
+
+            byte[] payloadHash = null;
+            if (serializer.getUseChecksumming())
+                payloadHash = hashPayload(message, count);
+
+            // Now the header goes in front of the payload.
+            ByteBuffer headerBuffer = gather[0];
+            headerBuffer.position(0);
+            serializer.writeHeader(command, payloadLength, payloadHash, headerBuffer);
+            if (headerBuffer == header)
+                header.flip();
+            else
+                headerBuffer.position(0);
+
+            long remaining = headerLength + payloadLength;
+            while (remaining > 0)
+                remaining -= channel.write(gather, 0, count);
+            if (log.isDebugEnabled())
+                log.debug("Sent {} message of {} bytes", command, payloadLength);
+        } finally {
+            for (ByteBuffer buffer : buffers)
+                ByteBufferPool.release(buffer);
+            buffers.clear();
+            for (int i = 0; i < gather.length; i++)
+                gather[i] = null;
+        }
+    }
+
+    /** Returns the double SHA-256 of the payload described by the first count buffers in gather. */
+    private byte[] hashPayload(Message message, int count) {
+        if (message instanceof Transaction) {
+            // The transaction hash is the double digest of the payload, byte reversed for display.
+            return ((Transaction) message).getHash().getReversedBytes();
+        }
+        for (int i = 0; i < count; i++) {
+            // The header is at the front of the first buffer, whose position already skips it.
+            if (gather[i] != header)
+                digest.update(gather[i].duplicate());
+        }
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    private void ensureGatherCapacity(int count) {
+        if (gather.length < count)
+            gather = new ByteBuffer[Math.max(count, gather.length * 2)];
+    }
+
+    /** Writes into the pooled buffers, taking another one from the pool each time the last fills up. */
+    private class BufferStream extends OutputStream {
+        private ByteBuffer current() {
+            ByteBuffer buffer = buffers.get(buffers.size() - 1);
+            if (!buffer.hasRemaining()) {
+                buffer = ByteBufferPool.acquire();
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            current().put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                ByteBuffer buffer = current();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * An amount of currency held as a primitive count of nanocoins (the smallest transferable unit, 10<sup>-8</sup> of
+ * a coin). Every amount that can legally appear in a transaction fits comfortably in a long, so arithmetic on amounts
+ * needs neither BigInteger nor any allocation.<p>
+ *
+ * The static methods work directly on longs and are what the wallet and transaction code use in their loops. They
+ * throw ArithmeticException on overflow rather than silently wrapping. Instances wrap a single value for APIs that
+ * want a type rather than a bare long.
+ */
+public final class Nanocoins implements Comparable<Nanocoins>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** How many nanocoins there are in a BitCoin. */
+    public static final long COIN = 100000000L;
+
+    /** How many nanocoins there are in 0.01 BitCoins. */
+    public static final long CENT = 1000000L;
+
+    /** The most nanocoins that will ever exist. No valid amount or sum of amounts is larger than this. */
+    public static final long MAX_MONEY = 21000000L * COIN;
+
+    public static final Nanocoins ZERO = new Nanocoins(0);
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private final long value;
+
+    private Nanocoins(long value) {
+        this.value = value;
+    }
+
+    public static Nanocoins valueOf(long nanocoins) {
+        return nanocoins == 0 ? ZERO : new Nanocoins(nanocoins);
+    }
+
+    /** @throws ArithmeticException if the value does not fit in a long. */
+    public static Nanocoins valueOf(BigInteger nanocoins) {
+        return valueOf(toLong(nanocoins));
+    }
+
+    /** Returns a + b, throwing ArithmeticException if the result overflows. */
+    public static long add(long a, long b) {
+        long result = a + b;
+        // Overflow iff both operands have the same sign and the result has the other one.
+        if (((a ^ result) & (b ^ result)) < 0)
+            throw new ArithmeticException("Nanocoin overflow: " + a + " + " + b);
+        return result;
+    }
+
+    /** Returns a - b, throwing ArithmeticException if the result overflows. */
+    public static long subtract(long a, long b) {
+        long result = a - b;
+        // Overflow iff the operands have different signs and the result's sign differs from a's.
+        if (((a ^ b) & (a ^ result)) < 0)
+            throw new ArithmeticException("Nanocoin overflow: " + a + " - " + b);
+        return result;
+    }
+
+    /** Returns a * b, throwing ArithmeticException if the result overflows. */
+    public static long multiply(long a, long b) {
+        long result = a * b;
+        if (a != 0 && (result / a != b || (a == -1 && b == Long.MIN_VALUE)))
+            throw new ArithmeticException("Nanocoin overflow: " + a + " * " + b);
+        return result;
+    }
+
+    /** Converts a BigInteger amount to a long, throwing ArithmeticException if it doesn't fit. */
+    public static long toLong(BigInteger nanocoins) {
+        if (nanocoins.compareTo(LONG_MIN) < 0 || nanocoins.compareTo(LONG_MAX) > 0)
+            throw new ArithmeticException("Amount does not fit in a long: " + nanocoins);
+        return nanocoins.longValue();
+    }
+
+    /** Convert an amount expressed in the way humans are used to into nanocoins. */
+    public static long fromCoins(int coins, int cents) {
+        assert cents < 100;
+        return add(multiply(coins, COIN), multiply(cents, CENT));
+    }
+
+    /**
+     * Convert an amount expressed in the way humans are used to into nanocoins. This takes a string in a format
+     * understood by {@link BigDecimal#BigDecimal(String)}, for example "0", "1", "0.10", "1.23E3", "1234.5E-5".
+     *
+     * @throws ArithmeticException if you try to specify fractional nanocoins, or the amount doesn't fit in a long.
+     */
+    public static long parse(String coins) {
+        return new BigDecimal(coins).movePointRight(8).longValueExact();
+    }
+
+    public Nanocoins add(Nanocoins other) {
+        return valueOf(add(value, other.value));
+    }
+
+    public Nanocoins subtract(Nanocoins other) {
+        return valueOf(subtract(value, other.value));
+    }
+
+    public long longValue() {
+        return value;
+    }
+
+    public BigInteger toBigInteger() {
+        return BigInteger.valueOf(value);
+    }
+
+    public int signum() {
+        return value > 0 ? 1 : (value < 0 ? -1 : 0);
+    }
+
+    public int compareTo(Nanocoins other) {
+        return value < other.value ? -1 : (value == other.value ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Nanocoins && ((Nanocoins) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    /** Returns the amount as a 0.12 type string, see {@link Utils#bitcoinValueToFriendlyString(long)}. */
+    @Override
+    public String toString() {
+        return Utils.bitcoinValueToFriendlyString(value);
+    }
+}
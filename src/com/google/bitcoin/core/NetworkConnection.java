@@ -41,14 +41,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * A NetworkConnection handles talking to a remote BitCoin peer at a low level. It understands how to read and write
@@ -56,26 +57,29 @@ import java.util.LinkedList;
  * of the protocol. After constructing a NetworkConnection, use a {@link Peer} to hand off communication to a
  * background thread.<p>
  *
- * Multiple NetworkConnections will, by default, wait if another NetworkConnection instance is deserializing a
- * message and discard duplicates before reading them. This is intended to avoid memory usage spikes in constrained
+ * Multiple NetworkConnections will, by default, share a {@link MessageDedupeCache} and discard duplicate blocks and
+ * transactions before parsing them. This is intended to avoid memory usage spikes in constrained
  * environments like Android where deserializing a large message (like a block) on multiple threads simultaneously is
  * both wasteful and can cause OOM failures.<p>
  *
  * Construction is blocking whilst the protocol version is negotiated.
  */
-public class NetworkConnection {
+public class NetworkConnection implements PeerConnection {
 	private static final Logger log = LoggerFactory.getLogger(NetworkConnection.class);
 	
     private final Socket socket;
-    private final OutputStream out;
-    private final InputStream in;
+    // Reads messages off the socket's channel. Only used by the thread calling readMessage().
+    private final MessageReader reader;
+    private final MessageWriter writer;
     // The IP address to which we are connecting.
     private final InetAddress remoteIp;
     private final NetworkParameters params;
     private final VersionMessage versionMessage;
 
     // Given to the BitcoinSerializer to de-duplicate messages.
-    private static final LinkedHashMap<Sha256Hash, Integer> dedupeList = BitcoinSerializer.createDedupeList();
+    private static final MessageDedupeCache dedupeCache = BitcoinSerializer.createDedupeCache();
+    // Closes the channels of connections whose handshake takes too long, see HandshakeWatchdog.
+    private static final Timer handshakeTimer = new Timer("NetworkConnection handshake timeouts", true);
     private BitcoinSerializer serializer = null;
 
     /**
@@ -86,7 +90,7 @@ public class NetworkConnection {
      * port is not positive the default port from params is used.
      * @param params Defines which network to connect to and details of the protocol.
      * @param bestHeight How many blocks are in our best chain
-     * @param connectTimeout Timeout in milliseconds when initially connecting to peer
+     * @param connectTimeout Timeout in milliseconds for connecting to the peer and negotiating the version together
      * @param dedupe Whether to avoid parsing duplicate messages from the network (ie from other peers).
      * @throws IOException if there is a network related failure.
      * @throws ProtocolException if the version negotiation failed.
@@ -100,31 +104,49 @@ public class NetworkConnection {
         int port = (peerAddress.port > 0) ? peerAddress.port : params.port;
 
         InetSocketAddress address = new InetSocketAddress(remoteIp, port);
-        socket = new Socket();
-        socket.connect(address, connectTimeout);
-        
-        out = socket.getOutputStream();
-        in = socket.getInputStream();
-
-        // The version message never uses checksumming. Update checkumming property after version is read.
-        this.serializer = new BitcoinSerializer(params, false, dedupe ? dedupeList : null);
-
-        // Announce ourselves. This has to come first to connect to clients beyond v0.30.20.2 which wait to hear
-        // from us until they send their version message back.
-        writeMessage(new VersionMessage(params, bestHeight));
-        // When connecting, the remote peer sends us a version message with various bits of
-        // useful data in it. We need to know the peer protocol version before we can talk to it.
-        Message m = readMessage();
-        if (!(m instanceof VersionMessage)) {
-            // Bad peers might not follow the protocol. This has been seen in the wild (issue 81).
-            throw new ProtocolException("First message received was not a version message but rather " + m);
+        // The socket is created from a channel so that reads and writes can go through NIO buffers, see
+        // MessageReader and MessageWriter. The channel stays in blocking mode.
+        SocketChannel channel = SocketChannel.open();
+        socket = channel.socket();
+        HandshakeWatchdog watchdog = new HandshakeWatchdog(channel);
+        handshakeTimer.schedule(watchdog, connectTimeout);
+        try {
+            socket.connect(address, connectTimeout);
+
+            // The version message never uses checksumming. Update checkumming property after version is read.
+            this.serializer = new BitcoinSerializer(params, false, dedupe ? dedupeCache : null);
+            // Most blocks downloaded during chain sync contain nothing relevant to us, so avoid decoding them up front.
+            serializer.setParseLazy(true);
+            reader = new MessageReader(serializer, channel, params);
+            writer = new MessageWriter(serializer, channel);
+
+            // Announce ourselves. This has to come first to connect to clients beyond v0.30.20.2 which wait to hear
+            // from us until they send their version message back.
+            writeMessage(new VersionMessage(params, bestHeight));
+            // When connecting, the remote peer sends us a version message with various bits of
+            // useful data in it. We need to know the peer protocol version before we can talk to it.
+            Message m = readMessage();
+            if (!(m instanceof VersionMessage)) {
+                // Bad peers might not follow the protocol. This has been seen in the wild (issue 81).
+                throw new ProtocolException("First message received was not a version message but rather " + m);
+            }
+            versionMessage = (VersionMessage) m;
+            // Now it's our turn ...
+            // Send an ACK message stating we accept the peers protocol version.
+            writeMessage(new VersionAck());
+            // And get one back ...
+            readMessage();
+        } catch (IOException e) {
+            channel.close();
+            if (watchdog.fired)
+                throw new SocketTimeoutException("Timed out connecting to " + address);
+            throw e;
+        } catch (ProtocolException e) {
+            channel.close();
+            throw e;
+        } finally {
+            watchdog.cancel();
         }
-        versionMessage = (VersionMessage) m;
-        // Now it's our turn ...
-        // Send an ACK message stating we accept the peers protocol version.
-        writeMessage(new VersionAck());
-        // And get one back ...
-        readMessage();
         // Switch to the new protocol version.
         int peerVersion = versionMessage.clientVersion;
         log.info("Connected to peer: version={}, subVer='{}', services=0x{}, time={}, blocks={}", new Object[] {
@@ -186,13 +208,12 @@ public class NetworkConnection {
      * @throws ProtocolException if the message is badly formatted, failed checksum or there was a TCP failure.
      */
     public Message readMessage() throws IOException, ProtocolException {
-        Message message;
-        do {
-            message = serializer.deserialize(in);
-            // If message is null, it means deduping was enabled, we read a duplicated message and skipped parsing to
-            // avoid doing redundant work. So go around and wait for another message.
-        } while (message == null);
-        return message;
+        return reader.readMessage();
+    }
+
+    /** Returns the payload length given in the packet header of the message readMessage() last returned. */
+    int getLastMessageSize() {
+        return reader.getLastMessageSize();
     }
 
     /**
@@ -203,13 +224,33 @@ public class NetworkConnection {
      * @throws IOException
      */
     public void writeMessage(Message message) throws IOException {
-        synchronized (out) {
-            serializer.serialize(message, out);
-        }
+        writer.writeMessage(message);
     }
 
     /** Returns the version message received from the other end of the connection during the handshake. */
     public VersionMessage getVersionMessage() {
         return versionMessage;
     }
+
+    /**
+     * Reads during the handshake go through the channel, which ignores the socket's SO_TIMEOUT. So a peer that
+     * accepts the connection and then says nothing would block the constructor forever without this.
+     */
+    private static class HandshakeWatchdog extends TimerTask {
+        private final SocketChannel channel;
+        volatile boolean fired;
+
+        HandshakeWatchdog(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            fired = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Don't care about this.
+            }
+        }
+    }
 }
@@ -0,0 +1,546 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking connection to a remote node, run by a {@link NioNetwork}. It does the same job as a
+ * {@link NetworkConnection}, including the version handshake, but never blocks a thread: received messages go to a
+ * {@link NioNetwork.ConnectionListener}, and {@link #writeMessage(Message)} queues the message and returns.<p>
+ *
+ * Messages are framed the way {@link MessageReader} does it, except that a message may arrive over several reads.
+ * The read buffer comes from {@link ByteBufferPool} and goes back as soon as everything in it has been consumed, and
+ * a large payload is read straight into the array the message will own. Outgoing messages are serialized by the
+ * writing thread and copied into a pooled write buffer by the selector thread when the socket can take them.<p>
+ *
+ * If the listener falls behind, reading stops once {@link #MAX_QUEUED_MESSAGES} messages are waiting for it, and
+ * starts again when it has caught up, so TCP flow control slows the remote node down. A node that doesn't read what
+ * we send is disconnected once {@link #MAX_QUEUED_WRITE_BYTES} are waiting to go out.
+ */
+public class NioConnection implements PeerConnection {
+    private static final Logger log = LoggerFactory.getLogger(NioConnection.class);
+
+    /** Reading pauses while this many received messages are waiting for the listener. */
+    static final int MAX_QUEUED_MESSAGES = 16;
+    /** The connection is dropped if this many bytes are waiting to be sent. */
+    static final int MAX_QUEUED_WRITE_BYTES = 4 * 1024 * 1024;
+
+    private enum State { CONNECTING, AWAIT_VERSION, AWAIT_VERACK, OPEN, CLOSED }
+
+    private final NioNetwork.SelectorLoop loop;
+    private final SocketChannel channel;
+    private final InetSocketAddress remoteAddress;
+    private final NetworkParameters params;
+    private final BitcoinSerializer serializer;
+    private final int magic;
+    private final int bestHeight;
+    // When the connection must have finished its handshake, in milliseconds since the epoch.
+    private final long deadline;
+    private final NioNetwork.ConnectionListener listener;
+    private final Executor dispatcher;
+
+    // Only moves forward, and never away from CLOSED. Changed whilst holding the events lock.
+    private volatile State state = State.CONNECTING;
+    private volatile VersionMessage versionMessage;
+
+    // The following are only used by the selector thread.
+    private SelectionKey key;
+    // Data read but not yet consumed, between position and limit. Null when there is none.
+    private ByteBuffer readBuffer;
+    // The message being read: whether its magic has been seen, its header, and how much of its payload is in.
+    private boolean magicFound;
+    private BitcoinSerializer.BitcoinPacketHeader header;
+    private byte[] payload;
+    private int payloadRead;
+    // Data being written, between position and limit. Null when there is none.
+    private ByteBuffer writeBuffer;
+
+    // Serialized messages waiting for the write buffer. Synchronized on itself, which also keeps the serializer to
+    // one writing thread at a time.
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    private int queuedWriteBytes;
+
+    // Listener calls waiting to be made. The following are synchronized on events.
+    private final LinkedList<Runnable> events = new LinkedList<Runnable>();
+    // True while a task is making the listener calls.
+    private boolean dispatching;
+    private int queuedMessages;
+    private boolean readPaused;
+
+    // True while an update of the interest set is waiting to run on the selector thread.
+    private final AtomicBoolean interestUpdatePending = new AtomicBoolean();
+
+    private final Runnable updateInterestTask = new Runnable() {
+        public void run() {
+            interestUpdatePending.set(false);
+            updateInterestOps();
+        }
+    };
+
+    private final Runnable dispatchTask = new Runnable() {
+        public void run() {
+            runEvents();
+        }
+    };
+
+    NioConnection(NioNetwork.SelectorLoop loop, PeerAddress peerAddress, NetworkParameters params, int bestHeight,
+                  int timeoutMillis, MessageDedupeCache dedupeCache, NioNetwork.ConnectionListener listener,
+                  Executor dispatcher) throws IOException {
+        this.loop = loop;
+        this.params = params;
+        this.bestHeight = bestHeight;
+        this.listener = listener;
+        this.dispatcher = dispatcher;
+        this.magic = (int) params.packetMagic;
+        int port = (peerAddress.port > 0) ? peerAddress.port : params.port;
+        remoteAddress = new InetSocketAddress(peerAddress.addr, port);
+        deadline = System.currentTimeMillis() + timeoutMillis;
+
+        // The version message never uses checksumming. Update checkumming property after version is read.
+        serializer = new BitcoinSerializer(params, false, dedupeCache);
+        // Most blocks downloaded during chain sync contain nothing relevant to us, so avoid decoding them up front.
+        serializer.setParseLazy(true);
+
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(remoteAddress);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues the given message to be sent, and returns without waiting for it to go out. It's safe to call this from
+     * multiple threads simultaneously.
+     *
+     * @throws IOException if the handshake hasn't completed or the connection is closed.
+     */
+    public void writeMessage(Message message) throws IOException {
+        State current = state;
+        if (current != State.OPEN)
+            throw new IOException(current == State.CLOSED ? "Connection is closed" : "Handshake has not completed");
+        enqueue(message);
+    }
+
+    /** Closes the connection. The listener's onDisconnected is called with a null cause. */
+    public void shutdown() {
+        close(null);
+    }
+
+    public VersionMessage getVersionMessage() {
+        return versionMessage;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + remoteAddress.getAddress().getHostAddress() + "]:" + remoteAddress.getPort() + " (" +
+                state.toString().toLowerCase() + ")";
+    }
+
+    /** Closes the channel and tells the listener, unless the connection is already closed. May be called anywhere. */
+    void close(final Exception cause) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Don't care about this.
+        }
+        boolean posted = post(new Runnable() {
+            public void run() {
+                listener.onDisconnected(NioConnection.this, cause);
+            }
+        }, false, State.CLOSED);
+        if (!posted)
+            return;
+        // Not released straight away, as the selector thread may be in the middle of using them.
+        loop.executeLater(new Runnable() {
+            public void run() {
+                if (readBuffer != null)
+                    ByteBufferPool.release(readBuffer);
+                if (writeBuffer != null)
+                    ByteBufferPool.release(writeBuffer);
+                readBuffer = writeBuffer = null;
+                payload = null;
+            }
+        });
+    }
+
+    // Called on the selector thread to start watching the channel.
+    void register(Selector selector) {
+        if (state == State.CLOSED)
+            return;
+        try {
+            boolean pending = channel.isConnectionPending();
+            key = channel.register(selector, pending ? SelectionKey.OP_CONNECT : 0, this);
+            if (!pending)
+                connected();
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    // Called on the selector thread when the channel is ready for something.
+    void handleReady(SelectionKey key) {
+        try {
+            if (key.isConnectable() && channel.finishConnect())
+                connected();
+            if (key.isValid() && key.isReadable())
+                read();
+            if (key.isValid() && key.isWritable())
+                write();
+        } catch (IOException e) {
+            close(e);
+        } catch (ProtocolException e) {
+            close(e);
+        } catch (CancelledKeyException e) {
+            // Closed by another thread.
+        }
+    }
+
+    // Called on the selector thread now and then.
+    void checkTimeout(long now) {
+        State current = state;
+        if (current != State.OPEN && current != State.CLOSED && now > deadline)
+            close(new SocketTimeoutException("Timed out connecting to " + remoteAddress));
+    }
+
+    private void connected() throws IOException {
+        if (!setState(State.AWAIT_VERSION))
+            return;
+        // Announce ourselves. This has to come first to connect to clients beyond v0.30.20.2 which wait to hear
+        // from us until they send their version message back.
+        enqueue(new VersionMessage(params, bestHeight));
+        updateInterestOps();
+    }
+
+    private void read() throws IOException, ProtocolException {
+        if (payload != null && readBuffer == null) {
+            // The rest of a large payload goes straight into the array the message will own.
+            ByteBuffer dst = ByteBuffer.wrap(payload, payloadRead, payload.length - payloadRead);
+            int n = channel.read(dst);
+            if (n == -1)
+                throw new IOException("Socket is disconnected");
+            payloadRead += n;
+            if (payloadRead == payload.length)
+                messageComplete();
+            return;
+        }
+        if (readBuffer == null)
+            readBuffer = ByteBufferPool.acquire();
+        else
+            readBuffer.compact();
+        int n = channel.read(readBuffer);
+        readBuffer.flip();
+        if (n == -1)
+            throw new IOException("Socket is disconnected");
+        parse();
+        if (readBuffer != null && !readBuffer.hasRemaining()) {
+            ByteBufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    // Takes as many messages as are complete out of the read buffer.
+    private void parse() throws ProtocolException, IOException {
+        while (state != State.CLOSED) {
+            if (!magicFound) {
+                if (!seekPastMagicBytes())
+                    return;
+                magicFound = true;
+            }
+            if (header == null) {
+                int headerLength = serializer.getHeaderLength() - 4;
+                if (readBuffer.remaining() < headerLength)
+                    return;
+                byte[] headerBytes = new byte[headerLength];
+                readBuffer.get(headerBytes);
+                header = serializer.deserializeHeader(headerBytes);
+                payload = new byte[header.size];
+                payloadRead = 0;
+            }
+            int n = Math.min(readBuffer.remaining(), payload.length - payloadRead);
+            readBuffer.get(payload, payloadRead, n);
+            payloadRead += n;
+            if (payloadRead < payload.length)
+                return;
+            messageComplete();
+        }
+    }
+
+    /**
+     * Discards data up to and including the next packet magic, keeping the last three bytes if it isn't found in
+     * case a magic is split across reads. Satoshi's implementation ignores garbage before the magic header bytes,
+     * and we have to do the same.
+     */
+    private boolean seekPastMagicBytes() {
+        // The buffer is big endian, as is the magic in NetworkParameters.
+        int limit = readBuffer.limit() - 3;
+        for (int i = readBuffer.position(); i < limit; i++) {
+            if (readBuffer.getInt(i) == magic) {
+                readBuffer.position(i + 4);
+                return true;
+            }
+        }
+        readBuffer.position(Math.max(readBuffer.position(), limit));
+        return false;
+    }
+
+    private void messageComplete() throws ProtocolException, IOException {
+        Message m = serializer.deserializePayload(header, payload);
+        int size = header.size;
+        magicFound = false;
+        header = null;
+        payload = null;
+        // If message is null it was a duplicate that deduping skipped.
+        if (m == null)
+            return;
+        switch (state) {
+            case AWAIT_VERSION:
+                // Bad peers might not follow the protocol. This has been seen in the wild (issue 81).
+                if (!(m instanceof VersionMessage))
+                    throw new ProtocolException("First message received was not a version message but rather " + m);
+                VersionMessage version = (VersionMessage) m;
+                // BitCoinJ is a client mode implementation. That means there's not much point in us talking to
+                // other client mode nodes because we can't download the data from them we need.
+                if (!version.hasBlockChain())
+                    throw new ProtocolException("Peer does not have a copy of the block chain.");
+                versionMessage = version;
+                // Send an ACK message stating we accept the peers protocol version, and wait for one back.
+                enqueue(new VersionAck());
+                setState(State.AWAIT_VERACK);
+                break;
+            case AWAIT_VERACK:
+                // Newer clients use checksumming. The switch has to happen before the listener can write anything.
+                serializer.setUseChecksumming(versionMessage.clientVersion >= 209);
+                log.info("Connected to peer: version={}, subVer='{}', services=0x{}, time={}, blocks={}",
+                        new Object[] {
+                                versionMessage.clientVersion,
+                                versionMessage.subVer,
+                                versionMessage.localServices,
+                                new Date(versionMessage.time * 1000),
+                                versionMessage.bestHeight
+                        });
+                post(new Runnable() {
+                    public void run() {
+                        listener.onConnected(NioConnection.this);
+                    }
+                }, false, State.OPEN);
+                break;
+            case OPEN:
+                post(new MessageEvent(m, size), true, null);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void write() throws IOException {
+        while (true) {
+            if (writeBuffer == null) {
+                synchronized (writeQueue) {
+                    if (writeQueue.isEmpty())
+                        break;
+                    // Several small messages, like the getdatas during chain download, go out in one write.
+                    writeBuffer = ByteBufferPool.acquire();
+                    while (!writeQueue.isEmpty() && writeBuffer.hasRemaining()) {
+                        ByteBuffer next = writeQueue.getFirst();
+                        if (next.remaining() <= writeBuffer.remaining()) {
+                            writeBuffer.put(next);
+                            writeQueue.removeFirst();
+                        } else {
+                            int limit = next.limit();
+                            next.limit(next.position() + writeBuffer.remaining());
+                            writeBuffer.put(next);
+                            next.limit(limit);
+                        }
+                    }
+                    queuedWriteBytes -= writeBuffer.position();
+                }
+                writeBuffer.flip();
+            }
+            channel.write(writeBuffer);
+            // If the socket's buffer is full, carry on when the selector says there is room.
+            if (writeBuffer.hasRemaining())
+                return;
+            ByteBufferPool.release(writeBuffer);
+            writeBuffer = null;
+        }
+        updateInterestOps();
+    }
+
+    // Serializes a message onto the write queue. Runs on the writing thread.
+    private void enqueue(Message message) throws IOException {
+        IOException overflow = null;
+        synchronized (writeQueue) {
+            if (queuedWriteBytes > MAX_QUEUED_WRITE_BYTES) {
+                overflow = new IOException("Peer is not reading, " + queuedWriteBytes + " bytes waiting to be sent");
+            } else {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(serializer.getHeaderLength() + 32);
+                serializer.serialize(message, bos);
+                byte[] bytes = bos.toByteArray();
+                writeQueue.add(ByteBuffer.wrap(bytes));
+                queuedWriteBytes += bytes.length;
+            }
+        }
+        if (overflow != null) {
+            close(overflow);
+            throw overflow;
+        }
+        requestInterestUpdate();
+    }
+
+    private void requestInterestUpdate() {
+        if (interestUpdatePending.compareAndSet(false, true))
+            loop.execute(updateInterestTask);
+    }
+
+    // Runs on the selector thread: reads unless the listener is behind, writes if anything is waiting to go out.
+    private void updateInterestOps() {
+        if (key == null || !key.isValid())
+            return;
+        State current = state;
+        if (current == State.CONNECTING || current == State.CLOSED)
+            return;
+        int ops = 0;
+        synchronized (events) {
+            if (!readPaused)
+                ops |= SelectionKey.OP_READ;
+        }
+        synchronized (writeQueue) {
+            if (writeBuffer != null || !writeQueue.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+        }
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            // Closed by another thread.
+        }
+    }
+
+    // Moves to the given state, unless the connection has been closed. Returns false if it was.
+    private boolean setState(State newState) {
+        synchronized (events) {
+            if (state == State.CLOSED)
+                return false;
+            state = newState;
+            return true;
+        }
+    }
+
+    /**
+     * Queues a listener call, and moves to newState if that is not null, unless the connection has been closed.
+     * Listener calls are made one at a time, and outside any lock so that listeners can take their own.
+     */
+    private boolean post(Runnable event, boolean isMessage, State newState) {
+        boolean startDispatch;
+        boolean pause = false;
+        synchronized (events) {
+            if (state == State.CLOSED)
+                return false;
+            if (newState != null)
+                state = newState;
+            events.add(event);
+            if (isMessage && ++queuedMessages >= MAX_QUEUED_MESSAGES && !readPaused) {
+                readPaused = true;
+                pause = true;
+            }
+            startDispatch = !dispatching;
+            dispatching = true;
+        }
+        if (pause)
+            requestInterestUpdate();
+        if (startDispatch) {
+            if (dispatcher != null)
+                dispatcher.execute(dispatchTask);
+            else
+                loop.execute(dispatchTask);
+        }
+        return true;
+    }
+
+    private void runEvents() {
+        while (true) {
+            Runnable event;
+            synchronized (events) {
+                if (events.isEmpty()) {
+                    dispatching = false;
+                    return;
+                }
+                event = events.removeFirst();
+            }
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception in listener of " + this, e);
+                close(e);
+            }
+        }
+    }
+
+    private class MessageEvent implements Runnable {
+        private final Message message;
+        private final int size;
+
+        MessageEvent(Message message, int size) {
+            this.message = message;
+            this.size = size;
+        }
+
+        public void run() {
+            try {
+                // Messages still queued when the connection closes are dropped.
+                if (state != State.CLOSED)
+                    listener.onMessage(NioConnection.this, message, size);
+            } finally {
+                boolean resume = false;
+                synchronized (events) {
+                    queuedMessages--;
+                    // Wait until the listener is well behind the limit, rather than pausing and resuming constantly.
+                    if (readPaused && queuedMessages <= MAX_QUEUED_MESSAGES / 2) {
+                        readPaused = false;
+                        resume = true;
+                    }
+                }
+                if (resume)
+                    requestInterestUpdate();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many peer connections on a few threads, as an alternative to a {@link NetworkConnection} and a thread per
+ * peer. Each selector thread multiplexes its share of the connections over non-blocking channels, so an idle
+ * connection costs a socket and a little bookkeeping rather than a thread stack. Read and write buffers come from a
+ * shared pool and are only held while a connection has data in them.<p>
+ *
+ * Received messages are handed to a {@link ConnectionListener}. Listener calls for any one connection are made in
+ * order and never at the same time, but they run on the dispatcher given to the constructor, so a slow listener does
+ * not hold up the other connections. Without a dispatcher they run on the selector thread and must be quick.<p>
+ *
+ * Connections are made with {@link #connect}. To use this from a {@link PeerGroup}, pass it to the constructor.
+ */
+public class NioNetwork {
+    private static final Logger log = LoggerFactory.getLogger(NioNetwork.class);
+
+    // How often the selector threads wake up to check for connections that have taken too long to handshake.
+    private static final long TIMEOUT_CHECK_MILLIS = 1000;
+
+    /**
+     * Receives the events of a {@link NioConnection}. Calls for one connection are made one at a time, in order:
+     * onConnected, then onMessage for each message received, then onDisconnected. A connection that fails before
+     * its handshake completes only gets onDisconnected.
+     */
+    public interface ConnectionListener {
+        /** Called once the version handshake has completed and messages can be written. */
+        void onConnected(NioConnection connection);
+
+        /**
+         * Called for each message received after the handshake, with the payload length given in its packet header.
+         */
+        void onMessage(NioConnection connection, Message message, int size);
+
+        /**
+         * Called once the connection is closed.
+         *
+         * @param cause why the connection failed, or null if it was closed with {@link NioConnection#shutdown()}.
+         */
+        void onDisconnected(NioConnection connection, Exception cause);
+    }
+
+    private final SelectorLoop[] loops;
+    private final Executor dispatcher;
+    private final MessageDedupeCache dedupeCache = BitcoinSerializer.createDedupeCache();
+    // Picks the selector thread for the next connection.
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Starts the given number of selector threads.
+     *
+     * @param dispatcher runs the listener calls, or null to run them on the selector threads. It is not shut down
+     *                   by {@link #shutdown()}.
+     */
+    public NioNetwork(int selectorThreads, Executor dispatcher) throws IOException {
+        if (selectorThreads < 1)
+            throw new IllegalArgumentException("Need at least one selector thread: " + selectorThreads);
+        this.dispatcher = dispatcher;
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            loops[i] = new SelectorLoop("NioNetwork selector " + i);
+            loops[i].thread.start();
+        }
+    }
+
+    /**
+     * Starts connecting to the given address, and returns straight away. The listener hears about the outcome.
+     *
+     * @param peerAddress address to connect to. If port is not positive the default port from params is used.
+     * @param bestHeight how many blocks are in our best chain, for the version message.
+     * @param timeoutMillis how long the connection and version handshake may take together.
+     * @param dedupe whether to avoid parsing blocks and transactions already received on other connections.
+     */
+    public NioConnection connect(PeerAddress peerAddress, NetworkParameters params, int bestHeight,
+                                 int timeoutMillis, boolean dedupe, ConnectionListener listener) throws IOException {
+        SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        if (!loop.running)
+            throw new IOException("NioNetwork has been shut down");
+        NioConnection connection = new NioConnection(loop, peerAddress, params, bestHeight, timeoutMillis,
+                dedupe ? dedupeCache : null, listener, dispatcher);
+        loop.register(connection);
+        return connection;
+    }
+
+    /** Closes every connection and stops the selector threads. */
+    public void shutdown() {
+        for (SelectorLoop loop : loops)
+            loop.shutdown();
+    }
+
+    /** A selector and the thread that runs it. Everything to do with its keys happens on that thread. */
+    static class SelectorLoop implements Runnable {
+        final Thread thread;
+        private final Selector selector;
+        // Work handed over from other threads, run at the top of the loop.
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean running = true;
+
+        SelectorLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /** Runs the given task on the selector thread: now if called from it, otherwise as soon as it wakes. */
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        /** Runs the given task on the selector thread once the current round of events has been handled. */
+        void executeLater(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(final NioConnection connection) {
+            execute(new Runnable() {
+                public void run() {
+                    connection.register(selector);
+                }
+            });
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            long lastTimeoutCheck = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(TIMEOUT_CHECK_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((NioConnection) key.attachment()).handleReady(key);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastTimeoutCheck >= TIMEOUT_CHECK_MILLIS) {
+                        lastTimeoutCheck = now;
+                        for (SelectionKey key : selector.keys())
+                            ((NioConnection) key.attachment()).checkTimeout(now);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Selector failed", e);
+            } finally {
+                running = false;
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                for (SelectionKey key : selector.keys())
+                    ((NioConnection) key.attachment()).close(null);
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Don't care about this.
+                }
+            }
+        }
+    }
+}
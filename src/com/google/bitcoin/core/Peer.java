@@ -42,8 +42,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -57,8 +62,13 @@ import java.util.concurrent.TimeoutException;
  */
 public class Peer {
     private static final Logger log = LoggerFactory.getLogger(Peer.class);
+
+    /** The default for {@link #setMaxBlocksInFlight(int)}. */
+    public static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 16;
+    // The most blocks a peer announces in answer to one getblocks.
+    private static final int GETBLOCKS_BATCH_SIZE = 500;
     
-    private NetworkConnection conn;
+    private PeerConnection conn;
     private final NetworkParameters params;
     // Whether the peer loop is supposed to be running or not. Set to false during shutdown so the peer loop
     // knows to quit when the socket goes away.
@@ -71,10 +81,43 @@ public class Peer {
 
     private int bestHeight;
 
+    // Blocks with a timestamp before this, in seconds since the epoch, are downloaded as headers only.
+    private volatile long fastCatchupTimeSecs;
+    // True while the chain download uses getheaders rather than getblocks.
+    private volatile boolean downloadHeaders;
+
+    // When set, announced blocks are downloaded through this, which shares them out between several peers.
+    private volatile BlockDownloadScheduler downloadScheduler;
+
+    // Without a scheduler, announced blocks are asked for through a sliding window: blocksToRequest holds the ones
+    // not asked for yet, in the order announced, and at most maxBlocksInFlight are asked for at once. A slot only
+    // frees up once its block has been added to the chain, so if that falls behind the requests slow down with it.
+    // blocksInFlight maps each block asked for to when it was asked for, oldest first. A request that isn't answered
+    // within the scheduler's timeout is made again, up to its number of attempts, and then given up on so the slot
+    // isn't lost for good. If the chain still needs that block, the blocks after it are orphans and the download
+    // asks for it again. These fields are synchronized on blocksInFlight.
+    private final Map<Sha256Hash, Long> blocksInFlight = new LinkedHashMap<Sha256Hash, Long>();
+    private final Set<Sha256Hash> blocksToRequest = new LinkedHashSet<Sha256Hash>();
+    // How many requests for each block in the window have timed out.
+    private final Map<Sha256Hash, Integer> blockRequestTimeouts = new HashMap<Sha256Hash, Integer>();
+    private volatile int maxBlocksInFlight = DEFAULT_MAX_BLOCKS_IN_FLIGHT;
+    // The last block of a full getblocks answer. The next batch is asked for from here once the blocks still to
+    // download fit in the window, so its inv arrives before the window runs dry.
+    private Sha256Hash nextBatchStart;
+    // True from asking for the next batch until an inv answers it.
+    private boolean nextBatchRequested;
+
     private PeerAddress address;
 
     private List<PeerEventListener> eventListeners;
 
+    private final PeerStats stats = new PeerStats();
+
+    // If set, addresses the peer tells us about are recorded here.
+    private volatile AddressManager addressManager;
+    // If set, the transactions the peer announces are passed to the broadcasts waiting to see them.
+    private volatile BroadcastTracker broadcastTracker;
+
     /**
      * If true, we do some things that may only make sense on constrained devices like Android phones. Currently this
      * only controls message deduplication.
@@ -112,6 +155,49 @@ public class Peer {
         return eventListeners.remove(listener);
     }
 
+    /**
+     * Sets the time before which no block can contain anything our wallets care about, normally the creation time
+     * of the oldest key. Blocks before it are then downloaded as 80 byte headers, which is all the block chain
+     * needs of them, and only later ones in full. This makes the first download of the chain much faster. The
+     * default of zero downloads every block in full.
+     */
+    public void setFastCatchupTime(long secondsSinceEpoch) {
+        fastCatchupTimeSecs = secondsSinceEpoch;
+    }
+
+    public long getFastCatchupTime() {
+        return fastCatchupTimeSecs;
+    }
+
+    /**
+     * Sets how many blocks may be asked of this peer at once during the chain download. More keeps the connection
+     * busy when it has a long round trip time, at the cost of memory for blocks received but not yet processed.
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        if (maxBlocksInFlight < 1)
+            throw new IllegalArgumentException("maxBlocksInFlight must be at least 1: " + maxBlocksInFlight);
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    public int getMaxBlocksInFlight() {
+        return maxBlocksInFlight;
+    }
+
+    /** Records the addresses this peer tells us about in the given address manager. */
+    void setAddressManager(AddressManager addressManager) {
+        this.addressManager = addressManager;
+    }
+
+    /** Returns the address of the peer. */
+    public PeerAddress getAddress() {
+        return address;
+    }
+
+    /** Returns measurements of how well this peer is serving us. */
+    public PeerStats getStats() {
+        return stats;
+    }
+
     @Override
     public String toString() {
         return "Peer(" + address.addr + ":" + address.port + ")";
@@ -122,9 +208,20 @@ public class Peer {
      * 
      * @throws PeerException when there is a temporary problem with the peer and we should retry later
      */
-    public synchronized void connect() throws PeerException {
+    public void connect() throws PeerException {
+        connect(60000);
+    }
+
+    /**
+     * Connects to the peer, giving up if the connection and version handshake take longer than timeoutMillis.
+     *
+     * @throws PeerException when there is a temporary problem with the peer and we should retry later
+     */
+    public synchronized void connect(int timeoutMillis) throws PeerException {
         try {
-            conn = new NetworkConnection(address, params, bestHeight, 60000, MOBILE_OPTIMIZED);
+            stats.connectStarted();
+            conn = new NetworkConnection(address, params, bestHeight, timeoutMillis, MOBILE_OPTIMIZED);
+            stats.connectFinished();
         } catch (IOException ex) {
             throw new PeerException(ex);
         } catch (ProtocolException ex) {
@@ -132,8 +229,11 @@ public class Peer {
         }
     }
 
-    // For testing
-    void setConnection(NetworkConnection conn) {
+    /**
+     * Sets the connection to talk through, instead of calling connect(). Used for connections made by a
+     * {@link NioNetwork}, which then hands each message it receives to {@link #processMessage(Message, int)}.
+     */
+    void setConnection(PeerConnection conn) {
         this.conn = conn;
     }
 
@@ -146,26 +246,16 @@ public class Peer {
      */
     public void run() throws PeerException {
         // This should be called in the network loop thread for this peer
-        if (conn == null)
+        if (!(conn instanceof NetworkConnection))
             throw new RuntimeException("please call connect() first");
+        NetworkConnection blockingConn = (NetworkConnection) conn;
         
         running = true;
         
         try {
             while (true) {
-                Message m = conn.readMessage();
-                if (m instanceof InventoryMessage) {
-                    processInv((InventoryMessage) m);
-                } else if (m instanceof Block) {
-                    processBlock((Block) m);
-                } else if (m  instanceof AddressMessage) {
-                    // We don't care about addresses of the network right now. But in future,
-                    // we should save them in the wallet so we don't put too much load on the seed nodes and can
-                    // properly explore the network.
-                } else {
-                    // TODO: Handle the other messages we can receive.
-                    log.warn("Received unhandled message: {}", m);
-                }
+                Message m = blockingConn.readMessage();
+                processMessage(m, blockingConn.getLastMessageSize());
             }
         } catch (IOException e) {
             if (!running) {
@@ -187,23 +277,69 @@ public class Peer {
         disconnect();
     }
 
+    /**
+     * Handles a message received from the peer, whose payload was size bytes long. Called by run(), or by the
+     * listener of a non-blocking connection.
+     */
+    void processMessage(Message m, int size) throws IOException {
+        stats.messageReceived(m, size);
+        expireBlockRequests();
+        if (m instanceof InventoryMessage) {
+            processInv((InventoryMessage) m);
+        } else if (m instanceof Block) {
+            processBlock((Block) m);
+        } else if (m instanceof HeadersMessage) {
+            processHeaders((HeadersMessage) m);
+        } else if (m  instanceof AddressMessage) {
+            // Remembered so we don't put too much load on the seed nodes, and can reconnect quickly next time.
+            AddressManager manager = addressManager;
+            if (manager != null)
+                manager.add(((AddressMessage) m).addresses, address.addr);
+        } else {
+            // TODO: Handle the other messages we can receive.
+            log.warn("Received unhandled message: {}", m);
+        }
+    }
+
     private void processBlock(Block m) throws IOException {
         // This should called in the network loop thread for this peer
-        try {
-            // Was this block requested by getBlock()?
-            synchronized (pendingGetBlockFutures) {
-                for (int i = 0; i < pendingGetBlockFutures.size(); i++) {
-                    GetDataFuture<Block> f = pendingGetBlockFutures.get(i);
-                    if (f.getItem().hash.equals(m.getHash())) {
-                        // Yes, it was. So pass it through the future.
-                        f.setResult(m);
-                        // Blocks explicitly requested don't get sent to the block chain.
-                        pendingGetBlockFutures.remove(i);
-                        return;
-                    }
+        // Was this block requested by getBlock()?
+        synchronized (pendingGetBlockFutures) {
+            for (int i = 0; i < pendingGetBlockFutures.size(); i++) {
+                GetDataFuture<Block> f = pendingGetBlockFutures.get(i);
+                if (f.getItem().hash.equals(m.getHash())) {
+                    // Yes, it was. So pass it through the future.
+                    f.setResult(m);
+                    // Blocks explicitly requested don't get sent to the block chain.
+                    pendingGetBlockFutures.remove(i);
+                    return;
                 }
             }
-            // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
+        }
+        // Was it requested by the download scheduler? If so it is added to the chain in order with the others.
+        BlockDownloadScheduler scheduler = downloadScheduler;
+        if (scheduler != null && scheduler.blockReceived(this, m))
+            return;
+        // Otherwise it's a block from the window, or one sent to us because the peer thought we needed it, so add
+        // it to the block chain.
+        Long requestTime;
+        synchronized (blocksInFlight) {
+            requestTime = blocksInFlight.remove(m.getHash());
+            blockRequestTimeouts.remove(m.getHash());
+        }
+        if (requestTime != null)
+            stats.blockResponse(System.currentTimeMillis() - requestTime);
+        addToChain(m);
+        if (requestTime != null)
+            fillWindow();
+    }
+
+    /**
+     * Adds a block this peer announced to the block chain, and continues the chain download from this peer if the
+     * block doesn't connect. Verification failures are logged, not thrown. This may run in ANY thread.
+     */
+    void addToChain(Block m) throws IOException {
+        try {
             // This call will synchronize on blockChain.
             if (blockChain.add(m)) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
@@ -222,6 +358,7 @@ public class Peer {
                 // TODO: Should actually request root of orphan chain here.
                 blockChainDownload(m.getHash());
             }
+            requestNextBatchIfLow();
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
             log.warn("Block verification failed", e);
@@ -231,6 +368,52 @@ public class Peer {
         }
     }
 
+    private void processHeaders(HeadersMessage m) throws IOException {
+        // This should be called in the network loop thread for this peer
+        if (!downloadHeaders) {
+            log.warn("Received {} block headers that were not asked for", m.getBlockHeaders().size());
+            return;
+        }
+        try {
+            for (Block header : m.getBlockHeaders()) {
+                if (header.getTimeSeconds() >= fastCatchupTimeSecs) {
+                    // This block and the ones after it may hold transactions for our wallets, so download them in
+                    // full. The locator for that starts from the last header we added.
+                    log.info("Passed the fast catchup time at block {}, downloading full blocks",
+                            header.getHashAsString());
+                    downloadHeaders = false;
+                    blockChainDownload(Sha256Hash.ZERO_HASH);
+                    return;
+                }
+                if (!blockChain.addHeader(header)) {
+                    // The headers follow the locator we sent, so this should not happen. Try again from where we are.
+                    log.warn("Block header does not connect: {}", header.getHashAsString());
+                    blockChainDownload(Sha256Hash.ZERO_HASH);
+                    return;
+                }
+                for (PeerEventListener listener : eventListeners) {
+                    synchronized (listener) {
+                        listener.onBlocksDownloaded(this, header, getPeerBlocksToGet());
+                    }
+                }
+            }
+            if (m.getBlockHeaders().size() == HeadersMessage.MAX_HEADERS) {
+                // A full message means the peer has more.
+                blockChainDownload(Sha256Hash.ZERO_HASH);
+            } else {
+                // We have every header the peer knows about, and none of them were recent enough to need the block.
+                log.info("Header download complete");
+                downloadHeaders = false;
+            }
+        } catch (VerificationException e) {
+            // Asking again would get the same header, so stop talking to this peer. Its PeerGroup, if any, moves the
+            // download to another one, and otherwise run() returns.
+            log.warn("Block header verification failed, disconnecting from " + this, e);
+            downloadHeaders = false;
+            disconnect();
+        }
+    }
+
     private void processInv(InventoryMessage inv) throws IOException {
         // This should be called in the network loop thread for this peer
 
@@ -247,22 +430,127 @@ public class Peer {
             // it's kind of like a tickle from the peer telling us that it's time to download more blocks to catch up to
             // the block chain. We could just ignore this and treat it as a regular inv but then we'd download the head
             // block over and over again after each batch of 500 blocks, which is wasteful.
+            // If the next batch was already asked for, its inv continues the download and this can be ignored.
+            synchronized (blocksInFlight) {
+                if (nextBatchRequested)
+                    return;
+            }
             blockChainDownload(topHash);
             return;
         }
-        GetDataMessage getdata = new GetDataMessage(params);
-        boolean dirty = false;
+        List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>();
+        List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>();
         for (InventoryItem item : items) {
-            if (item.type != InventoryItem.Type.Block) continue;
-            getdata.addItem(item);
-            dirty = true;
+            if (item.type == InventoryItem.Type.Block)
+                blockHashes.add(item.hash);
+            else if (item.type == InventoryItem.Type.Transaction)
+                txHashes.add(item.hash);
         }
+        // Other peers announcing a transaction we broadcast shows that it is spreading.
+        BroadcastTracker tracker = broadcastTracker;
+        if (tracker != null && !txHashes.isEmpty())
+            tracker.transactionsAnnounced(this, txHashes);
         // No blocks to download. This probably contained transactions instead, but right now we can't prove they are
         // valid so we don't bother downloading transactions that aren't in blocks yet.
-        if (!dirty)
+        if (blockHashes.isEmpty())
+            return;
+        synchronized (blocksInFlight) {
+            nextBatchRequested = false;
+            if (blockHashes.size() == GETBLOCKS_BATCH_SIZE)
+                nextBatchStart = blockHashes.get(blockHashes.size() - 1);
+        }
+        BlockDownloadScheduler scheduler = downloadScheduler;
+        if (scheduler != null) {
+            scheduler.enqueue(this, blockHashes);
             return;
+        }
+        synchronized (blocksInFlight) {
+            for (Sha256Hash hash : blockHashes) {
+                if (!blocksInFlight.containsKey(hash))
+                    blocksToRequest.add(hash);
+            }
+        }
         // This will cause us to receive a bunch of block messages.
-        conn.writeMessage(getdata);
+        fillWindow();
+    }
+
+    // Asks for announced blocks until the window is full.
+    private void fillWindow() throws IOException {
+        GetDataMessage getdata = new GetDataMessage(params);
+        long now = System.currentTimeMillis();
+        synchronized (blocksInFlight) {
+            Iterator<Sha256Hash> it = blocksToRequest.iterator();
+            while (blocksInFlight.size() < maxBlocksInFlight && it.hasNext()) {
+                Sha256Hash hash = it.next();
+                it.remove();
+                blocksInFlight.put(hash, now);
+                getdata.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+            }
+        }
+        if (!getdata.getItems().isEmpty())
+            conn.writeMessage(getdata);
+        requestNextBatchIfLow();
+    }
+
+    // Asks again for the blocks in the window that haven't arrived in time, or gives up on them. Checked as messages
+    // arrive, as a peer that is still talking but ignores a request would otherwise hold its slot forever.
+    private void expireBlockRequests() throws IOException {
+        List<Sha256Hash> retry = new ArrayList<Sha256Hash>();
+        boolean expired = false;
+        long now = System.currentTimeMillis();
+        synchronized (blocksInFlight) {
+            for (Iterator<Map.Entry<Sha256Hash, Long>> it = blocksInFlight.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Sha256Hash, Long> entry = it.next();
+                // Oldest first, so the rest haven't timed out either.
+                if (now - entry.getValue() < BlockDownloadScheduler.REQUEST_TIMEOUT_MILLIS)
+                    break;
+                it.remove();
+                expired = true;
+                Sha256Hash hash = entry.getKey();
+                Integer count = blockRequestTimeouts.get(hash);
+                int timeouts = count == null ? 1 : count + 1;
+                if (timeouts >= BlockDownloadScheduler.MAX_REQUEST_ATTEMPTS) {
+                    blockRequestTimeouts.remove(hash);
+                    log.warn("{} did not send block {}, giving up on it", this, hash);
+                } else {
+                    blockRequestTimeouts.put(hash, timeouts);
+                    retry.add(hash);
+                }
+            }
+            if (!retry.isEmpty()) {
+                // They go before the blocks not asked for yet, to keep to the order of the chain.
+                retry.addAll(blocksToRequest);
+                blocksToRequest.clear();
+                blocksToRequest.addAll(retry);
+            }
+        }
+        if (expired)
+            fillWindow();
+    }
+
+    // Asks for the next batch of the chain if the last inv was a full one and the blocks left to download from it
+    // fit in the window. The locator starts with the last block announced, so the peer carries on from there even
+    // though the blocks before it are not in our chain yet.
+    private void requestNextBatchIfLow() throws IOException {
+        // Asked before taking the window lock, so the scheduler's lock is never taken while holding it.
+        BlockDownloadScheduler scheduler = downloadScheduler;
+        boolean schedulerLow = scheduler != null && scheduler.isRunningLow();
+        Sha256Hash start;
+        synchronized (blocksInFlight) {
+            if (nextBatchStart == null)
+                return;
+            boolean low = scheduler != null ? schedulerLow
+                                            : blocksToRequest.size() + blocksInFlight.size() <= maxBlocksInFlight;
+            if (!low)
+                return;
+            start = nextBatchStart;
+            nextBatchStart = null;
+            nextBatchRequested = true;
+        }
+        List<Sha256Hash> locator = blockChain.getBlockLocator();
+        locator.add(0, start);
+        log.info("Requesting the blocks after {}", start);
+        conn.writeMessage(new GetBlocksMessage(params, locator, Sha256Hash.ZERO_HASH));
     }
 
     /**
@@ -351,6 +639,23 @@ public class Peer {
         conn.writeMessage(tx);
     }
 
+    void sendMessage(Message m) throws IOException {
+        conn.writeMessage(m);
+    }
+
+    /** Tells the given tracker about the transactions this peer announces. May be null. */
+    void setBroadcastTracker(BroadcastTracker tracker) {
+        broadcastTracker = tracker;
+    }
+
+    /**
+     * Hands the blocks this peer announces to the given scheduler, which decides which peer to download them from.
+     * Pass null to download them from this peer as they are announced.
+     */
+    void setDownloadScheduler(BlockDownloadScheduler scheduler) {
+        downloadScheduler = scheduler;
+    }
+
     private void blockChainDownload(Sha256Hash toHash) throws IOException {
         // This may run in ANY thread.
 
@@ -381,15 +686,10 @@ public class Peer {
         // in a relatively stateless manner and with constant/bounded memory usage.
         log.info("blockChainDownload({})", toHash.toString());
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new LinkedList<Sha256Hash>();
-        // We don't do the exponential thinning here, so if we get onto a fork of the chain we will end up
-        // redownloading the whole thing again.
-        blockLocator.add(params.genesisBlock.getHash());
-        Block topBlock = blockChain.getChainHead().getHeader();
-        if (!topBlock.equals(params.genesisBlock))
-            blockLocator.add(0, topBlock.getHash());
-        GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
+        List<Sha256Hash> blockLocator = blockChain.getBlockLocator();
+        // Headers only need to be asked for once, as the peer sends them straight back rather than an inv.
+        GetBlocksMessage message = downloadHeaders ? new GetHeadersMessage(params, blockLocator, toHash)
+                                                   : new GetBlocksMessage(params, blockLocator, toHash);
         conn.writeMessage(message);
     }
 
@@ -407,6 +707,8 @@ public class Peer {
                 }
             }
 
+            // Blocks older than the fast catchup time are fetched as headers first.
+            downloadHeaders = blockChain.getChainHead().getHeader().getTimeSeconds() < fastCatchupTimeSecs;
             // When we just want as many blocks as possible, we can set the target hash to zero.
             blockChainDownload(Sha256Hash.ZERO_HASH);
         }
@@ -415,7 +717,7 @@ public class Peer {
     /**
      * @return the number of blocks to get, based on our chain height and the peer reported height
      */
-    private int getPeerBlocksToGet() {
+    int getPeerBlocksToGet() {
         // Chain will overflow signed int blocks in ~41,000 years.
         int chainHeight = (int) conn.getVersionMessage().bestHeight;
         if (chainHeight <= 0) {
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+
+/**
+ * The part of a connection to a remote node that a {@link Peer} talks through once the version handshake is done.
+ * A {@link NetworkConnection} blocks the thread reading from it, whereas a {@link NioConnection} hands received
+ * messages to a listener from a shared {@link NioNetwork}.
+ */
+public interface PeerConnection {
+    /**
+     * Sends the given message. It's safe to call this from multiple threads simultaneously.
+     *
+     * @throws IOException if the connection is closed or broken.
+     */
+    void writeMessage(Message message) throws IOException;
+
+    /** Closes the connection. Messages written just before may not get sent. */
+    void shutdown() throws IOException;
+
+    /** Returns the version message received from the other end of the connection during the handshake. */
+    VersionMessage getVersionMessage();
+}
@@ -38,6 +38,7 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.discovery.ConcurrentDiscovery;
 import com.google.bitcoin.discovery.PeerDiscovery;
 import com.google.bitcoin.discovery.PeerDiscoveryException;
 import com.google.bitcoin.store.BlockStore;
@@ -54,6 +55,7 @@ import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -63,14 +65,21 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Maintain a number of connections to peers.
  * 
  * <p>PeerGroup tries to maintain a constant number of connections to a set of distinct peers.
- * Each peer runs a network listener in its own thread.  When a connection is lost, a new peer
- * will be tried after a delay as long as the number of connections less than the maximum.
+ * Each peer runs a network listener in its own thread.  Whilst there are fewer connections than the maximum,
+ * several handshakes are raced at once and the first to finish are kept. Each address that fails is retried after a
+ * delay that doubles with every failure.
  * 
  * <p>Connections are made to addresses from a provided list.  When that list is exhausted,
  * we start again from the head of the list.
  * 
  * <p>The PeerGroup can broadcast a transaction to the currently connected set of peers.  It can
- * also handle download of the blockchain from peers, restarting the process when peers die.
+ * also handle download of the blockchain from peers, restarting the process when peers die. The chain is
+ * downloaded from the fastest peer according to its {@link PeerStats}, and if the download stalls it moves to
+ * another peer, carrying on from the current chain head. The blocks
+ * themselves are requested from all connected peers at once, see {@link BlockDownloadScheduler}.
+ *
+ * <p>By default each peer runs in its own thread. Given a {@link NioNetwork}, all the connections share its selector
+ * threads instead, which makes it affordable to keep many more of them open.
  * 
  * @author miron@google.com (Miron Cuperman a.k.a devrandom)
  *
@@ -83,30 +92,84 @@ public class PeerGroup {
     public static final int DEFAULT_CONNECTION_DELAY_MILLIS = 5 * 1000;
     private static final int CORE_THREADS = 1;
     private static final int THREAD_KEEP_ALIVE_SECONDS = 1;
+    // How long each attempt may take to connect and complete the version handshake.
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000;
+    // How many handshakes are raced for each connection we are short of, and at most in total.
+    private static final int HANDSHAKES_PER_CONNECTION = 2;
+    private static final int MAX_PENDING_HANDSHAKES = 16;
+    // The longest an address that keeps failing is left before it is tried again.
+    private static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000;
+
+    /** The default for {@link #setStallTimeout(long)}. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 30 * 1000;
+    // How often the download is checked for stalls.
+    private static final long STALL_CHECK_MILLIS = 5 * 1000;
+    // A peer whose chain is shorter than the longest by more than this is not downloaded from.
+    private static final int DOWNLOAD_PEER_HEIGHT_SLACK = 2;
+    // How many known addresses to try at a time, at start up and whenever we run out.
+    private static final int KNOWN_ADDRESS_BATCH = 32;
+    // While the address manager knows fewer addresses than this, new peers are asked for more.
+    private static final int GETADDR_THRESHOLD = 1000;
+    private static final long ADDRESS_SAVE_MILLIS = 10 * 60 * 1000;
+
+    /** The default number of other peers that must announce a transaction we broadcast for it to succeed. */
+    public static final int DEFAULT_BROADCAST_MIN_PEERS = 1;
+    /** The default time a broadcast may take to be announced by enough peers. */
+    public static final long DEFAULT_BROADCAST_TIMEOUT_MILLIS = 60 * 1000;
 
     // Addresses to try to connect to, excluding active peers
     private BlockingQueue<PeerAddress> inactives;
     // Connection initiation thread
     private Thread connectThread;
     // True if the connection initiation thread should be running
-    private boolean running;
-    // A pool of threads for peers, of size maxConnection
+    private volatile boolean running;
+    // A pool of threads for peers and their handshakes. The connection thread limits how many there are.
     private ThreadPoolExecutor peerPool;
-    // Currently active peers
+    // Currently active peers. Also the lock for the fields below, and notified when they change.
     private Set<Peer> peers;
-    // The peer we are currently downloading the chain from
+    private volatile int maxConnections = DEFAULT_CONNECTIONS;
+    // Handshakes that have not finished yet.
+    private int pendingHandshakes;
+    // The addresses of active peers and pending handshakes. They are not in inactives.
+    private final Set<InetSocketAddress> activeAddresses = new HashSet<InetSocketAddress>();
+    // When each address that failed, or dropped us, may be tried again.
+    private final Map<InetSocketAddress, Backoff> backoffs = new HashMap<InetSocketAddress, Backoff>();
+    // The peer we are currently downloading the chain from. Synchronized on this. Messages to peers are sent after
+    // releasing the lock, so a peer with a full send buffer can't hold up new handshakes and the stall check.
     private Peer downloadPeer;
     // Callback for events related to chain download
     private PeerEventListener downloadListener;
     // Callbacks for events related to peer connection/disconnection
     private Set<PeerEventListener> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
-    private Set<PeerDiscovery> peerDiscoverers;
+    private final ConcurrentDiscovery discovery = new ConcurrentDiscovery();
     
     private NetworkParameters params;
     private BlockStore blockStore;
     private BlockChain chain;
     private int connectionDelayMillis;
+    // Passed to the download peer, see Peer.setFastCatchupTime.
+    private long fastCatchupTimeSecs;
+    // Passed to each new peer, see Peer.setMaxBlocksInFlight.
+    private volatile int maxBlocksInFlight = Peer.DEFAULT_MAX_BLOCKS_IN_FLIGHT;
+    // Shares the blocks announced by any peer out between all of them.
+    private final BlockDownloadScheduler downloadScheduler;
+    // Broadcasts waiting for peers to announce their transactions back to us.
+    private final BroadcastTracker broadcastTracker = new BroadcastTracker();
+    // If not null, connections are made through this rather than run on a thread from peerPool.
+    private final NioNetwork network;
+
+    // Remembers the addresses of the network between runs. May be null.
+    private volatile AddressManager addressManager;
+
+    private volatile long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+    private volatile double minDownloadBlocksPerSecond;
+    // Checks the chain download for stalls, and saves the address manager, while the group is running.
+    private Timer timer;
+    // The chain height at the start of the current stall check period, and when that period started. Synchronized
+    // on this.
+    private int progressHeight;
+    private long progressMillis;
 
     /**
      * Creates a PeerGroup with the given parameters and a default 5 second connection timeout.
@@ -117,21 +180,32 @@ public class PeerGroup {
 
     /**
      * Creates a PeerGroup with the given parameters. The connectionDelayMillis parameter controls how long the
-     * PeerGroup will wait between attempts to connect to nodes or read from any added peer discovery sources.
+     * PeerGroup waits before trying an address again after it first fails or drops us, and between reads from the
+     * peer discovery sources when there is no address to try.
      */
     public PeerGroup(BlockStore blockStore, NetworkParameters params, BlockChain chain, int connectionDelayMillis) {
+        this(blockStore, params, chain, connectionDelayMillis, null);
+    }
+
+    /**
+     * Creates a PeerGroup whose connections run on the given {@link NioNetwork} instead of a thread each. The network
+     * is not shut down with the PeerGroup, so it can be shared.
+     */
+    public PeerGroup(BlockStore blockStore, NetworkParameters params, BlockChain chain, int connectionDelayMillis,
+                     NioNetwork network) {
         this.blockStore = blockStore;
+        this.network = network;
         this.params = params;
         this.chain = chain;
         this.connectionDelayMillis = connectionDelayMillis;
+        this.downloadScheduler = new BlockDownloadScheduler(params);
 
         inactives = new LinkedBlockingQueue<PeerAddress>();
         peers = Collections.synchronizedSet(new HashSet<Peer>());
         peerEventListeners = Collections.synchronizedSet(new HashSet<PeerEventListener>());
-        peerDiscoverers = Collections.synchronizedSet(new HashSet<PeerDiscovery>());
-        peerPool = new ThreadPoolExecutor(CORE_THREADS, DEFAULT_CONNECTIONS,
+        peerPool = new ThreadPoolExecutor(CORE_THREADS, Integer.MAX_VALUE,
                 THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(1),
+                new SynchronousQueue<Runnable>(),
                 new PeerGroupThreadFactory());
     }
 
@@ -148,34 +222,129 @@ public class PeerGroup {
     }
     
     /**
-     * Depending on the environment, this should normally be between 1 and 10, default is 4.
+     * Depending on the environment, this should normally be between 1 and 10, default is 4. Connections made through
+     * a {@link NioNetwork} don't need a thread each, so it can go higher.
      * 
      * @param maxConnections the maximum number of peer connections that this group will try to make.
      */
     public void setMaxConnections(int maxConnections) {
-        peerPool.setMaximumPoolSize(maxConnections);
+        this.maxConnections = maxConnections;
+        synchronized (peers) {
+            peers.notifyAll();
+        }
     }
     
     public int getMaxConnections() {
-        return peerPool.getMaximumPoolSize();
+        return maxConnections;
     }
     
+    /**
+     * Sets the time, in seconds since the epoch, before which blocks are downloaded as headers only. See
+     * {@link Peer#setFastCatchupTime(long)}. Takes effect the next time a download starts.
+     */
+    public synchronized void setFastCatchupTime(long secondsSinceEpoch) {
+        fastCatchupTimeSecs = secondsSinceEpoch;
+    }
+
+    public synchronized long getFastCatchupTime() {
+        return fastCatchupTimeSecs;
+    }
+
+    /**
+     * Sets how many blocks may be asked of each peer at once, see {@link Peer#setMaxBlocksInFlight(int)}. Takes
+     * effect for peers connected after the call.
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        if (maxBlocksInFlight < 1)
+            throw new IllegalArgumentException("maxBlocksInFlight must be at least 1: " + maxBlocksInFlight);
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    public int getMaxBlocksInFlight() {
+        return maxBlocksInFlight;
+    }
+
+    /**
+     * Sets how long the chain may go without growing, whilst the download peer says it has more blocks, before the
+     * download moves to another peer. The stalled peer is disconnected if there is another to move to. Time spent
+     * waiting on blocks requested from other peers isn't held against it.
+     */
+    public void setStallTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("Stall timeout must be positive: " + millis);
+        stallTimeoutMillis = millis;
+    }
+
+    public long getStallTimeout() {
+        return stallTimeoutMillis;
+    }
+
+    /**
+     * Sets the slowest acceptable chain download, averaged over each stall timeout period. A download peer that
+     * falls below it is treated as stalled. The default of zero only treats a download that stops completely as
+     * stalled.
+     */
+    public void setMinDownloadBlocksPerSecond(double blocksPerSecond) {
+        minDownloadBlocksPerSecond = blocksPerSecond;
+    }
+
+    public double getMinDownloadBlocksPerSecond() {
+        return minDownloadBlocksPerSecond;
+    }
+
     /** Add an address to the list of potential peers to connect to */
     public void addAddress(PeerAddress peerAddress) {
         // TODO(miron) consider deduplication
         inactives.add(peerAddress);
     }
     
-    /** Add addresses from a discovery source to the list of potential peers to connect to */
+    /**
+     * Sets the address manager that records the addresses peers tell us about, and how connecting to them goes.
+     * When the group starts, and whenever it runs out of addresses, the best addresses it knows are tried before
+     * any discovery source. It is saved every ten minutes and when the group stops.
+     */
+    public void setAddressManager(AddressManager addressManager) {
+        this.addressManager = addressManager;
+    }
+
+    public AddressManager getAddressManager() {
+        return addressManager;
+    }
+
+    /**
+     * Add addresses from a discovery source to the list of potential peers to connect to. All the sources are asked
+     * at once, see {@link ConcurrentDiscovery}.
+     */
     public void addPeerDiscovery(PeerDiscovery peerDiscovery) {
-        peerDiscoverers.add(peerDiscovery);
+        discovery.addSource(peerDiscovery);
     }
     
     /** Starts the background thread that makes connections. */
     public void start() {
+        AddressManager manager = addressManager;
+        if (manager != null) {
+            // Addresses that worked last time go ahead of any added so far.
+            List<PeerAddress> added = new ArrayList<PeerAddress>();
+            inactives.drainTo(added);
+            inactives.addAll(manager.getAddresses(KNOWN_ADDRESS_BATCH));
+            inactives.addAll(added);
+        }
         this.connectThread = new Thread(new PeerExecutionRunnable(), "Peer group thread");
         running = true;
         this.connectThread.start();
+        synchronized (this) {
+            timer = new Timer("PeerGroup timer", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    checkDownloadProgress();
+                }
+            }, STALL_CHECK_MILLIS, STALL_CHECK_MILLIS);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    saveAddresses();
+                }
+            }, ADDRESS_SAVE_MILLIS, ADDRESS_SAVE_MILLIS);
+        }
     }
 
     /**
@@ -197,23 +366,108 @@ public class PeerGroup {
      */
     public boolean broadcastTransaction(Transaction tx) {
         boolean success = false;
+        // Writes can block, so they are not made whilst holding the lock.
+        List<Peer> targets;
         synchronized (peers) {
-            for (Peer peer : peers) {
+            targets = new ArrayList<Peer>(peers);
+        }
+        for (Peer peer : targets) {
+            try {
+                peer.broadcastTransaction(tx);
+                success = true;
+            } catch (IOException e) {
+                log.error("failed to broadcast to " + peer, e);
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Broadcasts a transaction with the default threshold and timeout, see
+     * {@link #broadcastTransactionAsync(Transaction, int, long)}.
+     */
+    public TransactionBroadcast broadcastTransactionAsync(Transaction tx) {
+        return broadcastTransactionAsync(tx, DEFAULT_BROADCAST_MIN_PEERS, DEFAULT_BROADCAST_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Sends a transaction to half of the connected peers, at once, and returns without waiting. The returned future
+     * completes when minPeers of the other peers have announced the transaction back to us, which shows that it is
+     * spreading through the network. It fails if no peer could be sent it, or if timeoutMillis passes first.<p>
+     *
+     * As the peers it is sent to don't announce it back, at least minPeers + 1 peers need to be connected for the
+     * broadcast to succeed.
+     */
+    public TransactionBroadcast broadcastTransactionAsync(final Transaction tx, int minPeers,
+                                                         final long timeoutMillis) {
+        if (minPeers < 1)
+            throw new IllegalArgumentException("minPeers must be at least 1: " + minPeers);
+        final TransactionBroadcast broadcast = new TransactionBroadcast(tx, minPeers);
+        List<Peer> targets;
+        synchronized (peers) {
+            targets = new ArrayList<Peer>(peers);
+        }
+        if (targets.isEmpty()) {
+            broadcast.failed(new IOException("No peers connected"));
+            return broadcast;
+        }
+        // Half, rounded up, are sent it, and the others are watched for it.
+        Collections.shuffle(targets);
+        targets = targets.subList(0, (targets.size() + 1) / 2);
+
+        final TimerTask timeout = new TimerTask() {
+            public void run() {
+                broadcast.timedOut(timeoutMillis);
+            }
+        };
+        broadcast.setOnCompletion(new Runnable() {
+            public void run() {
+                timeout.cancel();
+                broadcastTracker.remove(broadcast);
+            }
+        });
+        broadcastTracker.add(broadcast);
+        boolean scheduled = false;
+        synchronized (this) {
+            if (timer != null) {
                 try {
-                    peer.broadcastTransaction(tx);
-                    success = true;
-                } catch (IOException e) {
-                    log.error("failed to broadcast to " + peer, e);
+                    timer.schedule(timeout, timeoutMillis);
+                    scheduled = true;
+                } catch (IllegalStateException e) {
+                    // Stopped meanwhile.
                 }
             }
         }
-        return success;
+        if (!scheduled) {
+            broadcast.failed(new IOException("PeerGroup is not running"));
+            return broadcast;
+        }
+        broadcast.sending(targets);
+        for (final Peer peer : targets) {
+            Runnable send = new Runnable() {
+                public void run() {
+                    try {
+                        peer.broadcastTransaction(tx);
+                        broadcast.sent(peer);
+                    } catch (IOException e) {
+                        log.info("Failed to broadcast " + tx.getHashAsString() + " to " + peer + ": " + e.getMessage());
+                        broadcast.sendFailed(peer, e);
+                    }
+                }
+            };
+            try {
+                peerPool.execute(send);
+            } catch (RejectedExecutionException e) {
+                broadcast.sendFailed(peer, new IOException("PeerGroup is stopped"));
+            }
+        }
+        return broadcast;
     }
 
     private final class PeerExecutionRunnable implements Runnable {
         /**
-         * Repeatedly get the next peer address from the inactive queue
-         * and try to connect.
+         * Repeatedly starts handshakes with addresses from the inactive queue whilst there are fewer peers than the
+         * maximum, several at a time.
          * 
          * <p>We can be terminated with Thread.interrupt.  When an interrupt is received,
          * we will ask the executor to shutdown and ask each peer to disconnect.  At that point
@@ -222,14 +476,18 @@ public class PeerGroup {
         public void run() {
             try {
                 while (running) {
-                    if (inactives.size() == 0) {
+                    waitForHandshakeSlot();
+                    PeerAddress address = nextAddress();
+                    if (address == null) {
                         discoverPeers();
-                    } else {
-                        tryNextPeer();
+                        address = nextAddress();
                     }
-                    
-                    // We started a new peer connection, delay before trying another one
-                    Thread.sleep(connectionDelayMillis);
+                    if (address == null) {
+                        // Everything we know of is connected or backing off.
+                        Thread.sleep(connectionDelayMillis);
+                        continue;
+                    }
+                    startConnection(address);
                 }
             } catch (InterruptedException ex) {
                 synchronized (this) {
@@ -237,6 +495,14 @@ public class PeerGroup {
                 }
             }
             peerPool.shutdownNow();
+            downloadScheduler.shutdown();
+            discovery.shutdown();
+            synchronized (PeerGroup.this) {
+                if (timer != null)
+                    timer.cancel();
+                timer = null;
+            }
+            saveAddresses();
             synchronized (peers) {
                 for (Peer peer : peers) {
                     peer.disconnect();
@@ -244,84 +510,275 @@ public class PeerGroup {
             }
         }
 
-        private void discoverPeers() {
-            for (PeerDiscovery peerDiscovery : peerDiscoverers) {
-                InetSocketAddress[] addresses;
-                try {
-                    addresses = peerDiscovery.getPeers();
-                } catch (PeerDiscoveryException e) {
-                    // Will try again later.
-                    log.error("Failed to discover peer addresses from discovery source", e);
-                    return;
+        /** Waits until another handshake may be started. */
+        private void waitForHandshakeSlot() throws InterruptedException {
+            synchronized (peers) {
+                while (true) {
+                    int missing = maxConnections - peers.size();
+                    int limit = Math.min(missing * HANDSHAKES_PER_CONNECTION, MAX_PENDING_HANDSHAKES);
+                    if (pendingHandshakes < limit)
+                        return;
+                    peers.wait();
                 }
+            }
+        }
 
-                for (int i = 0; i < addresses.length; i++) {
-                    inactives.add(new PeerAddress(addresses[i]));
+        /**
+         * Takes the first address from the inactive queue that is not active and not backing off, and marks it
+         * active. Those backing off go to the back of the queue. Returns null if there is none.
+         */
+        private PeerAddress nextAddress() {
+            long now = System.currentTimeMillis();
+            for (int i = inactives.size(); i > 0; i--) {
+                PeerAddress address = inactives.poll();
+                if (address == null)
+                    break;
+                InetSocketAddress key = keyOf(address);
+                synchronized (peers) {
+                    // Already connected or connecting. It is queued again when that ends.
+                    if (activeAddresses.contains(key))
+                        continue;
+                    Backoff backoff = backoffs.get(key);
+                    if (backoff == null || backoff.retryMillis <= now) {
+                        activeAddresses.add(key);
+                        return address;
+                    }
+                }
+                inactives.add(address);
+            }
+            return null;
+        }
+
+        private void discoverPeers() {
+            // Addresses already queued or active are not added again.
+            Set<InetSocketAddress> known = new HashSet<InetSocketAddress>();
+            synchronized (peers) {
+                known.addAll(activeAddresses);
+            }
+            for (PeerAddress address : inactives)
+                known.add(keyOf(address));
+            int queued = inactives.size();
+
+            AddressManager manager = addressManager;
+            if (manager != null) {
+                // Addresses we already know are much quicker to get than those from discovery sources.
+                for (PeerAddress address : manager.getAddresses(KNOWN_ADDRESS_BATCH + known.size())) {
+                    if (known.add(keyOf(address)))
+                        inactives.add(address);
                 }
+                if (inactives.size() > queued)
+                    return;
+            }
+            InetSocketAddress[] addresses;
+            try {
+                addresses = discovery.getPeers();
+            } catch (PeerDiscoveryException e) {
+                // Will try again later.
+                log.error("Failed to discover peer addresses from discovery sources", e);
+                return;
+            }
+            for (int i = 0; i < addresses.length; i++) {
+                if (known.add(addresses[i]))
+                    inactives.add(new PeerAddress(addresses[i]));
+            }
+        }
 
-                if (inactives.size() > 0) break;
+        /** Starts a handshake with the given address, which nextAddress has marked active. */
+        private void startConnection(PeerAddress address) {
+            final int bestHeight;
+            try {
+                bestHeight = blockStore.getChainHead().getHeight();
+            } catch (BlockStoreException e) {
+                // Fatal error
+                log.error("Block store corrupt?", e);
+                running = false;
+                throw new RuntimeException(e);
+            }
+            AddressManager manager = addressManager;
+            if (manager != null)
+                manager.markAttempt(address);
+            Peer peer = createPeer(address, bestHeight);
+            synchronized (peers) {
+                pendingHandshakes++;
             }
+            log.info("Connecting to " + peer);
+            if (network != null)
+                connectNonBlocking(peer, address, bestHeight);
+            else
+                connectBlocking(peer, address);
         }
 
-        /** Try connecting to a peer.  If we exceed the number of connections, delay and try again. */
-        private void tryNextPeer() throws InterruptedException {
-            final PeerAddress address = inactives.take();
-            while (true) {
-                try {
-                    final Peer peer = new Peer(params, address, blockStore.getChainHead().getHeight(), chain);
-                    Runnable command = new Runnable() {
-                        public void run() {
-                            try {
-                                log.info("Connecting to " + peer);
-                                peer.connect();
-                                peers.add(peer);
-                                handleNewPeer(peer);
-                                peer.run();
-                            } catch (PeerException ex) {
-                                // Do not propagate PeerException - log and try next peer. Suppress stack traces for
-                                // exceptions we expect as part of normal network behaviour.
-                                final Throwable cause = ex.getCause();
-                                if (cause instanceof SocketTimeoutException) {
-                                    log.info("Timeout talking to " + peer + ": " + cause.getMessage());
-                                } else if (cause instanceof ConnectException) {
-                                    log.info("Could not connect to " + peer + ": " + cause.getMessage());
-                                } else if (cause instanceof IOException) {
-                                    log.info("Error talking to " + peer + ": " + cause.getMessage());
-                                } else {
-                                    log.error("Unexpected exception whilst talking to " + peer, ex);
-                                }
-                            } finally {
-                                // In all cases, disconnect and put the address back on the queue.
-                                // We will retry this peer after all other peers have been tried.
-                                peer.disconnect();
-
-                                inactives.add(address);
-                                if (peers.remove(peer))
-                                    handlePeerDeath(peer);
-                            }
+        /** Connects to a peer, and talks to it if it is kept, on a thread from the pool. */
+        private void connectBlocking(final Peer peer, final PeerAddress address) {
+            Runnable command = new Runnable() {
+                public void run() {
+                    boolean handshaken = false;
+                    try {
+                        peer.connect(HANDSHAKE_TIMEOUT_MILLIS);
+                        handshaken = true;
+                        if (handshakeFinished(peer, address, true))
+                            peer.run();
+                    } catch (PeerException ex) {
+                        // Do not propagate PeerException - log and try next peer. Suppress stack traces for
+                        // exceptions we expect as part of normal network behaviour.
+                        final Throwable cause = ex.getCause();
+                        if (cause instanceof SocketTimeoutException) {
+                            log.info("Timeout talking to " + peer + ": " + cause.getMessage());
+                        } else if (cause instanceof ConnectException) {
+                            log.info("Could not connect to " + peer + ": " + cause.getMessage());
+                        } else if (cause instanceof IOException) {
+                            log.info("Error talking to " + peer + ": " + cause.getMessage());
+                        } else {
+                            log.error("Unexpected exception whilst talking to " + peer, ex);
                         }
-                    };
-                    peerPool.execute(command);
-                    break;
-                } catch (RejectedExecutionException e) {
-                    // Reached maxConnections, try again after a delay
-
-                    // TODO - consider being smarter about retry.  No need to retry
-                    // if we reached maxConnections or if peer queue is empty.  Also consider
-                    // exponential backoff on peers and adjusting the sleep time according to the
-                    // lowest backoff value in queue.
-                } catch (BlockStoreException e) {
-                    // Fatal error
-                    log.error("Block store corrupt?", e);
-                    running = false;
-                    throw new RuntimeException(e);
+                    } finally {
+                        // In all cases, disconnect and put the address back on the queue.
+                        // We will retry this peer after all other peers have been tried.
+                        peer.disconnect();
+                        if (!handshaken)
+                            handshakeFinished(peer, address, false);
+                        connectionClosed(peer, address);
+                    }
+                }
+            };
+            try {
+                peerPool.execute(command);
+            } catch (RejectedExecutionException e) {
+                // The pool is shut down, so we are stopping.
+                synchronized (peers) {
+                    pendingHandshakes--;
+                    activeAddresses.remove(keyOf(address));
+                }
+            }
+        }
+
+        /** Starts connecting to a peer through the network. Its messages are handled by the network's dispatcher. */
+        private void connectNonBlocking(final Peer peer, final PeerAddress address, int bestHeight) {
+            peer.getStats().connectStarted();
+            try {
+                network.connect(address, params, bestHeight, HANDSHAKE_TIMEOUT_MILLIS, Peer.MOBILE_OPTIMIZED,
+                        new NioNetwork.ConnectionListener() {
+                    // The network calls these one at a time for each connection.
+                    private boolean handshaken;
+                    private boolean kept;
+
+                    public void onConnected(NioConnection connection) {
+                        peer.getStats().connectFinished();
+                        peer.setConnection(connection);
+                        handshaken = true;
+                        kept = handshakeFinished(peer, address, true);
+                        if (!kept)
+                            connection.shutdown();
+                    }
+
+                    public void onMessage(NioConnection connection, Message message, int size) {
+                        if (!kept)
+                            return;
+                        try {
+                            peer.processMessage(message, size);
+                        } catch (IOException e) {
+                            log.info("Error talking to " + peer + ": " + e.getMessage());
+                            connection.shutdown();
+                        }
+                    }
+
+                    public void onDisconnected(NioConnection connection, Exception cause) {
+                        if (cause instanceof SocketTimeoutException) {
+                            log.info("Timeout talking to " + peer + ": " + cause.getMessage());
+                        } else if (cause instanceof ConnectException) {
+                            log.info("Could not connect to " + peer + ": " + cause.getMessage());
+                        } else if (cause != null) {
+                            log.info("Error talking to " + peer + ": " + cause.getMessage());
+                        }
+                        // We will retry this peer after all other peers have been tried.
+                        if (!handshaken)
+                            handshakeFinished(peer, address, false);
+                        connectionClosed(peer, address);
+                    }
+                });
+            } catch (IOException e) {
+                log.error("Could not start connecting to " + peer, e);
+                handshakeFinished(peer, address, false);
+                connectionClosed(peer, address);
+            }
+        }
+
+        private Peer createPeer(PeerAddress address, int bestHeight) {
+            Peer peer = new Peer(params, address, bestHeight, chain);
+            peer.setDownloadScheduler(downloadScheduler);
+            peer.setMaxBlocksInFlight(maxBlocksInFlight);
+            peer.setAddressManager(addressManager);
+            peer.setBroadcastTracker(broadcastTracker);
+            return peer;
+        }
+    }
+
+    /**
+     * Called when a handshake ends, successfully or not. A successful one is kept if we are still short of peers,
+     * which, as the handshakes are raced, keeps the fastest. Returns whether it was kept.
+     */
+    private boolean handshakeFinished(Peer peer, PeerAddress address, boolean succeeded) {
+        InetSocketAddress key = keyOf(address);
+        boolean kept;
+        synchronized (peers) {
+            pendingHandshakes--;
+            kept = succeeded && running && peers.size() < maxConnections;
+            if (kept)
+                peers.add(peer);
+            if (succeeded) {
+                backoffs.remove(key);
+            } else {
+                Backoff backoff = backoffs.get(key);
+                if (backoff == null) {
+                    backoff = new Backoff();
+                    backoffs.put(key, backoff);
                 }
-                
-                // If we got here, we should retry this address because an error unrelated
-                // to the peer has occurred.
-                Thread.sleep(connectionDelayMillis);
+                backoff.failures++;
+                long delay = (long) connectionDelayMillis << Math.min(backoff.failures - 1, 20);
+                backoff.retryMillis = System.currentTimeMillis() + Math.min(delay, MAX_BACKOFF_MILLIS);
+            }
+            peers.notifyAll();
+        }
+        if (kept) {
+            handleNewPeer(peer);
+        } else if (succeeded) {
+            log.info("Already have enough peers, dropping " + peer);
+            AddressManager manager = addressManager;
+            if (manager != null)
+                manager.markGood(address, peer.getStats().getHandshakeMillis());
+        } else {
+            handleConnectFailure(address);
+        }
+        return kept;
+    }
+
+    /** Called when the connection to an address has closed, after handshakeFinished. Queues the address again. */
+    private void connectionClosed(Peer peer, PeerAddress address) {
+        boolean wasPeer = peers.remove(peer);
+        if (wasPeer)
+            handlePeerDeath(peer);
+        InetSocketAddress key = keyOf(address);
+        synchronized (peers) {
+            activeAddresses.remove(key);
+            if (wasPeer && !backoffs.containsKey(key)) {
+                // Don't reconnect straight away to a peer that has just dropped us.
+                Backoff backoff = new Backoff();
+                backoff.retryMillis = System.currentTimeMillis() + connectionDelayMillis;
+                backoffs.put(key, backoff);
             }
+            peers.notifyAll();
         }
+        inactives.add(address);
+    }
+
+    private InetSocketAddress keyOf(PeerAddress address) {
+        return new InetSocketAddress(address.addr, address.port > 0 ? address.port : params.port);
+    }
+
+    private static class Backoff {
+        // Handshakes that have failed in a row.
+        int failures;
+        long retryMillis;
     }
 
     /**
@@ -332,17 +789,17 @@ public class PeerGroup {
      * 
      * @param listener a listener for chain download events, may not be null
      */
-    public synchronized void startBlockChainDownload(PeerEventListener listener) {
-        this.downloadListener = listener;
-        // TODO be more nuanced about which peer to download from.  We can also try
-        // downloading from multiple peers and handle the case when a new peer comes along
-        // with a longer chain after we thought we were done.
-        synchronized (peers) {
-            if (!peers.isEmpty())
-            {
-                startBlockChainDownloadFromPeer(peers.iterator().next());
-            }
+    public void startBlockChainDownload(PeerEventListener listener) {
+        Peer peer;
+        synchronized (this) {
+            this.downloadListener = listener;
+            // TODO handle the case when a new peer comes along with a longer chain after we thought we were done.
+            peer = selectDownloadPeer(null);
+            if (peer != null)
+                setDownloadPeer(peer);
         }
+        if (peer != null)
+            startBlockChainDownloadFromPeer(peer);
     }
     
     /**
@@ -361,8 +818,28 @@ public class PeerGroup {
         }
     }
     
-    protected synchronized void handleNewPeer(Peer peer) {
-        if (downloadListener != null && downloadPeer == null)
+    protected void handleNewPeer(Peer peer) {
+        // Called without holding our lock, as these write to the peers.
+        downloadScheduler.addPeer(peer);
+        AddressManager manager = addressManager;
+        if (manager != null) {
+            manager.markGood(peer.getAddress(), peer.getStats().getHandshakeMillis());
+            if (manager.size() < GETADDR_THRESHOLD) {
+                try {
+                    peer.sendMessage(new GetAddrMessage(params));
+                } catch (IOException e) {
+                    log.info("Failed to ask " + peer + " for addresses: " + e.getMessage());
+                }
+            }
+        }
+        boolean download = false;
+        synchronized (this) {
+            if (downloadListener != null && downloadPeer == null) {
+                setDownloadPeer(peer);
+                download = true;
+            }
+        }
+        if (download)
             startBlockChainDownloadFromPeer(peer);
         synchronized (peerEventListeners) {
             for (PeerEventListener listener : peerEventListeners) {
@@ -373,15 +850,38 @@ public class PeerGroup {
         }
     }
     
-    protected synchronized void handlePeerDeath(Peer peer) {
-        if (peer == downloadPeer) {
-            downloadPeer = null;
-            synchronized (peers) {
-                if (downloadListener != null && !peers.isEmpty()) {
-                    startBlockChainDownloadFromPeer(peers.iterator().next());
-                }
+    private void handleConnectFailure(PeerAddress address) {
+        AddressManager manager = addressManager;
+        if (manager != null)
+            manager.markFailed(address);
+    }
+
+    private void saveAddresses() {
+        AddressManager manager = addressManager;
+        if (manager == null)
+            return;
+        try {
+            manager.save();
+        } catch (IOException e) {
+            log.error("Failed to save addresses", e);
+        }
+    }
+
+    protected void handlePeerDeath(Peer peer) {
+        // Called without holding our lock, as the scheduler asks other peers for the blocks this one had in flight.
+        downloadScheduler.removePeer(peer);
+        Peer next = null;
+        synchronized (this) {
+            if (peer == downloadPeer) {
+                downloadPeer = null;
+                if (downloadListener != null)
+                    next = selectDownloadPeer(null);
+                if (next != null)
+                    setDownloadPeer(next);
             }
         }
+        if (next != null)
+            startBlockChainDownloadFromPeer(next);
 
         synchronized (peerEventListeners) {
             for (PeerEventListener listener : peerEventListeners) {
@@ -392,15 +892,111 @@ public class PeerGroup {
         }
     }
 
-    private synchronized void startBlockChainDownloadFromPeer(Peer peer) {
+    /**
+     * Picks the peer to download the chain from, leaving out the given one. Of the peers with the longest chain, it
+     * is the one that has been sending us data fastest, or if none has sent any yet the one that connected quickest.
+     * Returns null if there is no other peer.
+     */
+    private Peer selectDownloadPeer(Peer exclude) {
+        synchronized (peers) {
+            int mostBlocksToGet = Integer.MIN_VALUE;
+            for (Peer peer : peers) {
+                if (peer != exclude)
+                    mostBlocksToGet = Math.max(mostBlocksToGet, peer.getPeerBlocksToGet());
+            }
+            Peer best = null;
+            for (Peer peer : peers) {
+                if (peer == exclude || peer.getPeerBlocksToGet() < mostBlocksToGet - DOWNLOAD_PEER_HEIGHT_SLACK)
+                    continue;
+                if (best == null || isFaster(peer.getStats(), best.getStats()))
+                    best = peer;
+            }
+            return best;
+        }
+    }
+
+    private static boolean isFaster(PeerStats a, PeerStats b) {
+        double rateA = a.getBytesPerSecond();
+        double rateB = b.getBytesPerSecond();
+        if (rateA != rateB)
+            return rateA > rateB;
+        long handshakeA = a.getHandshakeMillis() < 0 ? Long.MAX_VALUE : a.getHandshakeMillis();
+        long handshakeB = b.getHandshakeMillis() < 0 ? Long.MAX_VALUE : b.getHandshakeMillis();
+        return handshakeA < handshakeB;
+    }
+
+    /**
+     * Moves the chain download to another peer if it has stalled: the chain hasn't grown for the stall timeout, or
+     * grew slower than the minimum rate, whilst the download peer says it has more blocks. If blocks are in flight
+     * to other peers the chain may be waiting on them instead, and the scheduler retries or gives up on those itself.
+     */
+    private void checkDownloadProgress() {
+        Peer stalled;
+        Peer next;
+        synchronized (this) {
+            if (downloadPeer == null || downloadListener == null)
+                return;
+            long now = System.currentTimeMillis();
+            int height = chain.getChainHead().getHeight();
+            double minRate = minDownloadBlocksPerSecond;
+            boolean progressed = height > progressHeight;
+            if (downloadPeer.getPeerBlocksToGet() <= 0 || (progressed && minRate <= 0)) {
+                // Caught up, or moving along.
+                progressHeight = height;
+                progressMillis = now;
+                return;
+            }
+            long elapsed = now - progressMillis;
+            if (elapsed < stallTimeoutMillis)
+                return;
+            double rate = (height - progressHeight) * 1000.0 / elapsed;
+            progressHeight = height;
+            progressMillis = now;
+            if (progressed && rate >= minRate)
+                return;
+            if (downloadScheduler.isWaitingOnOthers(downloadPeer)) {
+                log.info("Chain download is slow, but waiting on blocks from peers other than {}", downloadPeer);
+                return;
+            }
+
+            stalled = downloadPeer;
+            log.warn("Chain download from {} stalled at {} blocks/s ({}), moving to another peer",
+                    new Object[] { stalled, String.format("%.2f", rate), stalled.getStats() });
+            next = selectDownloadPeer(stalled);
+            stalled.removeEventListener(downloadListener);
+            // If there is nobody else to ask, try the same peer again.
+            setDownloadPeer(next != null ? next : stalled);
+        }
+        if (next == null) {
+            startBlockChainDownloadFromPeer(stalled);
+            return;
+        }
+        startBlockChainDownloadFromPeer(next);
+        // Its connection thread, or the network, then calls handlePeerDeath. The blocks it was asked for go to others.
+        stalled.disconnect();
+    }
+
+    /** Makes the given peer the download peer. The caller then calls startBlockChainDownloadFromPeer. */
+    private synchronized void setDownloadPeer(Peer peer) {
+        progressHeight = chain.getChainHead().getHeight();
+        progressMillis = System.currentTimeMillis();
         peer.addEventListener(downloadListener);
+        peer.setFastCatchupTime(fastCatchupTimeSecs);
+        downloadPeer = peer;
+    }
+
+    /** Asks the download peer for the chain. Must be called without our lock held, as it writes to the peer. */
+    private void startBlockChainDownloadFromPeer(Peer peer) {
         try {
             peer.startBlockChainDownload();
         } catch (IOException e) {
             log.error("failed to start block chain download from " + peer, e);
-            return;
+            synchronized (this) {
+                // Lets the next peer to connect take over.
+                if (downloadPeer == peer)
+                    downloadPeer = null;
+            }
         }
-        downloadPeer = peer;
     }
     
     static class PeerGroupThreadFactory implements ThreadFactory {
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+/**
+ * Measures how well a {@link Peer} is serving us: how long its connection took to set up, how quickly it answers
+ * requests for blocks, and how fast data and blocks arrive from it. {@link PeerGroup} uses these to pick the peer to
+ * download the chain from, and to notice when that peer has stalled.<p>
+ *
+ * Rates are moving averages over one second samples, weighted so that the last few seconds count the most. A peer
+ * that goes quiet sees its rates fall towards zero. All methods are thread safe.
+ */
+public class PeerStats {
+    // How much each new one second sample counts towards a rate, giving a time constant of about five seconds.
+    private static final double SAMPLE_WEIGHT = 0.2;
+    private static final long SAMPLE_MILLIS = 1000;
+    // After this many silent samples the rates are as good as zero, so the rest needn't be computed one by one.
+    private static final int MAX_SILENT_SAMPLES = 60;
+    // How much each new answer counts towards the average response time.
+    private static final double RESPONSE_WEIGHT = 0.25;
+
+    private long connectStartMillis;
+    private long handshakeMillis = -1;
+
+    private long bytesReceived;
+    private long blocksReceived;
+    private long lastMessageMillis;
+    private long lastBlockMillis;
+
+    // The sample being filled, and the rates as of the last complete one.
+    private long sampleStartMillis;
+    private long sampleBytes;
+    private long sampleBlocks;
+    private double bytesPerSecond;
+    private double blocksPerSecond;
+
+    private double responseMillis = -1;
+
+    PeerStats() {
+        sampleStartMillis = System.currentTimeMillis();
+    }
+
+    /** Called when the connection to the peer starts being set up. */
+    synchronized void connectStarted() {
+        connectStartMillis = System.currentTimeMillis();
+    }
+
+    /** Called when the version handshake has completed. */
+    synchronized void connectFinished() {
+        long now = System.currentTimeMillis();
+        handshakeMillis = now - connectStartMillis;
+        sampleStartMillis = now;
+        lastMessageMillis = now;
+    }
+
+    /** Called for every message received, with the size of its payload. Headers count as blocks. */
+    synchronized void messageReceived(Message message, int size) {
+        long now = System.currentTimeMillis();
+        roll(now);
+        lastMessageMillis = now;
+        bytesReceived += size;
+        sampleBytes += size;
+        int blocks = 0;
+        if (message instanceof Block)
+            blocks = 1;
+        else if (message instanceof HeadersMessage)
+            blocks = ((HeadersMessage) message).getBlockHeaders().size();
+        if (blocks > 0) {
+            lastBlockMillis = now;
+            blocksReceived += blocks;
+            sampleBlocks += blocks;
+        }
+    }
+
+    /** Called when a block arrives, with how long ago it was asked for. */
+    synchronized void blockResponse(long elapsedMillis) {
+        if (responseMillis < 0)
+            responseMillis = elapsedMillis;
+        else
+            responseMillis += RESPONSE_WEIGHT * (elapsedMillis - responseMillis);
+    }
+
+    // Folds completed samples into the rates.
+    private void roll(long now) {
+        long samples = (now - sampleStartMillis) / SAMPLE_MILLIS;
+        if (samples <= 0)
+            return;
+        double perSecond = 1000.0 / SAMPLE_MILLIS;
+        bytesPerSecond += SAMPLE_WEIGHT * (sampleBytes * perSecond - bytesPerSecond);
+        blocksPerSecond += SAMPLE_WEIGHT * (sampleBlocks * perSecond - blocksPerSecond);
+        sampleBytes = sampleBlocks = 0;
+        // The samples after the first were silent.
+        if (samples > MAX_SILENT_SAMPLES) {
+            bytesPerSecond = blocksPerSecond = 0;
+        } else {
+            double decay = Math.pow(1 - SAMPLE_WEIGHT, samples - 1);
+            bytesPerSecond *= decay;
+            blocksPerSecond *= decay;
+        }
+        sampleStartMillis += samples * SAMPLE_MILLIS;
+    }
+
+    /** Returns how long the connection and version handshake took in milliseconds, or -1 if not yet known. */
+    public synchronized long getHandshakeMillis() {
+        return handshakeMillis;
+    }
+
+    /**
+     * Returns the average time between asking the peer for a block and receiving it, in milliseconds, or -1 if no
+     * block has been asked for yet. This stands in for a ping time, which the protocol version we speak can't
+     * measure.
+     */
+    public synchronized long getResponseMillis() {
+        return Math.round(responseMillis);
+    }
+
+    /** Returns the recent rate at which message payloads have been arriving. */
+    public synchronized double getBytesPerSecond() {
+        roll(System.currentTimeMillis());
+        return bytesPerSecond;
+    }
+
+    /** Returns the recent rate at which blocks, or block headers, have been arriving. */
+    public synchronized double getBlocksPerSecond() {
+        roll(System.currentTimeMillis());
+        return blocksPerSecond;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized long getBlocksReceived() {
+        return blocksReceived;
+    }
+
+    /** Returns when the last message arrived, in milliseconds since the epoch. */
+    public synchronized long getLastMessageMillis() {
+        return lastMessageMillis;
+    }
+
+    /** Returns when the last block arrived, in milliseconds since the epoch, or 0 if none has. */
+    public synchronized long getLastBlockMillis() {
+        return lastBlockMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        roll(System.currentTimeMillis());
+        return String.format("handshake %dms, response %dms, %.0f bytes/s, %.2f blocks/s, %d blocks",
+                handshakeMillis, Math.round(responseMillis), bytesPerSecond, blocksPerSecond, blocksReceived);
+    }
+}
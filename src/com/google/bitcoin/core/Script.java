@@ -218,7 +218,7 @@ public class Script {
     
     /**
      * If a program has two data buffers (constants) and nothing else, the second one is returned.
-     * For a scriptSig this should be the public key of the sender.
+     * For a scriptSig this should be the public key of the sender, in whichever encoding (33 or 65 bytes) it used.
      * 
      * This is useful for fetching the source address of a transaction.
      */
@@ -240,7 +240,7 @@ public class Script {
      * Convenience wrapper around getPubKey. Only works for scriptSigs.
      */
     public Address getFromAddress() throws ScriptException {
-        return new Address(params, Utils.sha256hash160(getPubKey()));
+        return Address.fromPubKey(params, getPubKey());
     }
 
     /**
@@ -248,7 +248,7 @@ public class Script {
      * @throws ScriptException
      */
     public Address getToAddress() throws ScriptException {
-        return new Address(params, getPubKeyHash());
+        return Address.fromHash160(params, getPubKeyHash());
     }
 
     ////////////////////// Interface for writing scripts from scratch ////////////////////////////////
@@ -300,7 +300,12 @@ public class Script {
         }
     }
 
+    /**
+     * Create a standard scriptSig. The public key may be in either the 65 byte uncompressed or the 33 byte compressed
+     * encoding, but it must be the one whose hash appears in the connected output or the input will not validate.
+     */
     static byte[] createInputScript(byte[] signature,  byte[] pubkey) {
+        assert pubkey.length == ECKey.UNCOMPRESSED_PUBKEY_LENGTH || pubkey.length == ECKey.COMPRESSED_PUBKEY_LENGTH;
         try {
             // TODO: Do this by creating a Script *first* then having the script reassemble itself into bytes.
             ByteArrayOutputStream bits = new ByteArrayOutputStream();
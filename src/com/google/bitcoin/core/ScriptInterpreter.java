@@ -0,0 +1,608 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.bitcoin.core.Script.*;
+
+/**
+ * Executes scripts, following EvalScript and VerifyScript in script.cpp. A transaction input is valid if its
+ * scriptSig, followed by the scriptPubKey of the output it spends, runs without failing and leaves true on the
+ * stack.<p>
+ *
+ * The interpreter works directly on the raw script bytes, as {@link Script} cannot tell a one byte push from an
+ * opcode. It supports the opcodes that the official client still enables: pushes, flow control, stack operations,
+ * the arithmetic operators, the hash functions and the signature checks. A few things are not supported and are
+ * reported as a ScriptException like any other failure, which means verification can reject a transaction that
+ * the network would accept:
+ *
+ * <ul>
+ *     <li>Signatures with any hash type other than SIGHASH_ALL, since {@link SignatureHasher} only does that.</li>
+ *     <li>OP_CODESEPARATOR. Standard scripts never contain it.</li>
+ * </ul>
+ *
+ * The official client also deletes the signature from the signed script before hashing it. That step is skipped
+ * here. It only matters if a scriptPubKey contains a signature made over itself.
+ */
+final class ScriptInterpreter {
+    // Limits from script.h and script.cpp.
+    private static final int MAX_SCRIPT_SIZE = 10000;
+    private static final int MAX_PUSH_SIZE = 520;
+    private static final int MAX_OPS = 201;
+    private static final int MAX_STACK_SIZE = 1000;
+    private static final int MAX_NUM_SIZE = 4;
+    private static final int MAX_PUBKEYS_PER_MULTISIG = 20;
+
+    // Opcodes not already defined in Script.
+    private static final int OP_1NEGATE = 79;
+    private static final int OP_1 = 81;
+    private static final int OP_16 = 96;
+    private static final int OP_NOP = 97;
+    private static final int OP_IF = 99;
+    private static final int OP_NOTIF = 100;
+    private static final int OP_VERIF = 101;
+    private static final int OP_VERNOTIF = 102;
+    private static final int OP_ELSE = 103;
+    private static final int OP_ENDIF = 104;
+    private static final int OP_VERIFY = 105;
+    private static final int OP_RETURN = 106;
+    private static final int OP_TOALTSTACK = 107;
+    private static final int OP_FROMALTSTACK = 108;
+    private static final int OP_2DROP = 109;
+    private static final int OP_2DUP = 110;
+    private static final int OP_3DUP = 111;
+    private static final int OP_2OVER = 112;
+    private static final int OP_2ROT = 113;
+    private static final int OP_2SWAP = 114;
+    private static final int OP_IFDUP = 115;
+    private static final int OP_DEPTH = 116;
+    private static final int OP_DROP = 117;
+    private static final int OP_NIP = 119;
+    private static final int OP_OVER = 120;
+    private static final int OP_PICK = 121;
+    private static final int OP_ROLL = 122;
+    private static final int OP_ROT = 123;
+    private static final int OP_SWAP = 124;
+    private static final int OP_TUCK = 125;
+    private static final int OP_CAT = 126;
+    private static final int OP_SUBSTR = 127;
+    private static final int OP_LEFT = 128;
+    private static final int OP_RIGHT = 129;
+    private static final int OP_SIZE = 130;
+    private static final int OP_INVERT = 131;
+    private static final int OP_AND = 132;
+    private static final int OP_OR = 133;
+    private static final int OP_XOR = 134;
+    private static final int OP_EQUAL = 135;
+    private static final int OP_1ADD = 139;
+    private static final int OP_1SUB = 140;
+    private static final int OP_2MUL = 141;
+    private static final int OP_2DIV = 142;
+    private static final int OP_NEGATE = 143;
+    private static final int OP_ABS = 144;
+    private static final int OP_NOT = 145;
+    private static final int OP_0NOTEQUAL = 146;
+    private static final int OP_ADD = 147;
+    private static final int OP_SUB = 148;
+    private static final int OP_MUL = 149;
+    private static final int OP_DIV = 150;
+    private static final int OP_MOD = 151;
+    private static final int OP_LSHIFT = 152;
+    private static final int OP_RSHIFT = 153;
+    private static final int OP_BOOLAND = 154;
+    private static final int OP_BOOLOR = 155;
+    private static final int OP_NUMEQUAL = 156;
+    private static final int OP_NUMEQUALVERIFY = 157;
+    private static final int OP_NUMNOTEQUAL = 158;
+    private static final int OP_LESSTHAN = 159;
+    private static final int OP_GREATERTHAN = 160;
+    private static final int OP_LESSTHANOREQUAL = 161;
+    private static final int OP_GREATERTHANOREQUAL = 162;
+    private static final int OP_MIN = 163;
+    private static final int OP_MAX = 164;
+    private static final int OP_WITHIN = 165;
+    private static final int OP_RIPEMD160 = 166;
+    private static final int OP_SHA1 = 167;
+    private static final int OP_SHA256 = 168;
+    private static final int OP_HASH256 = 170;
+    private static final int OP_CODESEPARATOR = 171;
+    private static final int OP_CHECKSIGVERIFY = 173;
+    private static final int OP_CHECKMULTISIG = 174;
+    private static final int OP_CHECKMULTISIGVERIFY = 175;
+    private static final int OP_NOP1 = 176;
+    private static final int OP_NOP10 = 185;
+
+    private static final byte[] FALSE = new byte[0];
+    private static final byte[] TRUE = new byte[] { 1 };
+
+    private final Transaction tx;
+    private final int inputIndex;
+    private final SignatureHasher hasher;
+    private final SignatureCache signatureCache;
+
+    private ScriptInterpreter(Transaction tx, int inputIndex, SignatureHasher hasher, SignatureCache signatureCache) {
+        this.tx = tx;
+        this.inputIndex = inputIndex;
+        this.hasher = hasher;
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Checks that input number inputIndex of tx correctly spends an output with the given scriptPubKey.
+     *
+     * @param hasher the signature hasher of tx, which may be shared by all of its inputs
+     * @param signatureCache cache consulted before checking a signature, and told about valid ones
+     * @throws ScriptException if the input does not spend the output, or uses something not supported here
+     */
+    static void verifyInput(Transaction tx, int inputIndex, byte[] scriptPubKey, SignatureHasher hasher,
+                            SignatureCache signatureCache) throws ScriptException {
+        ScriptInterpreter interpreter = new ScriptInterpreter(tx, inputIndex, hasher, signatureCache);
+        byte[] scriptSig = tx.getInputs().get(inputIndex).scriptBytes;
+        List<byte[]> stack = new ArrayList<byte[]>();
+        interpreter.execute(scriptSig, stack);
+        interpreter.execute(scriptPubKey, stack);
+        if (stack.isEmpty() || !castToBool(stack.get(stack.size() - 1)))
+            throw new ScriptException("Script left false on the stack");
+    }
+
+    private void execute(byte[] script, List<byte[]> stack) throws ScriptException {
+        if (script.length > MAX_SCRIPT_SIZE)
+            throw new ScriptException("Script of " + script.length + " bytes is too large");
+        List<byte[]> altStack = new ArrayList<byte[]>();
+        // One entry per enclosing IF, true if that branch is being executed.
+        List<Boolean> conditions = new ArrayList<Boolean>();
+        int opCount = 0;
+        int cursor = 0;
+        while (cursor < script.length) {
+            boolean executing = !conditions.contains(Boolean.FALSE);
+            int opcode = 0xFF & script[cursor++];
+
+            // Pushes, including OP_0 which pushes an empty array.
+            if (opcode <= OP_PUSHDATA4) {
+                int length;
+                if (opcode < OP_PUSHDATA1) {
+                    length = opcode;
+                } else if (opcode == OP_PUSHDATA1) {
+                    checkPushLength(script, cursor, 1);
+                    length = 0xFF & script[cursor];
+                    cursor += 1;
+                } else if (opcode == OP_PUSHDATA2) {
+                    checkPushLength(script, cursor, 2);
+                    length = (0xFF & script[cursor]) | ((0xFF & script[cursor + 1]) << 8);
+                    cursor += 2;
+                } else {
+                    checkPushLength(script, cursor, 4);
+                    long longLength = Utils.readUint32(script, cursor);
+                    if (longLength > MAX_PUSH_SIZE)
+                        throw new ScriptException("Push of " + longLength + " bytes is too large");
+                    length = (int) longLength;
+                    cursor += 4;
+                }
+                if (length > MAX_PUSH_SIZE)
+                    throw new ScriptException("Push of " + length + " bytes is too large");
+                if (cursor + length > script.length)
+                    throw new ScriptException("Push runs past the end of the script");
+                if (executing)
+                    stack.add(Arrays.copyOfRange(script, cursor, cursor + length));
+                cursor += length;
+                checkStackSize(stack, altStack);
+                continue;
+            }
+
+            if (opcode > OP_16 && ++opCount > MAX_OPS)
+                throw new ScriptException("Script has more than " + MAX_OPS + " operations");
+            // Disabled opcodes fail the script even in a branch that isn't executed.
+            switch (opcode) {
+                case OP_CAT: case OP_SUBSTR: case OP_LEFT: case OP_RIGHT: case OP_INVERT: case OP_AND:
+                case OP_OR: case OP_XOR: case OP_2MUL: case OP_2DIV: case OP_MUL: case OP_DIV: case OP_MOD:
+                case OP_LSHIFT: case OP_RSHIFT:
+                    throw new ScriptException("Script uses disabled opcode " + opcode);
+                case OP_VERIF: case OP_VERNOTIF:
+                    throw new ScriptException("Script uses invalid opcode " + opcode);
+            }
+
+            // Flow control is followed even when not executing, to find the matching ELSE and ENDIF.
+            if (opcode == OP_IF || opcode == OP_NOTIF) {
+                boolean value = false;
+                if (executing) {
+                    value = castToBool(pop(stack));
+                    if (opcode == OP_NOTIF)
+                        value = !value;
+                }
+                conditions.add(value);
+                continue;
+            } else if (opcode == OP_ELSE) {
+                if (conditions.isEmpty())
+                    throw new ScriptException("ELSE without IF");
+                int last = conditions.size() - 1;
+                conditions.set(last, !conditions.get(last));
+                continue;
+            } else if (opcode == OP_ENDIF) {
+                if (conditions.isEmpty())
+                    throw new ScriptException("ENDIF without IF");
+                conditions.remove(conditions.size() - 1);
+                continue;
+            }
+            if (!executing)
+                continue;
+
+            if (opcode == OP_CHECKMULTISIG || opcode == OP_CHECKMULTISIGVERIFY) {
+                // Every key counts as an operation as well, as in script.cpp.
+                opCount += multisigKeyCount(stack);
+                if (opCount > MAX_OPS)
+                    throw new ScriptException("Script has more than " + MAX_OPS + " operations");
+            }
+            executeOpcode(opcode, script, stack, altStack);
+            checkStackSize(stack, altStack);
+        }
+        if (!conditions.isEmpty())
+            throw new ScriptException("IF without ENDIF");
+    }
+
+    private void executeOpcode(int opcode, byte[] script, List<byte[]> stack, List<byte[]> altStack)
+            throws ScriptException {
+        if (opcode == OP_1NEGATE || (opcode >= OP_1 && opcode <= OP_16)) {
+            stack.add(encodeNum(opcode == OP_1NEGATE ? -1 : opcode - OP_1 + 1));
+            return;
+        }
+        if (opcode == OP_NOP || (opcode >= OP_NOP1 && opcode <= OP_NOP10))
+            return;
+
+        byte[] a, b;
+        long x, y;
+        switch (opcode) {
+            // Control.
+            case OP_VERIFY:
+                if (!castToBool(pop(stack)))
+                    throw new ScriptException("VERIFY failed");
+                return;
+            case OP_RETURN:
+                throw new ScriptException("Script called RETURN");
+
+            // Stack operations.
+            case OP_TOALTSTACK:
+                altStack.add(pop(stack));
+                return;
+            case OP_FROMALTSTACK:
+                stack.add(pop(altStack));
+                return;
+            case OP_2DROP:
+                pop(stack);
+                pop(stack);
+                return;
+            case OP_2DUP:
+                stack.add(peek(stack, 2));
+                stack.add(peek(stack, 2));
+                return;
+            case OP_3DUP:
+                stack.add(peek(stack, 3));
+                stack.add(peek(stack, 3));
+                stack.add(peek(stack, 3));
+                return;
+            case OP_2OVER:
+                stack.add(peek(stack, 4));
+                stack.add(peek(stack, 4));
+                return;
+            case OP_2ROT:
+                stack.add(remove(stack, 6));
+                stack.add(remove(stack, 6));
+                return;
+            case OP_2SWAP:
+                stack.add(remove(stack, 4));
+                stack.add(remove(stack, 4));
+                return;
+            case OP_IFDUP:
+                a = peek(stack, 1);
+                if (castToBool(a))
+                    stack.add(a);
+                return;
+            case OP_DEPTH:
+                stack.add(encodeNum(stack.size()));
+                return;
+            case OP_DROP:
+                pop(stack);
+                return;
+            case OP_DUP:
+                stack.add(peek(stack, 1));
+                return;
+            case OP_NIP:
+                remove(stack, 2);
+                return;
+            case OP_OVER:
+                stack.add(peek(stack, 2));
+                return;
+            case OP_PICK:
+            case OP_ROLL:
+                x = decodeNum(pop(stack));
+                if (x < 0 || x >= stack.size())
+                    throw new ScriptException("PICK or ROLL out of range");
+                a = opcode == OP_PICK ? peek(stack, (int) x + 1) : remove(stack, (int) x + 1);
+                stack.add(a);
+                return;
+            case OP_ROT:
+                stack.add(remove(stack, 3));
+                return;
+            case OP_SWAP:
+                stack.add(remove(stack, 2));
+                return;
+            case OP_TUCK:
+                peek(stack, 2);
+                stack.add(stack.size() - 2, peek(stack, 1));
+                return;
+            case OP_SIZE:
+                stack.add(encodeNum(peek(stack, 1).length));
+                return;
+
+            // Bitwise logic.
+            case OP_EQUAL:
+            case OP_EQUALVERIFY:
+                b = pop(stack);
+                a = pop(stack);
+                boolean equal = Arrays.equals(a, b);
+                if (opcode == OP_EQUALVERIFY) {
+                    if (!equal)
+                        throw new ScriptException("EQUALVERIFY failed");
+                } else {
+                    stack.add(equal ? TRUE : FALSE);
+                }
+                return;
+
+            // Arithmetic with one operand.
+            case OP_1ADD: case OP_1SUB: case OP_NEGATE: case OP_ABS: case OP_NOT: case OP_0NOTEQUAL:
+                x = decodeNum(pop(stack));
+                switch (opcode) {
+                    case OP_1ADD: x += 1; break;
+                    case OP_1SUB: x -= 1; break;
+                    case OP_NEGATE: x = -x; break;
+                    case OP_ABS: x = Math.abs(x); break;
+                    case OP_NOT: x = x == 0 ? 1 : 0; break;
+                    default: x = x != 0 ? 1 : 0; break;
+                }
+                stack.add(encodeNum(x));
+                return;
+
+            // Arithmetic with two operands.
+            case OP_ADD: case OP_SUB: case OP_BOOLAND: case OP_BOOLOR: case OP_NUMEQUAL: case OP_NUMEQUALVERIFY:
+            case OP_NUMNOTEQUAL: case OP_LESSTHAN: case OP_GREATERTHAN: case OP_LESSTHANOREQUAL:
+            case OP_GREATERTHANOREQUAL: case OP_MIN: case OP_MAX:
+                y = decodeNum(pop(stack));
+                x = decodeNum(pop(stack));
+                long result;
+                switch (opcode) {
+                    case OP_ADD: result = x + y; break;
+                    case OP_SUB: result = x - y; break;
+                    case OP_BOOLAND: result = x != 0 && y != 0 ? 1 : 0; break;
+                    case OP_BOOLOR: result = x != 0 || y != 0 ? 1 : 0; break;
+                    case OP_NUMEQUAL: case OP_NUMEQUALVERIFY: result = x == y ? 1 : 0; break;
+                    case OP_NUMNOTEQUAL: result = x != y ? 1 : 0; break;
+                    case OP_LESSTHAN: result = x < y ? 1 : 0; break;
+                    case OP_GREATERTHAN: result = x > y ? 1 : 0; break;
+                    case OP_LESSTHANOREQUAL: result = x <= y ? 1 : 0; break;
+                    case OP_GREATERTHANOREQUAL: result = x >= y ? 1 : 0; break;
+                    case OP_MIN: result = Math.min(x, y); break;
+                    default: result = Math.max(x, y); break;
+                }
+                if (opcode == OP_NUMEQUALVERIFY) {
+                    if (result == 0)
+                        throw new ScriptException("NUMEQUALVERIFY failed");
+                } else {
+                    stack.add(encodeNum(result));
+                }
+                return;
+            case OP_WITHIN:
+                long max = decodeNum(pop(stack));
+                long min = decodeNum(pop(stack));
+                x = decodeNum(pop(stack));
+                stack.add(min <= x && x < max ? TRUE : FALSE);
+                return;
+
+            // Crypto.
+            case OP_RIPEMD160:
+                stack.add(ripemd160(pop(stack)));
+                return;
+            case OP_SHA1:
+                stack.add(digest("SHA-1", pop(stack)));
+                return;
+            case OP_SHA256:
+                stack.add(digest("SHA-256", pop(stack)));
+                return;
+            case OP_HASH160:
+                stack.add(Utils.sha256hash160(pop(stack)));
+                return;
+            case OP_HASH256:
+                stack.add(Utils.doubleDigest(pop(stack)));
+                return;
+            case OP_CODESEPARATOR:
+                throw new ScriptException("CODESEPARATOR is not supported");
+            case OP_CHECKSIG:
+            case OP_CHECKSIGVERIFY:
+                b = pop(stack);
+                a = pop(stack);
+                boolean valid = checkSignature(a, b, script);
+                if (opcode == OP_CHECKSIGVERIFY) {
+                    if (!valid)
+                        throw new ScriptException("CHECKSIGVERIFY failed");
+                } else {
+                    stack.add(valid ? TRUE : FALSE);
+                }
+                return;
+            case OP_CHECKMULTISIG:
+            case OP_CHECKMULTISIGVERIFY:
+                boolean success = checkMultisig(stack, script);
+                if (opcode == OP_CHECKMULTISIGVERIFY) {
+                    if (!success)
+                        throw new ScriptException("CHECKMULTISIGVERIFY failed");
+                } else {
+                    stack.add(success ? TRUE : FALSE);
+                }
+                return;
+            default:
+                throw new ScriptException("Script uses unknown or reserved opcode " + opcode);
+        }
+    }
+
+    // Returns whether the signature, whose last byte is the hash type, signs this input with the given key.
+    private boolean checkSignature(byte[] signature, byte[] pubKey, byte[] script) throws ScriptException {
+        if (signature.length == 0)
+            return false;
+        int hashType = 0xFF & signature[signature.length - 1];
+        if (hashType != Transaction.SigHash.ALL.ordinal() + 1)
+            throw new ScriptException("Signature hash type " + hashType + " is not supported");
+        byte[] sigHash = hasher.hashForSignature(inputIndex, script, Transaction.SigHash.ALL, false);
+        return signatureCache.verify(sigHash, Arrays.copyOf(signature, signature.length - 1), pubKey);
+    }
+
+    // Throws unless the script has room for a push length field of the given size at the cursor.
+    private static void checkPushLength(byte[] script, int cursor, int size) throws ScriptException {
+        if (cursor + size > script.length)
+            throw new ScriptException("Script ended in the middle of a push");
+    }
+
+    // Returns the number of keys given to a CHECKMULTISIG, which is on top of the stack.
+    private static int multisigKeyCount(List<byte[]> stack) throws ScriptException {
+        long numKeys = decodeNum(peek(stack, 1));
+        if (numKeys < 0 || numKeys > MAX_PUBKEYS_PER_MULTISIG)
+            throw new ScriptException("CHECKMULTISIG with " + numKeys + " keys");
+        return (int) numKeys;
+    }
+
+    private boolean checkMultisig(List<byte[]> stack, byte[] script) throws ScriptException {
+        int numKeys = multisigKeyCount(stack);
+        pop(stack);
+        byte[][] keys = new byte[numKeys][];
+        for (int i = keys.length - 1; i >= 0; i--)
+            keys[i] = pop(stack);
+        long numSigs = decodeNum(pop(stack));
+        if (numSigs < 0 || numSigs > numKeys)
+            throw new ScriptException("CHECKMULTISIG with " + numSigs + " signatures and " + numKeys + " keys");
+        byte[][] sigs = new byte[(int) numSigs][];
+        for (int i = sigs.length - 1; i >= 0; i--)
+            sigs[i] = pop(stack);
+        // The official client pops one element too many, so every script has to provide an extra one.
+        pop(stack);
+
+        // Signatures must appear in the same order as their keys.
+        int key = 0;
+        for (int sig = 0; sig < sigs.length; sig++) {
+            while (true) {
+                if (keys.length - key < sigs.length - sig)
+                    return false;
+                if (checkSignature(sigs[sig], keys[key++], script))
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static void checkStackSize(List<byte[]> stack, List<byte[]> altStack) throws ScriptException {
+        if (stack.size() + altStack.size() > MAX_STACK_SIZE)
+            throw new ScriptException("Stack holds more than " + MAX_STACK_SIZE + " elements");
+    }
+
+    private static byte[] pop(List<byte[]> stack) throws ScriptException {
+        if (stack.isEmpty())
+            throw new ScriptException("Attempted to pop from an empty stack");
+        return stack.remove(stack.size() - 1);
+    }
+
+    // Returns the element depth places from the top, where 1 is the top.
+    private static byte[] peek(List<byte[]> stack, int depth) throws ScriptException {
+        if (stack.size() < depth)
+            throw new ScriptException("Stack holds fewer than " + depth + " elements");
+        return stack.get(stack.size() - depth);
+    }
+
+    // Removes and returns the element depth places from the top, where 1 is the top.
+    private static byte[] remove(List<byte[]> stack, int depth) throws ScriptException {
+        if (stack.size() < depth)
+            throw new ScriptException("Stack holds fewer than " + depth + " elements");
+        return stack.remove(stack.size() - depth);
+    }
+
+    /** Script booleans are false if all bytes are zero, allowing for a negative zero in the last byte. */
+    static boolean castToBool(byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != 0)
+                return !(i == data.length - 1 && data[i] == (byte) 0x80);
+        }
+        return false;
+    }
+
+    /** Decodes a little endian, sign and magnitude number. Operands may be at most 4 bytes long. */
+    static long decodeNum(byte[] data) throws ScriptException {
+        if (data.length > MAX_NUM_SIZE)
+            throw new ScriptException("Number of " + data.length + " bytes is too large");
+        if (data.length == 0)
+            return 0;
+        long result = 0;
+        for (int i = 0; i < data.length; i++)
+            result |= (0xFFL & data[i]) << (8 * i);
+        long signBit = 0x80L << (8 * (data.length - 1));
+        if ((result & signBit) != 0)
+            return -(result & ~signBit);
+        return result;
+    }
+
+    /** Encodes a number in the shortest little endian, sign and magnitude form. Zero is the empty array. */
+    static byte[] encodeNum(long value) {
+        if (value == 0)
+            return FALSE;
+        boolean negative = value < 0;
+        long magnitude = Math.abs(value);
+        byte[] buf = new byte[9];
+        int length = 0;
+        while (magnitude != 0) {
+            buf[length++] = (byte) magnitude;
+            magnitude >>>= 8;
+        }
+        // The top bit of the last byte is the sign, so add a byte if the magnitude already uses it.
+        if ((buf[length - 1] & 0x80) != 0)
+            buf[length++] = (byte) (negative ? 0x80 : 0);
+        else if (negative)
+            buf[length - 1] |= 0x80;
+        return Arrays.copyOf(buf, length);
+    }
+
+    private static byte[] ripemd160(byte[] data) {
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(data, 0, data.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
+    }
+
+    private static byte[] digest(String algorithm, byte[] data) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
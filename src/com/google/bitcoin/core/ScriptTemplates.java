@@ -0,0 +1,88 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import static com.google.bitcoin.core.Script.*;
+
+/**
+ * Recognizes the standard script forms by looking at the raw script bytes, without parsing them into a
+ * {@link Script}. Nothing is copied or allocated: the matchers return the offset of the interesting push within the
+ * given buffer, or -1 if the script is not in that form. The buffer may be a whole message, such as a block that has
+ * not been parsed yet, with offset and length selecting the script within it.<p>
+ *
+ * Only the encodings the official client generates are matched. Anything else should go through {@link Script}.
+ */
+final class ScriptTemplates {
+    private ScriptTemplates() {}
+
+    /**
+     * Matches DUP HASH160 &lt;pubkey hash&gt; EQUALVERIFY CHECKSIG, the scriptPubKey of a payment to an address.
+     * @return the offset of the 20 byte public key hash, or -1.
+     */
+    static int payToPubKeyHash(byte[] buf, int offset, int length) {
+        if (length == 25 &&
+                (0xFF & buf[offset]) == OP_DUP &&
+                (0xFF & buf[offset + 1]) == OP_HASH160 &&
+                buf[offset + 2] == 20 &&
+                (0xFF & buf[offset + 23]) == OP_EQUALVERIFY &&
+                (0xFF & buf[offset + 24]) == OP_CHECKSIG)
+            return offset + 3;
+        return -1;
+    }
+
+    /**
+     * Matches &lt;pubkey&gt; CHECKSIG, the scriptPubKey of a payment straight to a public key as used by coinbases and
+     * the deprecated IP to IP transactions. The key runs from the returned offset up to the final CHECKSIG, so it is
+     * length - 2 bytes long.
+     * @return the offset of the public key, or -1.
+     */
+    static int payToPubKey(byte[] buf, int offset, int length) {
+        if (length < 3)
+            return -1;
+        int keyLength = 0xFF & buf[offset];
+        if (keyLength != ECKey.UNCOMPRESSED_PUBKEY_LENGTH && keyLength != ECKey.COMPRESSED_PUBKEY_LENGTH)
+            return -1;
+        if (keyLength + 2 != length || (0xFF & buf[offset + length - 1]) != OP_CHECKSIG)
+            return -1;
+        return offset + 1;
+    }
+
+    /**
+     * Matches &lt;signature&gt; &lt;pubkey&gt;, the scriptSig that redeems a payment to an address. Both must be direct
+     * pushes and the key is the last thing in the script, so it runs from the returned offset to the end of the
+     * script.
+     * @return the offset of the public key, or -1.
+     */
+    static int pubKeyOfInput(byte[] buf, int offset, int length) {
+        if (length < 3)
+            return -1;
+        int sigLength = 0xFF & buf[offset];
+        if (sigLength < 2 || sigLength >= OP_PUSHDATA1 || sigLength + 2 >= length)
+            return -1;
+        int keyOffset = offset + 1 + sigLength;
+        int keyLength = 0xFF & buf[keyOffset];
+        if (keyLength < 2 || keyLength >= OP_PUSHDATA1 || sigLength + keyLength + 2 != length)
+            return -1;
+        return keyOffset + 1;
+    }
+}
@@ -39,33 +39,65 @@ package com.google.bitcoin.core;
 
 import org.bouncycastle.util.encoders.Hex;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 /**
- * A Sha256Hash just wraps a byte[] so that equals and hashcode work correctly, allowing it to be used as keys in a
- * map. It also checks that the length is correct and provides a bit more type safety.
+ * A Sha256Hash holds a 32 byte hash so that equals and hashcode work correctly, allowing it to be used as keys in a
+ * map. It also checks that the length is correct and provides a bit more type safety.<p>
+ *
+ * The hash is stored as four longs rather than a wrapped byte array, which saves an object per hash and lets equals
+ * and hashCode work without touching an array. The hash code is computed once. {@link #getBytes()} rebuilds the big
+ * endian bytes on each call. Java serialization still uses the original single byte[] field, so existing wallet
+ * files load unchanged.
  */
 public class Sha256Hash implements Serializable {
     private static final long serialVersionUID = 3778897922647016546L;
 
-    private byte[] bytes;
+    // The serialized form is the one written when this class wrapped a byte array.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("bytes", byte[].class)
+    };
+
+    // The hash in big endian order: w0 holds bytes 0-7, w3 holds bytes 24-31.
+    private transient long w0, w1, w2, w3;
+    private transient int hashCode;
 
     public static final Sha256Hash ZERO_HASH = new Sha256Hash(new byte[32]);
 
-    /** Creates a Sha256Hash by wrapping the given byte array. It must be 32 bytes long. */
+    /** Creates a Sha256Hash from the given byte array. It must be 32 bytes long. The array is not retained. */
     public Sha256Hash(byte[] bytes) {
         assert bytes.length == 32;
-        this.bytes = bytes;
+        setBytes(bytes);
     }
 
     /** Creates a Sha256Hash by decoding the given hex string. It must be 64 characters long. */
     public Sha256Hash(String string) {
         assert string.length() == 64;
-        this.bytes = Hex.decode(string);
+        setBytes(Hex.decode(string));
+    }
+
+    private Sha256Hash(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.hashCode = computeHashCode();
+    }
+
+    /**
+     * Reads a hash stored in little endian (wire) order from 32 bytes of buf starting at offset. This is the same as
+     * reversing those bytes and passing them to the constructor, without the two intermediate arrays.
+     */
+    public static Sha256Hash createReversed(byte[] buf, int offset) {
+        return new Sha256Hash(readLongLE(buf, offset + 24), readLongLE(buf, offset + 16),
+                              readLongLE(buf, offset + 8), readLongLE(buf, offset));
     }
 
     /** Calculates the (one-time) hash of contents and returns it as a new wrapped hash. */
@@ -78,38 +110,120 @@ public class Sha256Hash implements Serializable {
         }
     }
 
+    private void setBytes(byte[] bytes) {
+        w0 = readLongBE(bytes, 0);
+        w1 = readLongBE(bytes, 8);
+        w2 = readLongBE(bytes, 16);
+        w3 = readLongBE(bytes, 24);
+        hashCode = computeHashCode();
+    }
+
+    private int computeHashCode() {
+        // The bytes are already uniformly distributed, mixing a little of each word is plenty.
+        long h = w0 ^ (w1 * 31) ^ (w2 * 961) ^ (w3 * 29791);
+        return (int) (h ^ (h >>> 32));
+    }
+
     /** Returns true if the hashes are equal. */
     @Override
     public boolean equals(Object other) {
+        if (this == other) return true;
         if (!(other instanceof Sha256Hash)) return false;
-        return Arrays.equals(bytes, ((Sha256Hash)other).bytes);
+        Sha256Hash o = (Sha256Hash) other;
+        return hashCode == o.hashCode && w0 == o.w0 && w1 == o.w1 && w2 == o.w2 && w3 == o.w3;
     }
 
     /**
-     * Hash code of the byte array as calculated by {@link Arrays#hashCode()}. Note the difference between a SHA256
-     * secure bytes and the type of quick/dirty bytes used by the Java hashCode method which is designed for use in
-     * bytes tables.
+     * Hash code derived from the hash words, computed once at construction. Note the difference between a SHA256
+     * secure hash and the type of quick/dirty hash used by the Java hashCode method which is designed for use in
+     * hash tables.
      */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(bytes);
+        return hashCode;
     }
 
     @Override
     public String toString() {
-        return Utils.bytesToHexString(bytes);
+        return Utils.bytesToHexString(getBytes());
     }
 
     /** Returns the bytes interpreted as a positive integer. */
     public BigInteger toBigInteger() {
-        return new BigInteger(1, bytes);
+        return new BigInteger(1, getBytes());
     }
 
+    /** Returns a new array holding the 32 hash bytes in big endian order. */
     public byte[] getBytes() {
+        byte[] bytes = new byte[32];
+        writeLongBE(w0, bytes, 0);
+        writeLongBE(w1, bytes, 8);
+        writeLongBE(w2, bytes, 16);
+        writeLongBE(w3, bytes, 24);
+        return bytes;
+    }
+
+    /**
+     * Writes the hash in little endian (wire) order into 32 bytes of buf starting at offset. This is the same as
+     * writing Utils.reverseBytes(getBytes()) but needs no arrays.
+     */
+    public void writeReversed(byte[] buf, int offset) {
+        writeLongLE(w3, buf, offset);
+        writeLongLE(w2, buf, offset + 8);
+        writeLongLE(w1, buf, offset + 16);
+        writeLongLE(w0, buf, offset + 24);
+    }
+
+    /** Returns a new array holding the 32 hash bytes in little endian (wire) order. */
+    public byte[] getReversedBytes() {
+        byte[] bytes = new byte[32];
+        writeReversed(bytes, 0);
         return bytes;
     }
 
     public Sha256Hash duplicate() {
-        return new Sha256Hash(bytes);
+        return new Sha256Hash(w0, w1, w2, w3);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("bytes", getBytes());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        byte[] bytes = (byte[]) fields.get("bytes", null);
+        if (bytes == null || bytes.length != 32)
+            throw new IOException("Serialized Sha256Hash is not 32 bytes");
+        setBytes(bytes);
+    }
+
+    private static long readLongBE(byte[] buf, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (buf[offset + i] & 0xFFL);
+        return result;
+    }
+
+    private static long readLongLE(byte[] buf, int offset) {
+        long result = 0;
+        for (int i = 7; i >= 0; i--)
+            result = (result << 8) | (buf[offset + i] & 0xFFL);
+        return result;
+    }
+
+    private static void writeLongBE(long val, byte[] buf, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) val;
+            val >>>= 8;
+        }
+    }
+
+    private static void writeLongLE(long val, byte[] buf, int offset) {
+        for (int i = 0; i < 8; i++) {
+            buf[offset + i] = (byte) val;
+            val >>>= 8;
+        }
     }
 }
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers signatures that have already been checked, so a transaction is not verified twice. That normally
+ * happens when a wallet checks a transaction as it sends it, see {@link Wallet#setTransactionVerifier}, and the
+ * block chain checks it again once it appears in a block. Checking an
+ * ECDSA signature costs far more than everything else involved in verifying a transaction.<p>
+ *
+ * Only valid signatures are remembered. Entries are keyed by the SHA-256 of the signature hash, public key and
+ * signature together, and the least recently used are evicted once the cache is full. One cache can be shared by
+ * any number of threads.
+ */
+public class SignatureCache {
+    /** Default number of signatures remembered. */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final LinkedHashMap<Sha256Hash, Boolean> verified;
+
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SignatureCache(final int capacity) {
+        verified = new LinkedHashMap<Sha256Hash, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the ASN.1 encoded signature of the given hash is valid for the public key. The signature is
+     * only checked if it isn't already in the cache. Malformed keys and signatures are reported as invalid.
+     */
+    public boolean verify(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        Sha256Hash key = cacheKey(sigHash, signature, pubKey);
+        synchronized (verified) {
+            if (verified.get(key) != null)
+                return true;
+        }
+        // Verify outside the lock so threads checking different signatures don't wait for each other.
+        boolean valid;
+        try {
+            valid = ECKey.verify(sigHash, signature, pubKey);
+        } catch (RuntimeException e) {
+            // The key isn't a point on the curve, or the signature isn't a DER sequence of two integers.
+            valid = false;
+        }
+        if (valid) {
+            synchronized (verified) {
+                verified.put(key, Boolean.TRUE);
+            }
+        }
+        return valid;
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public int size() {
+        synchronized (verified) {
+            return verified.size();
+        }
+    }
+
+    /** Forgets every signature. */
+    public void clear() {
+        synchronized (verified) {
+            verified.clear();
+        }
+    }
+
+    private static Sha256Hash cacheKey(byte[] sigHash, byte[] signature, byte[] pubKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(sigHash);
+            // The signature length keeps the boundary between signature and key unambiguous.
+            digest.update((byte) signature.length);
+            digest.update((byte) (signature.length >> 8));
+            digest.update(signature);
+            digest.update(pubKey);
+            return new Sha256Hash(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+}
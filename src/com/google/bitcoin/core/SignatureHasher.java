@@ -0,0 +1,115 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Calculates the hashes that the inputs of a transaction sign. This works like SignatureHash in script.cpp.<p>
+ *
+ * When input i is signed, the transaction is hashed with every input script empty except that of input i, which is
+ * replaced by the script of the output it connects to. Everything apart from that one script is the same for every
+ * input. So the transaction is serialized once, up front, with all input scripts empty. Each hash then streams the
+ * pieces straight through SHA-256 with the connected script spliced in. Signing n inputs therefore costs O(n) bytes
+ * of serialization, not O(n<sup>2</sup>).<p>
+ *
+ * Only SIGHASH_ALL is supported, the only mode that signInputs uses. Instances do not change after construction and
+ * can be shared between threads. They must not be used after the transaction's inputs or outputs change.
+ */
+class SignatureHasher {
+    // Size of a serialized input whose script is empty: outpoint (36), script length varint (1), sequence (4).
+    private static final int EMPTY_INPUT_SIZE = 36 + 1 + 4;
+
+    // version + input count, then the inputs with empty scripts, then output count + outputs + lock time.
+    private final byte[] prefix;
+    private final byte[] inputs;
+    private final byte[] suffix;
+    private final int numInputs;
+
+    SignatureHasher(Transaction tx) {
+        List<TransactionInput> txInputs = tx.getInputs();
+        List<TransactionOutput> txOutputs = tx.getOutputs();
+        numInputs = txInputs.size();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(9);
+            Utils.uint32ToByteStreamLE(tx.version, bos);
+            VarInt.write(numInputs, bos);
+            prefix = bos.toByteArray();
+
+            bos = new ByteArrayOutputStream(numInputs * EMPTY_INPUT_SIZE);
+            for (TransactionInput input : txInputs) {
+                input.outpoint.bitcoinSerializeToStream(bos);
+                bos.write(0);
+                Utils.uint32ToByteStreamLE(input.sequence, bos);
+            }
+            inputs = bos.toByteArray();
+
+            bos = new ByteArrayOutputStream();
+            VarInt.write(txOutputs.size(), bos);
+            for (TransactionOutput output : txOutputs)
+                output.bitcoinSerializeToStream(bos);
+            Utils.uint32ToByteStreamLE(tx.lockTime, bos);
+            suffix = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Returns the double SHA-256 that input number inputIndex must sign, given the script of the output it connects
+     * to. As in the official client the hash is NOT reversed.
+     */
+    byte[] hashForSignature(int inputIndex, byte[] connectedScript, Transaction.SigHash type, boolean anyoneCanPay) {
+        assert type == Transaction.SigHash.ALL;
+        if (inputIndex < 0 || inputIndex >= numInputs)
+            throw new IndexOutOfBoundsException("No input " + inputIndex + " in a transaction of " + numInputs);
+        int hashType = type.ordinal() + 1;
+        if (anyoneCanPay)
+            hashType |= 0x80;
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        int start = inputIndex * EMPTY_INPUT_SIZE;
+        digest.update(prefix);
+        // The inputs before this one and its outpoint, then the connected script in place of the empty one.
+        digest.update(inputs, 0, start + 36);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        // This input's sequence number and the remaining inputs.
+        digest.update(inputs, start + 37, inputs.length - start - 37);
+        digest.update(suffix);
+        byte[] hashTypeBytes = new byte[4];
+        Utils.uint32ToByteArrayLE(hashType, hashTypeBytes, 0);
+        digest.update(hashTypeBytes);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+}
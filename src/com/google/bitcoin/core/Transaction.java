@@ -39,10 +39,16 @@ package com.google.bitcoin.core;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -92,6 +98,10 @@ public class Transaction extends Message implements Serializable {
     // This is an in memory helper only.
     transient Sha256Hash hash;
 
+    // The block this transaction is part of, if any, which has to drop its cached bytes and hash when this changes.
+    // Weak so that transactions kept in a wallet don't keep the whole block alive.
+    private transient WeakReference<Block> parentBlock;
+
     Transaction(NetworkParameters params) {
         super(params);
         version = 1;
@@ -115,25 +125,41 @@ public class Transaction extends Message implements Serializable {
         // inputs/outputs will be created in parse()
     }
 
+    /**
+     * Creates a transaction by reading payload starting from offset bytes in. If parseLazy is true the inputs and
+     * outputs are only decoded when first accessed, and until then the transaction refers to the payload array.
+     */
+    public Transaction(NetworkParameters params, byte[] payload, int offset, boolean parseLazy)
+            throws ProtocolException {
+        super(params, payload, offset, NetworkParameters.PROTOCOL_VERSION, parseLazy);
+    }
+
     /**
      * Returns a read-only list of the inputs of this transaction.
      */
     public List<TransactionInput> getInputs() {
+        maybeParse();
         return Collections.unmodifiableList(inputs);
     }
     
     public List<TransactionOutput> getOutputs() {
+        maybeParse();
     	return Collections.unmodifiableList(outputs);
     }
     
     public BigInteger getCoinsOut() {
-    	List<TransactionOutput> outs = getOutputs();
-    	BigInteger total = BigInteger.ZERO;
-    	for (TransactionOutput out : outs) {
-    		total = total.add(out.getValue());
+    	return BigInteger.valueOf(getCoinsOutAsLong());
+    } // getCoinsOut
+    
+    /** Returns the sum of all outputs in nanocoins. */
+    public long getCoinsOutAsLong() {
+        maybeParse();
+    	long total = 0;
+    	for (TransactionOutput out : outputs) {
+    		total = Nanocoins.add(total, out.getValueAsLong());
     	}
     	return total;
-    } // getCoinsOut
+    } // getCoinsOutAsLong
     
     public void setFeeValue(BigInteger fee) {
     	this.fee = fee;
@@ -171,8 +197,12 @@ public class Transaction extends Message implements Serializable {
      */
     public Sha256Hash getHash() {
         if (hash == null) {
-            byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            // A lazily parsed transaction is hashed straight from the payload it still refers to.
+            byte[] buf = bytes;
+            if (buf != null)
+                hash = new Sha256Hash(reverseBytes(doubleDigest(buf, offset, getMessageSize())));
+            else
+                hash = new Sha256Hash(reverseBytes(doubleDigest(bitcoinSerialize())));
         }
         return hash;
     }
@@ -185,22 +215,32 @@ public class Transaction extends Message implements Serializable {
      * Calculates the sum of the outputs that are sending coins to a key in the wallet. The flag controls whether to
      * include spent outputs or not.
      */
-    BigInteger getValueSentToMe(Wallet wallet, boolean includeSpent) {
+    long getValueSentToMeAsLong(Wallet wallet, boolean includeSpent) {
+        maybeParse();
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionOutput o : outputs) {
             if (!o.isMine(wallet)) continue;
             if (!includeSpent && !o.isAvailableForSpending()) continue;
-            v = v.add(o.getValue());
+            v = Nanocoins.add(v, o.getValueAsLong());
         }
         return v;
     }
 
+    BigInteger getValueSentToMe(Wallet wallet, boolean includeSpent) {
+        return BigInteger.valueOf(getValueSentToMeAsLong(wallet, includeSpent));
+    }
+
     /** Calculates the sum of the outputs that are sending coins to a key in the wallet. */
     public BigInteger getValueSentToMe(Wallet wallet) {
         return getValueSentToMe(wallet, true);
     }
 
+    /** Calculates the sum in nanocoins of the outputs that are sending coins to a key in the wallet. */
+    public long getValueSentToMeAsLong(Wallet wallet) {
+        return getValueSentToMeAsLong(wallet, true);
+    }
+
     /**
      * Returns a set of blocks which contain the transaction, or null if this transaction doesn't have that data
      * because it's not stored in the wallet or because it has never appeared in a block.
@@ -235,8 +275,14 @@ public class Transaction extends Message implements Serializable {
      * @return sum in nanocoins.
      */
     public BigInteger getValueSentFromMe(Wallet wallet) throws ScriptException {
+        return BigInteger.valueOf(getValueSentFromMeAsLong(wallet));
+    }
+
+    /** As {@link #getValueSentFromMe(Wallet)}, but returns the sum as a primitive. */
+    public long getValueSentFromMeAsLong(Wallet wallet) throws ScriptException {
+        maybeParse();
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionInput input : inputs) {
             // This input is taking value from an transaction in our wallet. To discover the value,
             // we must find the connected transaction.
@@ -251,12 +297,13 @@ public class Transaction extends Message implements Serializable {
             // case we ignore it.
             if (!connected.isMine(wallet))
                 continue;
-            v = v.add(connected.getValue());
+            v = Nanocoins.add(v, connected.getValueAsLong());
         }
         return v;
     }
 
     boolean disconnectInputs() {
+        maybeParse();
         boolean disconnected = false;
         for (TransactionInput input : inputs) {
             disconnected |= input.disconnect();
@@ -269,6 +316,7 @@ public class Transaction extends Message implements Serializable {
      * null on success.
      */
     TransactionInput connectForReorganize(Map<Sha256Hash, Transaction> transactions) {
+        maybeParse();
         for (TransactionInput input : inputs) {
             // Coinbase transactions, by definition, do not have connectable inputs.
             if (input.isCoinBase()) continue;
@@ -289,6 +337,7 @@ public class Transaction extends Message implements Serializable {
      * @return true if every output is marked as spent.
      */
     public boolean isEveryOutputSpent() {
+        maybeParse();
         for (TransactionOutput output : outputs) {
             if (output.isAvailableForSpending())
                 return false;
@@ -301,6 +350,7 @@ public class Transaction extends Message implements Serializable {
      * 			{@link Wallet} is marked as spent.
      */
     public boolean isEveryOwnedOutputSpent(Wallet wallet) {
+        maybeParse();
     	for (TransactionOutput output : outputs) {
     		if (output.isAvailableForSpending() && output.isMine(wallet)) {
     			return false;
@@ -370,6 +420,119 @@ public class Transaction extends Message implements Serializable {
         lockTime = readUint32();
     }
 
+    @Override
+    void parseLite() throws ProtocolException {
+        // Walk the structure to find the end of the transaction without decoding anything.
+        skipBytes(4);
+        long numInputs = readVarInt();
+        for (long i = 0; i < numInputs; i++) {
+            skipBytes(36);
+            skipBytes(readVarInt());
+            skipBytes(4);
+        }
+        long numOutputs = readVarInt();
+        for (long i = 0; i < numOutputs; i++) {
+            skipBytes(8);
+            skipBytes(readVarInt());
+        }
+        skipBytes(4);
+        unparsed = true;
+    }
+
+    @Override
+    boolean shouldCacheBytes() {
+        // Lets getHash() and re-broadcast reuse the bytes we received instead of serializing again.
+        return true;
+    }
+
+    /**
+     * Returns true if any output of this transaction pays to a key in the wallet, or if it is not a coinbase and any
+     * of its inputs is signed by a key in the wallet. A transaction that has not been parsed yet is checked directly
+     * against the payload, and is only decoded if it turns out to be relevant or uses non-standard scripts.
+     */
+    boolean isRelevantTo(Wallet wallet) throws ScriptException {
+        byte[] buf = bytes;
+        if (buf == null || !unparsed) {
+            for (TransactionOutput output : getOutputs()) {
+                byte[] script = output.getScriptBytes();
+                // This is not thread safe as a key could be removed between the call to isMine and receive.
+                if (isRawOutputMine(wallet, script, 0, script.length))
+                    return true;
+            }
+            // Coinbase transactions don't have anything useful in their inputs (as they create coins out of thin air).
+            if (isCoinBase())
+                return false;
+            for (TransactionInput input : inputs) {
+                byte[] script = input.scriptBytes;
+                // This is not thread safe as a key could be removed between the call to isPubKeyMine and receive.
+                if (isRawInputMine(wallet, script, 0, script.length))
+                    return true;
+            }
+            return false;
+        }
+
+        int pos = offset + 4;
+        VarInt numInputs = new VarInt(buf, pos);
+        pos += numInputs.getSizeInBytes();
+        int inputsStart = pos;
+        for (long i = 0; i < numInputs.value; i++) {
+            VarInt scriptLen = new VarInt(buf, pos + 36);
+            pos += 36 + scriptLen.getSizeInBytes() + (int) scriptLen.value + 4;
+        }
+        VarInt numOutputs = new VarInt(buf, pos);
+        pos += numOutputs.getSizeInBytes();
+        for (long i = 0; i < numOutputs.value; i++) {
+            VarInt scriptLen = new VarInt(buf, pos + 8);
+            pos += 8 + scriptLen.getSizeInBytes();
+            int len = (int) scriptLen.value;
+            if (isRawOutputMine(wallet, buf, pos, len))
+                return true;
+            pos += len;
+        }
+
+        // A coinbase has a single input whose outpoint hash is all zeros.
+        boolean coinbase = numInputs.value > 0;
+        for (int i = 0; coinbase && i < 32; i++)
+            coinbase = buf[inputsStart + i] == 0;
+        if (coinbase)
+            return false;
+        pos = inputsStart;
+        for (long i = 0; i < numInputs.value; i++) {
+            VarInt scriptLen = new VarInt(buf, pos + 36);
+            pos += 36 + scriptLen.getSizeInBytes();
+            int len = (int) scriptLen.value;
+            if (isRawInputMine(wallet, buf, pos, len))
+                return true;
+            pos += len + 4;
+        }
+        return false;
+    }
+
+    // Standard scripts are matched in place. Anything else goes through the script parser.
+    private boolean isRawOutputMine(Wallet wallet, byte[] buf, int pos, int len) throws ScriptException {
+        int hashOffset = ScriptTemplates.payToPubKeyHash(buf, pos, len);
+        if (hashOffset >= 0)
+            return wallet.isPubKeyHashMine(buf, hashOffset);
+        // TODO: Handle more types of outputs, not just regular to address outputs.
+        if (ScriptTemplates.payToPubKey(buf, pos, len) >= 0)
+            return false;
+        Script script = new Script(params, buf, pos, len);
+        if (script.isSentToIP())
+            return false;
+        try {
+            return wallet.isPubKeyHashMine(script.getPubKeyHash());
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    private boolean isRawInputMine(Wallet wallet, byte[] buf, int pos, int len) throws ScriptException {
+        int keyOffset = ScriptTemplates.pubKeyOfInput(buf, pos, len);
+        if (keyOffset >= 0)
+            return wallet.isPubKeyMine(buf, keyOffset, pos + len - keyOffset);
+        return wallet.isPubKeyMine(new Script(params, buf, pos, len).getPubKey());
+    }
+
     /**
      * A coinbase transaction is one that creates a new coin. They are the first transaction in each block and their
      * value is determined by a formula that all implementations of BitCoin share. In 2011 the value of a coinbase
@@ -377,6 +540,7 @@ public class Transaction extends Message implements Serializable {
      * position in a block but by the data in the inputs.
      */
     public boolean isCoinBase() {
+        maybeParse();
         return inputs.get(0).isCoinBase();
     }
 
@@ -384,6 +548,7 @@ public class Transaction extends Message implements Serializable {
      * @return A human readable version of the transaction useful for debugging.
      */
     public String toString() {
+        maybeParse();
         StringBuffer s = new StringBuffer();
         s.append("  ");
         s.append(getHashAsString());
@@ -416,10 +581,10 @@ public class Transaction extends Message implements Serializable {
             s.append("       ");
             s.append("to ");
             try {
-                Address toAddr = new Address(params, out.getScriptPubKey().getPubKeyHash());
+                Address toAddr = out.getScriptPubKey().getToAddress();
                 s.append(toAddr.toString());
                 s.append(" ");
-                s.append(bitcoinValueToFriendlyString(out.getValue()));
+                s.append(bitcoinValueToFriendlyString(out.getValueAsLong()));
                 s.append(" BTC");
             } catch (Exception e) {
                 s.append("[exception: ").append(e.getMessage()).append("]");
@@ -441,6 +606,7 @@ public class Transaction extends Message implements Serializable {
 
     /** Adds an input directly, with no checking that it's valid. */
     public void addInput(TransactionInput input) {
+        fieldsChanged();
         inputs.add(input);
     }
 
@@ -448,6 +614,7 @@ public class Transaction extends Message implements Serializable {
      * Adds the given output to this transaction. The output must be completely initialized.
      */
     public void addOutput(TransactionOutput to) {
+        fieldsChanged();
         to.parentTransaction = this;
         outputs.add(to);
     }
@@ -464,6 +631,19 @@ public class Transaction extends Message implements Serializable {
      */
     @SuppressWarnings({"SameParameterValue"})
     public void signInputs(SigHash hashType, Wallet wallet) throws ScriptException {
+        signInputs(hashType, wallet, null);
+    }
+
+    /**
+     * As {@link #signInputs(SigHash, Wallet)}, but if an executor is given the inputs are signed in parallel on it
+     * and the calling thread waits until they are all done. Each input's key lookup, hash and signature depend only
+     * on that input, and the scripts are still put together in input order afterwards, so the result has the same
+     * form as when signing sequentially. This pays off for transactions with many inputs, such as sweeps.
+     *
+     * @param executor Executor to sign on, or null to sign on the calling thread.
+     */
+    public void signInputs(SigHash hashType, Wallet wallet, ExecutorService executor) throws ScriptException {
+        fieldsChanged();
         assert inputs.size() > 0;
         assert outputs.size() > 0;
 
@@ -479,34 +659,12 @@ public class Transaction extends Message implements Serializable {
 
         byte[][] signatures = new byte[inputs.size()][];
         ECKey[] signingKeys = new ECKey[inputs.size()];
-        for (int i = 0; i < inputs.size(); i++) {
-            TransactionInput input = inputs.get(i);
-            assert input.scriptBytes.length == 0 : "Attempting to sign a non-fresh transaction";
-            // Set the input to the script of its output.
-            input.scriptBytes = input.outpoint.getConnectedPubKeyScript();
-            // Find the signing key we'll need to use.
-            byte[] connectedPubKeyHash = input.outpoint.getConnectedPubKeyHash();
-            ECKey key = wallet.findKeyFromPubHash(connectedPubKeyHash);
-            // This assert should never fire. If it does, it means the wallet is inconsistent.
-            assert key != null : "Transaction exists in wallet that we cannot redeem: " + Utils.bytesToHexString(connectedPubKeyHash);
-            // Keep the key around for the script creation step below.
-            signingKeys[i] = key;
-            // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
-            byte[] hash = hashTransactionForSignature(hashType, anyoneCanPay);
-            // Set the script to empty again for the next input.
-            input.scriptBytes = TransactionInput.EMPTY_ARRAY;
-
-            // Now sign for the output so we can redeem it. We use the keypair to sign the hash,
-            // and then put the resulting signature in the script along with the public key (below).
-            try {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                bos.write(key.sign(hash));
-                bos.write((hashType.ordinal() + 1) | (anyoneCanPay ? 0x80 : 0)) ;
-                signatures[i] = bos.toByteArray();
-            } catch (IOException e) {
-                throw new RuntimeException(e);  // Cannot happen.
-            }
+        SignatureHasher hasher = new SignatureHasher(this);
+        if (executor == null) {
+            for (int i = 0; i < inputs.size(); i++)
+                signatures[i] = signInput(i, hasher, hashType, wallet, signingKeys);
+        } else {
+            signInputsInParallel(hasher, hashType, wallet, signingKeys, signatures, executor);
         }
 
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists of
@@ -522,35 +680,106 @@ public class Transaction extends Message implements Serializable {
         // Every input is now complete.
     }
 
-    private byte[] hashTransactionForSignature(SigHash type, boolean anyoneCanPay) {
+    /**
+     * Finds the key for input i, storing it in signingKeys, and returns its signature followed by the hash type byte.
+     * Safe to call for different inputs at once.
+     */
+    private byte[] signInput(int i, SignatureHasher hasher, SigHash hashType, Wallet wallet, ECKey[] signingKeys)
+            throws ScriptException {
+        TransactionInput input = inputs.get(i);
+        assert input.scriptBytes.length == 0 : "Attempting to sign a non-fresh transaction";
+        // Find the signing key we'll need to use.
+        byte[] connectedScript = input.outpoint.getConnectedPubKeyScript();
+        int hashOffset = ScriptTemplates.payToPubKeyHash(connectedScript, 0, connectedScript.length);
+        ECKey key = hashOffset >= 0 ? wallet.findKeyFromPubHash(connectedScript, hashOffset)
+                                    : wallet.findKeyFromPubHash(input.outpoint.getConnectedPubKeyHash());
+        // This assert should never fire. If it does, it means the wallet is inconsistent.
+        assert key != null : "Transaction exists in wallet that we cannot redeem: " + Utils.bytesToHexString(connectedScript);
+        // Keep the key around for the script creation step.
+        signingKeys[i] = key;
+        // The anyoneCanPay feature isn't used at the moment.
+        boolean anyoneCanPay = false;
+        // The hash covers the transaction with this input's script set to the script of its output.
+        byte[] hash = hasher.hashForSignature(i, connectedScript, hashType, anyoneCanPay);
+
+        // Now sign for the output so we can redeem it. We use the keypair to sign the hash,
+        // and then put the resulting signature in the script along with the public key.
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            bitcoinSerializeToStream(bos);
-            // We also have to write a hash type.
-            int hashType = type.ordinal() + 1;
-            if (anyoneCanPay)
-                hashType |= 0x80;
-            Utils.uint32ToByteStreamLE(hashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            return doubleDigest(bos.toByteArray());
+            bos.write(key.sign(hash));
+            bos.write((hashType.ordinal() + 1) | (anyoneCanPay ? 0x80 : 0)) ;
+            return bos.toByteArray();
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
     }
-    
+
+    private void signInputsInParallel(final SignatureHasher hasher, final SigHash hashType, final Wallet wallet,
+                                      final ECKey[] signingKeys, byte[][] signatures, ExecutorService executor)
+            throws ScriptException {
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(inputs.size());
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws ScriptException {
+                        return signInput(index, hasher, hashType, wallet, signingKeys);
+                    }
+                }));
+            }
+            // Future.get() also makes the keys written by the signing threads visible to this one.
+            for (int i = 0; i < futures.size(); i++)
+                signatures[i] = futures.get(i).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted whilst signing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ScriptException)
+                throw (ScriptException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            // Only does anything if we bailed out early.
+            for (Future<byte[]> future : futures)
+                future.cancel(true);
+        }
+    }
+
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        maybeParse();
         uint32ToByteStreamLE(version, stream);
-        stream.write(new VarInt(inputs.size()).encode());
+        VarInt.write(inputs.size(), stream);
         for (TransactionInput in : inputs)
             in.bitcoinSerializeToStream(stream);
-        stream.write(new VarInt(outputs.size()).encode());
+        VarInt.write(outputs.size(), stream);
         for (TransactionOutput out : outputs)
             out.bitcoinSerializeToStream(stream);
         uint32ToByteStreamLE(lockTime, stream);
     }
 
+    void setParentBlock(Block block) {
+        parentBlock = block == null ? null : new WeakReference<Block>(block);
+    }
+
+    // Called before anything that is part of the wire format changes.
+    private void fieldsChanged() {
+        unCache();
+        hash = null;
+        Block block = parentBlock == null ? null : parentBlock.get();
+        if (block != null)
+            block.transactionChanged();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        maybeParse();
+        out.defaultWriteObject();
+    }
+
     @Override
     public boolean equals(Object other) {
         if (!(other instanceof Transaction)) return false;
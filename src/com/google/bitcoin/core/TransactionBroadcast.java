@@ -0,0 +1,182 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * The progress of a transaction sent with {@link PeerGroup#broadcastTransactionAsync(Transaction, int, long)}.<p>
+ *
+ * A successful write only shows that the bytes left our socket. The transaction has reached the network when peers
+ * we did not send it to announce it back to us with an inv, which they only do once they have accepted it. The
+ * broadcast succeeds when enough of them have, and get() then returns the transaction. It fails if every send fails,
+ * or if the timeout passes first, in which case get() throws an ExecutionException whose cause is an IOException or
+ * a TimeoutException.
+ */
+public class TransactionBroadcast implements Future<Transaction> {
+    private final Transaction tx;
+    private final int minPeers;
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    // All synchronized on this.
+    // The peers chosen to send to, and those it was written to.
+    private final Set<Peer> targets = new HashSet<Peer>();
+    private final Set<Peer> sentTo = new HashSet<Peer>();
+    private final Set<Peer> seenBy = new HashSet<Peer>();
+    private int sendsPending;
+    private int sendsFailed;
+    private boolean done;
+    private boolean cancelled;
+    private Exception failure;
+    // Called once when the broadcast completes in any way. May be null.
+    private Runnable onCompletion;
+
+    TransactionBroadcast(Transaction tx, int minPeers) {
+        this.tx = tx;
+        this.minPeers = minPeers;
+    }
+
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    /** Returns how many peers the transaction was written to. */
+    public synchronized int getPeersSentTo() {
+        return sentTo.size();
+    }
+
+    /** Returns how many of the other peers have announced the transaction back to us. */
+    public synchronized int getPeersSeenBy() {
+        return seenBy.size();
+    }
+
+    synchronized void setOnCompletion(Runnable onCompletion) {
+        this.onCompletion = onCompletion;
+    }
+
+    synchronized void sending(Collection<Peer> peers) {
+        targets.addAll(peers);
+        sendsPending += peers.size();
+    }
+
+    synchronized void sent(Peer peer) {
+        sendsPending--;
+        sentTo.add(peer);
+    }
+
+    void sendFailed(Peer peer, IOException e) {
+        synchronized (this) {
+            sendsPending--;
+            sendsFailed++;
+            if (sendsPending > 0 || !sentTo.isEmpty())
+                return;
+        }
+        complete(new IOException("Failed to send the transaction to any of " + sendsFailed + " peers", e));
+    }
+
+    /** Called when the given peer announces the transaction. */
+    void seen(Peer peer) {
+        synchronized (this) {
+            // A peer we sent it to can't show that it has spread.
+            if (done || targets.contains(peer) || !seenBy.add(peer) || seenBy.size() < minPeers)
+                return;
+        }
+        complete(null);
+    }
+
+    void failed(IOException e) {
+        complete(e);
+    }
+
+    void timedOut(long timeoutMillis) {
+        TimeoutException e;
+        synchronized (this) {
+            e = new TimeoutException("Transaction " + tx.getHashAsString() + " was announced by " + seenBy.size() +
+                    " of the " + minPeers + " peers needed within " + timeoutMillis + "ms");
+        }
+        complete(e);
+    }
+
+    private void complete(Exception failure) {
+        Runnable callback;
+        synchronized (this) {
+            if (done)
+                return;
+            done = true;
+            this.failure = failure;
+            callback = onCompletion;
+        }
+        latch.countDown();
+        if (callback != null)
+            callback.run();
+    }
+
+    /** Stops tracking the broadcast. What was sent stays sent. */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done)
+                return false;
+            cancelled = true;
+        }
+        complete(null);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public Transaction get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getResult();
+    }
+
+    public Transaction get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!latch.await(timeout, unit))
+            throw new TimeoutException();
+        return getResult();
+    }
+
+    private synchronized Transaction getResult() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return tx;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TransactionBroadcast(" + tx.getHashAsString() + ", sent to " + sentTo.size() + ", seen by " +
+                seenBy.size() + "/" + minPeers + (done ? ", done" : "") + ")";
+    }
+}
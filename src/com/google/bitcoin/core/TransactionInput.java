@@ -105,7 +105,7 @@ public class TransactionInput extends Message implements Serializable {
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         outpoint.bitcoinSerializeToStream(stream);
-        stream.write(new VarInt(scriptBytes.length).encode());
+        VarInt.write(scriptBytes.length, stream);
         stream.write(scriptBytes);
         Utils.uint32ToByteStreamLE(sequence, stream);
     }
@@ -41,6 +41,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
@@ -54,7 +56,9 @@ public class TransactionOutput extends Message implements Serializable {
     private static final long serialVersionUID = -590332479859256824L;
 
     // A transaction output has some value and a script used for authenticating that the redeemer is allowed to spend
-    // this output.
+    // this output. The value is kept as a primitive for arithmetic; the BigInteger form is what Java serialization
+    // stores, and is only created when asked for (or when serializing).
+    private transient long nanocoins;
     private BigInteger value;
     private byte[] scriptBytes;
 
@@ -82,6 +86,7 @@ public class TransactionOutput extends Message implements Serializable {
     TransactionOutput(NetworkParameters params, Transaction parent, BigInteger value, Address to) {
         super(params);
         this.value = value;
+        this.nanocoins = Nanocoins.toLong(value);
         this.scriptBytes = Script.createOutputScript(to);
         parentTransaction = parent;
         availableForSpending = true;
@@ -91,7 +96,7 @@ public class TransactionOutput extends Message implements Serializable {
     TransactionOutput(NetworkParameters params, Transaction parent, byte[] scriptBytes) {
         super(params);
         this.scriptBytes = scriptBytes;
-        this.value = Utils.toNanoCoins(50, 0);
+        this.nanocoins = Nanocoins.fromCoins(50, 0);
         parentTransaction = parent;
         availableForSpending = true;
     }
@@ -103,7 +108,7 @@ public class TransactionOutput extends Message implements Serializable {
     }
     
     void parse() throws ProtocolException {
-        value = readUint64();
+        nanocoins = readInt64();
         int scriptLen = (int) readVarInt();
         scriptBytes = readBytes(scriptLen);
     }
@@ -111,9 +116,9 @@ public class TransactionOutput extends Message implements Serializable {
     @Override
     public void bitcoinSerializeToStream( OutputStream stream) throws IOException {
         assert scriptBytes != null;
-        Utils.uint64ToByteStreamLE(getValue(), stream);
+        Utils.uint64ToByteStreamLE(nanocoins, stream);
         // TODO: Move script serialization into the Script class, where it belongs.
-        stream.write(new VarInt(scriptBytes.length).encode());
+        VarInt.write(scriptBytes.length, stream);
         stream.write(scriptBytes);
     }
 
@@ -122,9 +127,31 @@ public class TransactionOutput extends Message implements Serializable {
      * receives.
      */
     public BigInteger getValue() {
+        if (value == null)
+            value = BigInteger.valueOf(nanocoins);
         return value;
     }
 
+    /**
+     * Returns the value of this output in nanocoins, without allocating. Use the helpers in {@link Nanocoins} to do
+     * overflow checked arithmetic on it.
+     */
+    public long getValueAsLong() {
+        return nanocoins;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Make sure the serialized form has the value even if it was never asked for.
+        getValue();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (value != null)
+            nanocoins = Nanocoins.toLong(value);
+    }
+
     int getIndex() {
         assert parentTransaction != null;
         for (int i = 0; i < parentTransaction.outputs.size(); i++) {
@@ -160,6 +187,13 @@ public class TransactionOutput extends Message implements Serializable {
 
     /** Returns true if this output is to an address we have the keys for in the wallet. */
     public boolean isMine(Wallet wallet) {
+        // Outputs are almost always in the standard form, which is matched without parsing the script.
+        int hashOffset = ScriptTemplates.payToPubKeyHash(scriptBytes, 0, scriptBytes.length);
+        if (hashOffset >= 0)
+            return wallet.isPubKeyHashMine(scriptBytes, hashOffset);
+        // Payments straight to a public key have no address, so they aren't ours in this sense.
+        if (ScriptTemplates.payToPubKey(scriptBytes, 0, scriptBytes.length) >= 0)
+            return false;
         try {
             byte[] pubkeyHash = getScriptPubKey().getPubKeyHash();
             return wallet.isPubKeyHashMine(pubkeyHash);
@@ -172,7 +206,7 @@ public class TransactionOutput extends Message implements Serializable {
     /** Returns a human readable debug string. */
     public String toString() {
         try {
-            return "TxOut of " + Utils.bitcoinValueToFriendlyString(value) + " to " + getScriptPubKey().getToAddress()
+            return "TxOut of " + Utils.bitcoinValueToFriendlyString(nanocoins) + " to " + getScriptPubKey().getToAddress()
                     .toString() + " script:" + getScriptPubKey().toString();
         } catch (ScriptException e) {
             throw new RuntimeException(e);
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the inputs of transactions are correctly signed, by running each input's scriptSig together with the
+ * scriptPubKey of the output it spends. See {@link ScriptInterpreter} for what is supported.<p>
+ *
+ * Only inputs whose spent output is known can be checked. A lightweight client doesn't have the whole block chain,
+ * so in practice these are inputs spending transactions from our wallets, or earlier transactions in the same
+ * block. Other inputs are skipped.<p>
+ *
+ * Valid signatures are remembered in a {@link SignatureCache}. When a {@link Wallet} and the {@link BlockChain}
+ * share a verifier, a transaction checked as the wallet sent it is checked again almost for free when it appears in
+ * a block. If an {@link ExecutorService} is given, inputs are
+ * spread over it, as checking a signature is expensive.
+ */
+public class TransactionVerifier {
+    // Lists with fewer inputs than this are checked on the calling thread.
+    private static final int MIN_PARALLEL_INPUTS = 4;
+
+    private final SignatureCache signatureCache;
+    private final ExecutorService executor;
+
+    /** Creates a verifier with its own signature cache, which checks inputs on the calling thread. */
+    public TransactionVerifier() {
+        this(new SignatureCache(), null);
+    }
+
+    /**
+     * Creates a verifier using the given signature cache, which may be shared with other verifiers. If executor is
+     * not null, inputs are checked in parallel on it.
+     */
+    public TransactionVerifier(SignatureCache signatureCache, ExecutorService executor) {
+        this.signatureCache = signatureCache;
+        this.executor = executor;
+    }
+
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Checks every input of tx that spends an output of a transaction in previous, or an output it is already
+     * connected to.
+     * @return the number of inputs that were checked
+     * @throws VerificationException if any of them is not correctly signed
+     */
+    public int verify(Transaction tx, Map<Sha256Hash, Transaction> previous) throws VerificationException {
+        return verify(Collections.singletonList(tx), previous);
+    }
+
+    /**
+     * Checks the inputs of all the given transactions, as {@link #verify(Transaction, Map)} does. The transactions
+     * may spend each other's outputs, as those of a block do.
+     * @return the number of inputs that were checked
+     * @throws VerificationException if any of them is not correctly signed
+     */
+    public int verify(List<Transaction> transactions, Map<Sha256Hash, Transaction> previous)
+            throws VerificationException {
+        Map<Sha256Hash, Transaction> known = new HashMap<Sha256Hash, Transaction>(previous);
+        for (Transaction tx : transactions)
+            known.put(tx.getHash(), tx);
+
+        // Find the inputs that can be checked. The signature hasher of each transaction is shared by its inputs.
+        final List<Transaction> txns = new ArrayList<Transaction>();
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final List<byte[]> scripts = new ArrayList<byte[]>();
+        final List<SignatureHasher> hashers = new ArrayList<SignatureHasher>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinBase())
+                continue;
+            SignatureHasher hasher = null;
+            List<TransactionInput> inputs = tx.getInputs();
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                TransactionOutput spent = input.outpoint.getConnectedOutput();
+                if (spent == null)
+                    spent = input.getConnectedOutput(known);
+                if (spent == null)
+                    continue;
+                if (hasher == null)
+                    hasher = new SignatureHasher(tx);
+                txns.add(tx);
+                indexes.add(i);
+                scripts.add(spent.getScriptBytes());
+                hashers.add(hasher);
+            }
+        }
+
+        final int count = txns.size();
+        int slices = executor == null ? 1 : Math.min(count / MIN_PARALLEL_INPUTS + 1,
+                                                     Runtime.getRuntime().availableProcessors());
+        if (slices < 2) {
+            verifyRange(txns, indexes, scripts, hashers, 0, count);
+            return count;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(slices);
+        try {
+            for (int i = 0; i < slices; i++) {
+                final int start = (int) ((long) count * i / slices);
+                final int end = (int) ((long) count * (i + 1) / slices);
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws VerificationException {
+                        verifyRange(txns, indexes, scripts, hashers, start, end);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof VerificationException)
+                throw (VerificationException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            // Once one input has failed there is no point checking the rest.
+            for (Future<Void> future : futures)
+                future.cancel(true);
+        }
+        return count;
+    }
+
+    private void verifyRange(List<Transaction> txns, List<Integer> indexes, List<byte[]> scripts,
+                             List<SignatureHasher> hashers, int start, int end) throws VerificationException {
+        for (int i = start; i < end; i++) {
+            Transaction tx = txns.get(i);
+            int index = indexes.get(i);
+            try {
+                ScriptInterpreter.verifyInput(tx, index, scripts.get(i), hashers.get(i), signatureCache);
+            } catch (ScriptException e) {
+                throw new VerificationException("Input " + index + " of " + tx.getHashAsString() +
+                        " failed to verify: " + e.getMessage());
+            }
+        }
+    }
+}
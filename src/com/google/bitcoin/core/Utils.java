@@ -45,6 +45,7 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
@@ -53,7 +54,8 @@ import java.util.Date;
  */
 @SuppressWarnings({"SameParameterValue"})
 public class Utils {
-    // TODO: Replace this nanocoins business with something better.
+    // Arithmetic on amounts should use the primitive helpers in Nanocoins. The BigInteger forms here are kept for
+    // compatibility with existing callers.
 
     /**
      * How many "nanocoins" there are in a BitCoin.
@@ -75,10 +77,7 @@ public class Utils {
 
     /** Convert an amount expressed in the way humans are used to into nanocoins. */
     public static BigInteger toNanoCoins(int coins, int cents) {
-        assert cents < 100;
-        BigInteger bi = BigInteger.valueOf(coins).multiply(COIN);
-        bi = bi.add(BigInteger.valueOf(cents).multiply(CENT));
-        return bi;
+        return BigInteger.valueOf(Nanocoins.fromCoins(coins, cents));
     }
 
     /**
@@ -114,6 +113,13 @@ public class Utils {
         stream.write((int)(0xFF & (val >> 24)));
     }
     
+    public static void uint64ToByteStreamLE(long val, OutputStream stream) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            stream.write((int) (0xFF & val));
+            val >>>= 8;
+        }
+    }
+
     public static void uint64ToByteStreamLE(BigInteger val, OutputStream stream) throws IOException {
         byte[] bytes = val.toByteArray();
         if (bytes.length > 8) { 
@@ -170,16 +176,69 @@ public class Utils {
         return (n1 < n2) ^ ((n1 < 0) != (n2 < 0));
     }
 
-    /** Returns the given byte array hex encoded. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // Maps an ASCII character to its hex digit value, or -1 if it is not a hex digit.
+    private static final int[] HEX_VALUES = new int[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = i;
+        }
+    }
+
+    /** Returns the given byte array hex encoded, in lower case. */
     public static String bytesToHexString(byte[] bytes) {
-        StringBuffer buf = new StringBuffer(bytes.length * 2);
-        for (byte b : bytes) {
-            String s = Integer.toString(0xFF & b, 16);
-            if (s.length() < 2)
-                buf.append('0');
-            buf.append(s);
+        return bytesToHexString(bytes, 0, bytes.length);
+    }
+
+    /** Returns the given byte range hex encoded, in lower case. */
+    public static String bytesToHexString(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xFF;
+            chars[i * 2] = HEX_DIGITS[b >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /** Hex encodes each of the given byte arrays, see {@link #bytesToHexString(byte[])}. */
+    public static String[] bytesToHexStrings(byte[][] inputs) {
+        String[] results = new String[inputs.length];
+        for (int i = 0; i < inputs.length; i++)
+            results[i] = bytesToHexString(inputs[i]);
+        return results;
+    }
+
+    /**
+     * Decodes the given hex string, which may use either case. Throws IllegalArgumentException if the string has
+     * an odd length or contains a character that is not a hex digit.
+     */
+    public static byte[] hexStringToBytes(String hex) {
+        int length = hex.length();
+        if ((length & 1) != 0)
+            throw new IllegalArgumentException("Hex string has odd length: " + length);
+        byte[] bytes = new byte[length / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            char c1 = hex.charAt(i * 2);
+            char c2 = hex.charAt(i * 2 + 1);
+            int hi = c1 < 128 ? HEX_VALUES[c1] : -1;
+            int lo = c2 < 128 ? HEX_VALUES[c2] : -1;
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Not a hex string at " + (i * 2) + ": " + hex);
+            bytes[i] = (byte) ((hi << 4) | lo);
         }
-        return buf.toString();
+        return bytes;
+    }
+
+    /** Decodes each of the given hex strings, see {@link #hexStringToBytes(String)}. */
+    public static byte[][] hexStringsToBytes(String[] inputs) {
+        byte[][] results = new byte[inputs.length][];
+        for (int i = 0; i < inputs.length; i++)
+            results[i] = hexStringToBytes(inputs[i]);
+        return results;
     }
     
 
@@ -227,6 +286,16 @@ public class Utils {
         }
     }
 
+    /** Returns the given value in nanocoins as a 0.12 type string. */
+    public static String bitcoinValueToFriendlyString(long value) {
+        boolean negative = value < 0;
+        if (negative)
+            value = -value;
+        long coins = value / Nanocoins.COIN;
+        long cents = value % Nanocoins.COIN;
+        return String.format("%s%d.%05d", negative ? "-" : "", coins, cents / 1000);
+    }
+
     /** Returns the given value in nanocoins as a 0.12 type string. */
     public static String bitcoinValueToFriendlyString(BigInteger value) {
         boolean negative = value.compareTo(BigInteger.ZERO) < 0;
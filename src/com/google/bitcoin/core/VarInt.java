@@ -37,6 +37,9 @@
 
 package com.google.bitcoin.core;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 import static com.google.bitcoin.core.Utils.isLessThanUnsigned;
 
 public class VarInt {
@@ -79,6 +82,27 @@ public class VarInt {
     }
     
 
+    /**
+     * Writes the encoded form of value to the stream without allocating, for serializers that would otherwise create
+     * a VarInt just to call {@link #encode()} on it.
+     */
+    public static void write(long value, OutputStream stream) throws IOException {
+        if (isLessThanUnsigned(value, 253)) {
+            stream.write((int) value);
+        } else if (isLessThanUnsigned(value, 65536)) {
+            stream.write(253);
+            stream.write((int) value);
+            stream.write((int) (value >> 8));
+        } else if (isLessThanUnsigned(value, 4294967296L)) {
+            stream.write(254);
+            Utils.uint32ToByteStreamLE(value, stream);
+        } else {
+            stream.write(255);
+            Utils.uint32ToByteStreamLE(value, stream);
+            Utils.uint32ToByteStreamLE(value >>> 32, stream);
+        }
+    }
+
     public byte[] encode() {
         return encodeBE();
     }
@@ -89,7 +113,7 @@ public class VarInt {
             return new byte[] { (byte)value };
         } else if (isLessThanUnsigned(value, 65536)) {
             return new byte[] { (byte) 253, (byte) (value), (byte) (value >> 8) };
-        } else if (isLessThanUnsigned(value, 4294967295L)) {
+        } else if (isLessThanUnsigned(value, 4294967296L)) {
             byte[] bytes = new byte[5];
             bytes[0] = (byte) 254;
             Utils.uint32ToByteArrayLE(value, bytes, 1);
@@ -50,12 +50,15 @@ import java.util.Arrays;
 public class VersionedChecksummedBytes {
     protected int version;
     protected byte[] bytes;
+    // The base58 form, computed on first use by toString() or remembered from parsing.
+    private String encoded;
 
     protected VersionedChecksummedBytes(String encoded) throws AddressFormatException {
         byte[] tmp = Base58.decodeChecked(encoded);
         version = tmp[0] & 0xFF;
         bytes = new byte[tmp.length - 1];
         System.arraycopy(tmp, 1, bytes, 0, tmp.length - 1);
+        this.encoded = encoded;
     }
 
     protected VersionedChecksummedBytes(int version, byte[] bytes) {
@@ -66,6 +69,12 @@ public class VersionedChecksummedBytes {
 
     @Override
     public String toString() {
+        if (encoded == null)
+            encoded = encode();
+        return encoded;
+    }
+
+    private String encode() {
         // A stringified buffer is:
         //   1 byte version + data bytes + 4 bytes check code (a truncated hash)
         byte[] addressBytes = new byte[1 + bytes.length + 4];
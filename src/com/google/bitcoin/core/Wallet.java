@@ -151,6 +151,9 @@ public class Wallet implements Serializable {
 
     transient private ArrayList<WalletEventListener> eventListeners;
 
+    // If set, transactions are checked with this before they are sent.
+    transient private TransactionVerifier transactionVerifier;
+
     /**
      * Creates a new, empty wallet with no keys and no transactions. If you want to restore a wallet from disk instead,
      * see loadFromFile.
@@ -166,6 +169,16 @@ public class Wallet implements Serializable {
         eventListeners = new ArrayList<WalletEventListener>();
     }
 
+    /**
+     * Sets a verifier that checks the signatures of each transaction before the wallet sends it, so a badly signed
+     * transaction is never broadcast. Give the {@link BlockChain} the same verifier, see
+     * {@link BlockChain#setTransactionVerifier(TransactionVerifier)}, and the signatures it remembers make checking
+     * the transaction again when it appears in a block almost free. Pass null, the default, to send unchecked.
+     */
+    public synchronized void setTransactionVerifier(TransactionVerifier verifier) {
+        transactionVerifier = verifier;
+    }
+
     /**
      * Uses Java serialization to save the wallet to the given file.
      */
@@ -241,6 +254,10 @@ public class Wallet implements Serializable {
     private synchronized void receive(Transaction tx, StoredBlock block,
                                       BlockChain.NewBlockType blockType, boolean reorg) throws VerificationException, ScriptException {
         // Runs in a peer thread.
+        // Transactions from the block chain may still be lazily parsed, and refer to the payload of the whole block
+        // they arrived in. Hash them while the bytes are at hand, then parse them and let go of the block.
+        tx.getHash();
+        tx.unCache();
         BigInteger prevBalance = getBalance();
 
         Sha256Hash txHash = tx.getHash();
@@ -248,9 +265,9 @@ public class Wallet implements Serializable {
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
 
-        BigInteger valueSentFromMe = tx.getValueSentFromMe(this);
-        BigInteger valueSentToMe = tx.getValueSentToMe(this);
-        BigInteger valueDifference = valueSentToMe.subtract(valueSentFromMe);
+        long valueSentFromMe = tx.getValueSentFromMeAsLong(this);
+        long valueSentToMe = tx.getValueSentToMeAsLong(this);
+        long valueDifference = Nanocoins.subtract(valueSentToMe, valueSentFromMe);
 
         if (!reorg) {
             log.info("Received tx{} for {} BTC: {}", new Object[] { sideChain ? " on a side chain" : "",
@@ -269,7 +286,7 @@ public class Wallet implements Serializable {
             if (block != null)
                 wtx.addBlockAppearance(block, bestChain);
             if (bestChain) {
-                if (valueSentToMe.equals(BigInteger.ZERO)) {
+                if (valueSentToMe == 0) {
                     // There were no change transactions so this tx is fully spent.
                     log.info("  ->spent");
                     boolean alreadyPresent = spent.put(wtx.getHash(), wtx) != null;
@@ -312,12 +329,12 @@ public class Wallet implements Serializable {
             }
         }
 
-        log.info("Balance is now: " + bitcoinValueToFriendlyString(getBalance()));
+        log.info("Balance is now: " + bitcoinValueToFriendlyString(getBalanceAsLong(BalanceType.AVAILABLE)));
 
         // Inform anyone interested that we have new coins. Note: we may be re-entered by the event listener,
         // so we must not make assumptions about our state after this loop returns! For example the balance we just
         // received might already be spent!
-        if (!reorg && bestChain && valueDifference.compareTo(BigInteger.ZERO) > 0) {
+        if (!reorg && bestChain && valueDifference > 0) {
             for (WalletEventListener l : eventListeners) {
                 synchronized (l) {
                     l.onCoinsReceived(this, tx, prevBalance, getBalance());
@@ -334,7 +351,7 @@ public class Wallet implements Serializable {
         // This TX may spend our existing outputs even though it was not pending. This can happen in unit
         // tests and if keys are moved between wallets.
         updateForSpends(tx);
-        if (!tx.getValueSentToMe(this).equals(BigInteger.ZERO)) {
+        if (tx.getValueSentToMeAsLong(this) != 0) {
             // It's sending us coins.
             log.info("  new tx ->unspent");
             boolean alreadyPresent = unspent.put(tx.getHash(), tx) != null;
@@ -439,6 +456,18 @@ public class Wallet implements Serializable {
         return eventListeners.remove(listener);
     }
 
+    // Checks the signatures of an outgoing transaction, whose inputs are connected to our own outputs.
+    private void verifyBeforeSend(Transaction tx) throws IOException {
+        TransactionVerifier verifier = transactionVerifier;
+        if (verifier == null)
+            return;
+        try {
+            verifier.verify(tx, new HashMap<Sha256Hash, Transaction>());
+        } catch (VerificationException e) {
+            throw new IOException("Not sending " + tx.getHashAsString() + " as it failed verification", e);
+        }
+    }
+
     /**
      * Call this when we have successfully transmitted the send tx to the network, to update the wallet.
      */
@@ -561,6 +590,7 @@ public class Wallet implements Serializable {
         Transaction tx = createSend(to, nanocoins);
         if (tx == null)   // Not enough money! :-(
             return null;
+        verifyBeforeSend(tx);
         if (!peerGroup.broadcastTransaction(tx)) {
             throw new IOException("Failed to broadcast tx to all connected peers");
         }
@@ -583,6 +613,7 @@ public class Wallet implements Serializable {
         Transaction tx = createSend(to, nanocoins);
         if (tx == null)   // Not enough money! :-(
             return null;
+        verifyBeforeSend(tx);
         peer.broadcastTransaction(tx);
         confirmSend(tx);
         return tx;
@@ -605,37 +636,38 @@ public class Wallet implements Serializable {
     synchronized Transaction createSend(Address address, BigInteger nanocoins, Address changeAddress) {
         log.info("Creating send tx to " + address.toString() + " for " +
                 bitcoinValueToFriendlyString(nanocoins));
+        long target = Nanocoins.toLong(nanocoins);
         // To send money to somebody else, we need to do gather up transactions with unspent outputs until we have
         // sufficient value. Many coin selection algorithms are possible, we use a simple but suboptimal one.
         // TODO: Sort coins so we use the smallest first, to combat wallet fragmentation and reduce fees.
-        BigInteger valueGathered = BigInteger.ZERO;
+        long valueGathered = 0;
         List<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
         for (Transaction tx : unspent.values()) {
             for (TransactionOutput output : tx.outputs) {
                 if (!output.isAvailableForSpending()) continue;
                 if (!output.isMine(this)) continue;
                 gathered.add(output);
-                valueGathered = valueGathered.add(output.getValue());
+                valueGathered = Nanocoins.add(valueGathered, output.getValueAsLong());
             }
-            if (valueGathered.compareTo(nanocoins) >= 0) break;
+            if (valueGathered >= target) break;
         }
         // Can we afford this?
-        if (valueGathered.compareTo(nanocoins) < 0) {
+        if (valueGathered < target) {
             log.info("Insufficient value in wallet for send, missing " +
-                    bitcoinValueToFriendlyString(nanocoins.subtract(valueGathered)));
+                    bitcoinValueToFriendlyString(target - valueGathered));
             // TODO: Should throw an exception here.
             return null;
         }
         assert gathered.size() > 0;
         Transaction sendTx = new Transaction(params);
         sendTx.addOutput(new TransactionOutput(params, sendTx, nanocoins, address));
-        BigInteger change = valueGathered.subtract(nanocoins);
-        if (change.compareTo(BigInteger.ZERO) > 0) {
+        long change = valueGathered - target;
+        if (change > 0) {
             // The value of the inputs is greater than what we want to send. Just like in real life then,
             // we need to take back some coins ... this is called "change". Add another output that sends the change
             // back to us.
             log.info("  with " + bitcoinValueToFriendlyString(change) + " coins change");
-            sendTx.addOutput(new TransactionOutput(params, sendTx, change, changeAddress));
+            sendTx.addOutput(new TransactionOutput(params, sendTx, BigInteger.valueOf(change), changeAddress));
         }
         for (TransactionOutput output : gathered) {
             sendTx.addInput(output);
@@ -673,10 +705,9 @@ public class Wallet implements Serializable {
     	
     	// Calculate the total required coins for all outputs,
     	// including the network fee
-    	BigInteger totalSend = BigInteger.ZERO;
-    	totalSend = totalSend.add(fee);
+    	long totalSend = Nanocoins.toLong(fee);
     	for (BigInteger nanocoin : nanocoins) {
-    		totalSend = totalSend.add(nanocoin);
+    		totalSend = Nanocoins.add(totalSend, Nanocoins.toLong(nanocoin));
     	} // for
     	
     	List<Integer> keyidList = new ArrayList<Integer>();
@@ -684,7 +715,7 @@ public class Wallet implements Serializable {
         // To send money to somebody else, we need to do gather up transactions with unspent outputs until we have
         // sufficient value. Many coin selection algorithms are possible, we use a simple but suboptimal one.
         // TODO: Sort coins so we use the smallest first, to combat wallet fragmentation and reduce fees.
-        BigInteger valueGathered = BigInteger.ZERO;
+        long valueGathered = 0;
         List<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
         for (Transaction tx : unspent.values()) {
             for (TransactionOutput output : tx.outputs) {
@@ -693,25 +724,28 @@ public class Wallet implements Serializable {
                 gathered.add(output);
                 int keyid = -1;
                 try {
-                	keyid =
-                		findKeyIndexFromPubHash(output.getScriptPubKey().getPubKeyHash());
+                    // isMine passed, so the script is normally the standard form and the hash can be read in place.
+                    byte[] script = output.getScriptBytes();
+                    int hashOffset = ScriptTemplates.payToPubKeyHash(script, 0, script.length);
+                    keyid = hashOffset >= 0 ? findKeyIndexFromPubHash(script, hashOffset)
+                                            : findKeyIndexFromPubHash(output.getScriptPubKey().getPubKeyHash());
                 } catch (Exception ex) {}
                 if (keyid == -1) {
                 	log.error("Negative key index from keyring.");
                 	return null;
                 }
                 keyidList.add(keyid);
-                valueGathered = valueGathered.add(output.getValue());
-                log.info("gathered: " + output.getValue());
+                valueGathered = Nanocoins.add(valueGathered, output.getValueAsLong());
+                log.info("gathered: " + output.getValueAsLong());
             }
-            if (valueGathered.compareTo(totalSend) >= 0) break;
+            if (valueGathered >= totalSend) break;
         }
         log.info("total: " + valueGathered);
         
         // Can we afford this?
-        if (valueGathered.compareTo(totalSend) < 0) {
+        if (valueGathered < totalSend) {
             log.info("Insufficient value in wallet for send, missing " +
-                    bitcoinValueToFriendlyString(totalSend.subtract(valueGathered)));
+                    bitcoinValueToFriendlyString(totalSend - valueGathered));
             throw new InsufficientFundsException("The funds are too damn low.");
         }
         assert gathered.size() > 0;
@@ -725,13 +759,13 @@ public class Wallet implements Serializable {
         }
         
         // Calculate and add change output
-        BigInteger change = valueGathered.subtract(totalSend);
-        if (change.compareTo(BigInteger.ZERO) > 0) {
+        long change = valueGathered - totalSend;
+        if (change > 0) {
         	
             // The value of the inputs is greater than what we want to send. Just like in real life then,
             // we need to take back some coins ... this is called "change". Add another output that sends the change
             // back to us.
-            sendTx.addOutput(new TransactionOutput(params, sendTx, change, changeAddress));
+            sendTx.addOutput(new TransactionOutput(params, sendTx, BigInteger.valueOf(change), changeAddress));
             
             // Get the index of the key for the change address
             int keyid = findKeyIndexFromPubHash(changeAddress.getHash160());
@@ -779,6 +813,7 @@ public class Wallet implements Serializable {
      * @throws IOException
      */
     public synchronized Transaction sendTx(PeerGroup peerGroup, Transaction tx) throws IOException {
+        verifyBeforeSend(tx);
         if (!peerGroup.broadcastTransaction(tx)) {
             throw new IOException("Failed to broadcast tx to all connected peers");
         }
@@ -798,7 +833,9 @@ public class Wallet implements Serializable {
 
     /**
      * Locates a keypair from the keychain given the hash of the public key. This is needed when finding out which
-     * key we need to use to redeem a transaction output.
+     * key we need to use to redeem a transaction output. Each key is matched in its own encoding only, so a key
+     * added uncompressed does not claim outputs sent to its compressed address and vice versa. To redeem both, add
+     * the key twice using {@link ECKey#withCompression(boolean)}.
      * @return ECKey object or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubHash(byte[] pubkeyHash) {
@@ -808,6 +845,14 @@ public class Wallet implements Serializable {
         return null;
     }
     
+    /** As {@link #findKeyFromPubHash(byte[])}, for a 20 byte hash found at the given offset into buf. */
+    synchronized ECKey findKeyFromPubHash(byte[] buf, int offset) {
+        for (ECKey key : keychain) {
+            if (rangeEquals(key.getPubKeyHash(), buf, offset, 20)) return key;
+        }
+        return null;
+    }
+
     public synchronized int findKeyIndexFromPubHash(byte[] pubkeyHash) {
         for (int x = 0; x < keychain.size(); x++) {
         	ECKey key = keychain.get(x);
@@ -816,13 +861,27 @@ public class Wallet implements Serializable {
         return -1;
     }
 
+    /** As {@link #findKeyIndexFromPubHash(byte[])}, for a 20 byte hash found at the given offset into buf. */
+    synchronized int findKeyIndexFromPubHash(byte[] buf, int offset) {
+        for (int x = 0; x < keychain.size(); x++) {
+            if (rangeEquals(keychain.get(x).getPubKeyHash(), buf, offset, 20)) return x;
+        }
+        return -1;
+    }
+
     /** Returns true if this wallet contains a public key which hashes to the given hash. */
     public synchronized boolean isPubKeyHashMine(byte[] pubkeyHash) {
         return findKeyFromPubHash(pubkeyHash) != null;
     }
 
+    /** As {@link #isPubKeyHashMine(byte[])}, for a 20 byte hash found at the given offset into buf. */
+    synchronized boolean isPubKeyHashMine(byte[] buf, int offset) {
+        return findKeyFromPubHash(buf, offset) != null;
+    }
+
     /**
-     * Locates a keypair from the keychain given the raw public key bytes.
+     * Locates a keypair from the keychain given the raw public key bytes, in either the compressed or uncompressed
+     * encoding. As with {@link #findKeyFromPubHash(byte[])} the bytes must match the encoding the key was added with.
      * @return ECKey or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubKey(byte[] pubkey) {
@@ -837,6 +896,22 @@ public class Wallet implements Serializable {
         return findKeyFromPubKey(pubkey) != null;
     }
 
+    /** As {@link #isPubKeyMine(byte[])}, for a public key found in a range of buf. */
+    synchronized boolean isPubKeyMine(byte[] buf, int offset, int length) {
+        for (ECKey key : keychain) {
+            if (rangeEquals(key.getPubKey(), buf, offset, length)) return true;
+        }
+        return false;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] buf, int offset, int length) {
+        if (a.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (a[i] != buf[offset + i]) return false;
+        }
+        return true;
+    }
+
     /**
      * It's possible to calculate a wallets balance from multiple points of view. This enum selects which
      * getBalance() should use.<p>
@@ -876,23 +951,31 @@ public class Wallet implements Serializable {
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public synchronized BigInteger getBalance(BalanceType balanceType) {
-        BigInteger available = BigInteger.ZERO;
+        return BigInteger.valueOf(getBalanceAsLong(balanceType));
+    }
+
+    /**
+     * Returns the balance of this wallet in nanocoins as calculated by the provided balanceType. This does the same
+     * work as {@link #getBalance(BalanceType)} without creating a BigInteger per output.
+     */
+    public synchronized long getBalanceAsLong(BalanceType balanceType) {
+        long available = 0;
         for (Transaction tx : unspent.values()) {
             for (TransactionOutput output : tx.outputs) {
                 if (!output.isMine(this)) continue;
                 if (!output.isAvailableForSpending()) continue;
-                available = available.add(output.getValue());
+                available = Nanocoins.add(available, output.getValueAsLong());
             }
         }
         if (balanceType == BalanceType.AVAILABLE)
             return available;
         assert balanceType == BalanceType.ESTIMATED;
         // Now add back all the pending outputs to assume the transaction goes through.
-        BigInteger estimated = available;
+        long estimated = available;
         for (Transaction tx : pending.values()) {
             for (TransactionOutput output : tx.outputs) {
                 if (!output.isMine(this)) continue;
-                estimated = estimated.add(output.getValue());
+                estimated = Nanocoins.add(estimated, output.getValueAsLong());
             }
         }
         return estimated;
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2011 Ken Burford
+ * 
+ * This file is part of the Bitventory Signing Applet.
+ * 
+ * The Bitventory Signing Applet is free software:
+ * you can redistribute it and/or modify it under the terms
+ * of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ * 
+ * The Bitventory Signing Applet is distributed in the hope
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ * PURPOSE.  See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the Bitventory Signing Applet. 
+ * If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package com.google.bitcoin.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A PeerDiscovery that asks several other sources at once and merges what they return.<p>
+ *
+ * Every source is queried on its own thread and getPeers waits for them up to a deadline, so one slow source, such
+ * as an IRC server that never answers, cannot hold up the rest. A source still running at the deadline is left to
+ * finish. Whatever it returns is kept for later calls, and it is not queried again until it has finished.<p>
+ *
+ * The merged addresses are cached for a time to live. While the cache is fresh, getPeers returns it straight away
+ * and no source is asked.
+ */
+public class ConcurrentDiscovery implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(ConcurrentDiscovery.class);
+
+    /** The default for how long getPeers waits for the sources. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+    /** The default for how long the merged addresses are used before the sources are asked again. */
+    public static final long DEFAULT_TTL_MILLIS = 30 * 60 * 1000;
+
+    private final long timeoutMillis;
+    private final long ttlMillis;
+
+    // All synchronized on this.
+    private final List<PeerDiscovery> sources = new ArrayList<PeerDiscovery>();
+    // Queries that have not finished yet, possibly started by an earlier call.
+    private final Map<PeerDiscovery, Query> pending = new HashMap<PeerDiscovery, Query>();
+    private final Set<InetSocketAddress> cache = new LinkedHashSet<InetSocketAddress>();
+    private long cacheTime;
+    private ExecutorService executor;
+
+    public ConcurrentDiscovery() {
+        this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param timeoutMillis How long getPeers waits for the sources before returning what has been found.
+     * @param ttlMillis How long the addresses found are returned before the sources are asked again.
+     */
+    public ConcurrentDiscovery(long timeoutMillis, long ttlMillis) {
+        if (timeoutMillis <= 0)
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+        this.timeoutMillis = timeoutMillis;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public synchronized void addSource(PeerDiscovery source) {
+        if (!sources.contains(source)) {
+            sources.add(source);
+            // The next call should ask it.
+            cacheTime = 0;
+        }
+    }
+
+    public synchronized boolean removeSource(PeerDiscovery source) {
+        return sources.remove(source);
+    }
+
+    /** Makes the next call to getPeers ask the sources again. */
+    public synchronized void invalidate() {
+        cache.clear();
+        cacheTime = 0;
+    }
+
+    /**
+     * Returns the addresses found by all the sources, without duplicates. Blocks for at most the timeout.
+     *
+     * @throws PeerDiscoveryException if no source found any address.
+     */
+    public InetSocketAddress[] getPeers() throws PeerDiscoveryException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<Query> queries = new ArrayList<Query>();
+        synchronized (this) {
+            if (!cache.isEmpty() && System.currentTimeMillis() - cacheTime < ttlMillis)
+                return cache.toArray(new InetSocketAddress[cache.size()]);
+            cache.clear();
+            cacheTime = System.currentTimeMillis();
+            for (PeerDiscovery source : sources) {
+                Query query = pending.get(source);
+                if (query == null) {
+                    query = new Query(source);
+                    pending.put(source, query);
+                    getExecutor().execute(query);
+                }
+                queries.add(query);
+            }
+        }
+
+        Exception lastFailure = null;
+        for (Query query : queries) {
+            long remaining = deadline - System.currentTimeMillis();
+            try {
+                // Waiters can wake before done() has run, so the result is merged here too.
+                InetSocketAddress[] addresses = query.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    cache.addAll(Arrays.asList(addresses));
+                }
+            } catch (TimeoutException e) {
+                // Left running, it adds to the cache when it finishes.
+            } catch (ExecutionException e) {
+                lastFailure = e;
+            } catch (CancellationException e) {
+                // Shut down meanwhile.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (this) {
+            if (cache.isEmpty()) {
+                if (lastFailure != null)
+                    throw new PeerDiscoveryException("No discovery source found any addresses", lastFailure.getCause());
+                throw new PeerDiscoveryException("No discovery source found any addresses within " + timeoutMillis + "ms");
+            }
+            return cache.toArray(new InetSocketAddress[cache.size()]);
+        }
+    }
+
+    /** Stops the threads used for queries. The next call to getPeers starts new ones. */
+    public synchronized void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+        executor = null;
+        pending.clear();
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Peer discovery " + threadNumber.getAndIncrement());
+                    // A source that never returns must not keep the program alive.
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private class Query extends FutureTask<InetSocketAddress[]> {
+        private final PeerDiscovery source;
+
+        Query(final PeerDiscovery source) {
+            super(new Callable<InetSocketAddress[]>() {
+                public InetSocketAddress[] call() throws PeerDiscoveryException {
+                    long start = System.currentTimeMillis();
+                    InetSocketAddress[] addresses = source.getPeers();
+                    log.info("{} found {} addresses in {}ms", new Object[] {source.getClass().getSimpleName(),
+                            addresses.length, System.currentTimeMillis() - start});
+                    return addresses;
+                }
+            });
+            this.source = source;
+        }
+
+        @Override
+        protected void done() {
+            InetSocketAddress[] addresses = null;
+            try {
+                addresses = get();
+            } catch (ExecutionException e) {
+                log.warn("Discovery from " + source.getClass().getSimpleName() + " failed: " + e.getCause());
+            } catch (CancellationException e) {
+                // Shut down.
+            } catch (InterruptedException e) {
+                // Cannot happen, the result is ready.
+            }
+            synchronized (ConcurrentDiscovery.this) {
+                // After a shutdown there may be a newer query for the same source.
+                if (pending.get(source) == this)
+                    pending.remove(source);
+                if (addresses != null && sources.contains(source)) {
+                    cache.addAll(Arrays.asList(addresses));
+                    if (cacheTime == 0)
+                        cacheTime = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+}
@@ -42,8 +42,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.*;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * Supports peer discovery through DNS.<p>
@@ -57,8 +60,12 @@ import java.util.Set;
 public class DnsDiscovery implements PeerDiscovery {
     private static final Logger log = LoggerFactory.getLogger(DnsDiscovery.class);
 
+    /** The default for {@link #setLookupTimeout(long)}. */
+    public static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = 10 * 1000;
+
     private String[] hostNames;
     private NetworkParameters netParams;
+    private volatile long lookupTimeoutMillis = DEFAULT_LOOKUP_TIMEOUT_MILLIS;
 
     public static final String[] defaultHosts = new String[] {
             "dnsseed.bluematt.me",      // Auto generated
@@ -88,8 +95,40 @@ public class DnsDiscovery implements PeerDiscovery {
         this.netParams = netParams;
     }
 
+    /**
+     * Sets how long getPeers waits for the host names to resolve. They are all looked up at once, and those that
+     * have not resolved by then are left out.
+     */
+    public void setLookupTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("Lookup timeout must be positive: " + millis);
+        lookupTimeoutMillis = millis;
+    }
+
     public InetSocketAddress[] getPeers() throws PeerDiscoveryException {
         Set<InetSocketAddress> addresses = new HashSet<InetSocketAddress>();
+        if (hostNames.length == 0)
+            return new InetSocketAddress[0];
+
+        // InetAddress.getAllByName blocks, so each name is resolved on its own thread.
+        ExecutorService executor = Executors.newFixedThreadPool(hostNames.length, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DNS discovery");
+                // A lookup that hangs must not keep the program alive.
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        List<Future<InetAddress[]>> lookups = new ArrayList<Future<InetAddress[]>>();
+        for (final String hostName : hostNames) {
+            lookups.add(executor.submit(new Callable<InetAddress[]>() {
+                public InetAddress[] call() throws UnknownHostException {
+                    return InetAddress.getAllByName(hostName);
+                }
+            }));
+        }
+        // Lets the threads exit once their lookups are done.
+        executor.shutdown();
 
         /*
          * Keep track of how many lookups failed vs. succeeded.
@@ -97,10 +136,13 @@ public class DnsDiscovery implements PeerDiscovery {
          * We don't want to throw an exception if only one of many lookups fails.
          */
         int failedLookups = 0;
+        long deadline = System.currentTimeMillis() + lookupTimeoutMillis;
         
-        for (String hostName : hostNames) {
+        for (int i = 0; i < hostNames.length; i++) {
+            String hostName = hostNames[i];
             try {
-                InetAddress[] hostAddresses = InetAddress.getAllByName(hostName);
+                long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+                InetAddress[] hostAddresses = lookups.get(i).get(remaining, TimeUnit.MILLISECONDS);
                 
                 for (InetAddress inetAddress : hostAddresses) {
                     // DNS isn't going to provide us with the port.
@@ -112,14 +154,21 @@ public class DnsDiscovery implements PeerDiscovery {
                         addresses.add(socketAddress);
                     }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PeerDiscoveryException("Interrupted whilst waiting for DNS lookups", e);
             } catch (Exception e) {
                 failedLookups++;
-                log.info("DNS lookup for " + hostName + " failed.");
+                if (e instanceof TimeoutException)
+                    log.info("DNS lookup for " + hostName + " timed out.");
+                else
+                    log.info("DNS lookup for " + hostName + " failed.");
                 
                 if (failedLookups == hostNames.length) {
                     // All the lookups failed.
                     // Throw the discovery exception and include the last inner exception.
-                    throw new PeerDiscoveryException("DNS resolution for all hosts failed.", e);
+                    throw new PeerDiscoveryException("DNS resolution for all hosts failed.",
+                            e instanceof ExecutionException ? e.getCause() : e);
                 }
             }
         }
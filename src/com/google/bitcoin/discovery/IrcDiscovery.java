@@ -52,6 +52,8 @@ import java.util.*;
  */
 public class IrcDiscovery implements PeerDiscovery {
     private static final Logger log = LoggerFactory.getLogger(IrcDiscovery.class);
+    // Servers can take a while to log us in, but one that goes quiet for this long is given up on.
+    private static final int SOCKET_TIMEOUT_MILLIS = 60 * 1000;
 
     private String channel;
     private int port = 6667;
@@ -97,7 +99,9 @@ public class IrcDiscovery implements PeerDiscovery {
         ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
         Socket connection = null;
         try {
-            connection = new Socket(server, port);
+            connection = new Socket();
+            connection.connect(new InetSocketAddress(server, port), SOCKET_TIMEOUT_MILLIS);
+            connection.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
             writer = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
             BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
 